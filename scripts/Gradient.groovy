@@ -0,0 +1,18 @@
+parameters([
+    interval: [type: int, default: 30],
+    palette:  [type: Palette, default: Palette.RAINBOW],
+    speed:    [type: int, default: 64],
+    stretch:  [type: double, default: 1.0]
+])
+
+frame = new FrameBuffer(ledApi.ledCount)
+// Palette indices are in 8.8 fixed point
+indexStep = (int)(256 * 256 * stretch / Math.max(1, ledApi.ledCount))
+offset = 0
+
+repeat(interval) {
+    palette.fill(frame, offset, indexStep)
+    ledApi.setLedColors(frame)
+    ledApi.flush()
+    offset += speed
+}
@@ -0,0 +1,28 @@
+parameters([
+    interval: [type: int, default: 30],
+    palette:  [type: Palette, default: Palette.OCEAN],
+    speed:    [type: double, default: 0.05],
+    scale:    [type: double, default: 6.0]
+])
+
+// Draws on a canvas with one pixel per grid cell of the LED layout.
+// On a stripe without layout the canvas is a single row.
+layout = ledApi.layout
+canvas = layout.createCanvas()
+frame = new FrameBuffer(ledApi.ledCount)
+time = 0.0
+
+repeat(interval) {
+    for (y in 0..<layout.height) {
+        for (x in 0..<layout.width) {
+            double u = x / Math.max(1, layout.width - 1)
+            double v = y / Math.max(1, layout.height - 1)
+            double value = Math.sin(u * scale + time) + Math.sin((u + v) * scale * 0.5 + time * 1.3)
+            layout.setPixel(canvas, x, y, palette.colorAt((value + 2.0) / 4.0))
+        }
+    }
+    layout.render(canvas, frame)
+    ledApi.setLedColors(frame)
+    ledApi.flush()
+    time += speed
+}
@@ -0,0 +1,29 @@
+parameters([
+    interval: [type: int, default: 20],
+    palette:  [type: Palette, default: Palette.parse("ffffff,ffd040,ff4000,600000")],
+    rate:     [type: double, default: 0.5],
+    gravity:  [type: double, default: -0.02],
+    trail:    [type: int, default: 160]
+])
+
+// Particles rise from the start of the stripe and fall back
+particles = new ParticleSystem(256)
+particles.gravity = gravity
+emitter = particles.addEmitter()
+emitter.position = 0
+emitter.spread = 2
+emitter.minVelocity = 0.3
+emitter.maxVelocity = 1.2
+emitter.minLife = 30
+emitter.maxLife = 90
+emitter.rate = rate
+emitter.palette = palette
+
+frame = new FrameBuffer(ledApi.ledCount)
+
+repeat(interval) {
+    frame.fadeToBlack(trail)
+    particles.step(frame)
+    ledApi.setLedColors(frame)
+    ledApi.flush()
+}
@@ -0,0 +1,32 @@
+parameters([
+    interval: [type: int, default: 20],
+    palette:  [type: Palette, default: Palette.RAINBOW],
+    flash:    [type: ColorRgb, default: new ColorRgb(60,60,60)],
+    decay:    [type: int, default: 200]
+])
+
+// Shows the audio frequency bands across the stripe and flashes on beats.
+// Requires the server to be started with --audio.
+levels = new AudioFrame(audio)
+frame = new FrameBuffer(ledApi.ledCount)
+flashFrame = new FrameBuffer(ledApi.ledCount)
+flashFrame.fill(flash.toPacked())
+lastBeat = 0L
+
+repeat(interval) {
+    frame.fadeToBlack(decay)
+    if (audio.read(levels) && levels.bandCount > 0) {
+        int n = frame.size()
+        for (i in 0..<n) {
+            int band = (int)(i * levels.bandCount / n)
+            int color = ColorOps.scale(palette.get((int)(band * 255 / levels.bandCount)), levels.getBand(band))
+            frame.set(i, ColorOps.max(frame.get(i), color))
+        }
+        if (levels.beatCount != lastBeat) {
+            lastBeat = levels.beatCount
+            frame.add(flashFrame)
+        }
+    }
+    ledApi.setLedColors(frame)
+    ledApi.flush()
+}
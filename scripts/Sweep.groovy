@@ -9,7 +9,7 @@ repeat (interval) {
     double h = (double)i
     double s = 1.0
     double v = 1.0
-    ledApi.setAllLedsToColor(new ColorHsv(h, s, v).dim(brightness).toRgb())
+    ledApi.setAllLedsToColor(FastHsv.toRgb(h, s, v * brightness))
     ledApi.flush()
     
     i++
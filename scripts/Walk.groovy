@@ -9,15 +9,13 @@ enum Direction { Left, Right }
 direction = Direction.Right
 currentPixelIndex = 0
 ledCount = ledApi.ledCount
+// The brightness profile of the trail only needs to be computed once
+trail = Sprite.falloff(spread, spreadfactor)
+packedColor = color.toPacked()
 
 repeat(interval) {
-    ledApi.setAllLedsToColor(new ColorRgb(0,0,0));
-    for (int i = currentPixelIndex - spread; i <= currentPixelIndex + spread; i++) {
-        if (i < 0 || i >= ledCount) continue
-        int dist = Math.abs(i - currentPixelIndex)
-        double brightness = Math.pow(spreadfactor, (double)dist)
-        ledApi.setLedColor(i, color.dim(brightness))
-    }
+    ledApi.setAllLedsToColor(ColorOps.BLACK);
+    ledApi.drawSprite(trail, currentPixelIndex, packedColor, Sprite.Blend.REPLACE)
     ledApi.flush()
     
     if (direction == Direction.Right) {
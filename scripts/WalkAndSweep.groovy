@@ -9,20 +9,17 @@ direction = Direction.Right
 currentPixelIndex = 0
 hi = 0
 ledCount = ledApi.ledCount
+// The brightness profile of the trail only needs to be computed once
+trail = Sprite.falloff(spread, spreadfactor)
 
 repeat(interval) {
     double h = (double)hi
     double s = 1.0
     double v = 1.0
-    ColorRgb currentColor = new ColorHsv(h, s, v).toRgb();
+    int currentColor = FastHsv.toRgb(h, s, v);
     
-    ledApi.setAllLedsToColor(new ColorRgb(0,0,0));
-    for (int i = currentPixelIndex - spread; i <= currentPixelIndex + spread; i++) {
-        if (i < 0 || i >= ledCount) continue
-        int dist = Math.abs(i - currentPixelIndex) // Distance from the middle
-        double brightness = Math.pow(spreadfactor, (double)dist)
-        ledApi.setLedColor(i, currentColor.dim(brightness))
-    }
+    ledApi.setAllLedsToColor(ColorOps.BLACK);
+    ledApi.drawSprite(trail, currentPixelIndex, currentColor, Sprite.Blend.REPLACE)
     ledApi.flush()
     
     if (direction == Direction.Right) {
@@ -16,109 +16,549 @@
 
 package adalightserver;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import rx.Observable;
 import rx.Scheduler;
 import rx.Subscription;
 import rx.schedulers.Schedulers;
-import rx.subjects.BehaviorSubject;
+import rx.subjects.PublishSubject;
+import adalightserver.device.OffscreenDevice;
+import adalightserver.device.OutputCorrection;
 import adalightserver.scripting.ScriptContext;
 import adalightserver.scripting.ScriptInformation;
 import adalightserver.scripting.ScriptManager;
+import adalightserver.scripting.ScriptSupervisor;
+import adalightserver.types.AudioApi;
 import adalightserver.types.ColorRgb;
+import adalightserver.types.FrameBuffer;
+import adalightserver.types.JsonString;
 import adalightserver.types.LedApi;
 
 public class Controller implements IController {
     
+    /** The time after which an operation fails if it didn't run */
+    static final long OPERATION_TIMEOUT = 5000;
+    /** The time after which a script which doesn't stop is reported */
+    static final long SCRIPT_STOP_TIMEOUT = 2000;
+    
     Scheduler scriptSchedulerFactory = Schedulers.newThread();
     Scheduler scheduler = new SingleThreadedComputationScheduler();
     ScriptContext activeScript;
+    // Runs the scripts in worker processes if set, in which case
+    // activeScript stays null and only activeScriptInfo is set
+    ScriptSupervisor supervisor = null;
+    ScriptInformation activeScriptInfo;
     ScriptManager scriptManager;
     LedApi api;
+    OutputCorrection outputCorrection;
+    Metrics metrics;
+    AudioApi audio;
     
     Map<String, ScriptInformation> availableScripts = new HashMap<>();
     Subscription scriptSub;
     
     private enum Mode {
         None,
-        Script
+        Script,
+        External
     }
     
     private Mode mode = Mode.None;
     
+    // The script which was started last, which is resumed after external frames stop
+    String resumeScriptName = null;
+    Map<String,String> resumeScriptParams = null;
+    
+    // External frames are pushed from IO threads, so the state of the
+    // current source is guarded by externalLock instead of the scheduler
+    final Object externalLock = new Object();
+    long externalTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(1000);
+    String externalSource = null;
+    int externalPriority = 0;
+    long externalLastFrame = 0;
+    /** Frames are written to the LEDs, which requires Mode.External */
+    boolean externalActive = false;
+    /** The switch to Mode.External is scheduled */
+    boolean externalPending = false;
+    /** External frames are ignored until the sources pause for the timeout */
+    boolean externalSuspended = false;
+    long externalFrames = 0;
+    long externalRejected = 0;
+    Scheduler.Worker externalTimeoutWorker;
+    
+    // Fails operations which didn't run in time. It has its own thread, so
+    // it works even if the controller thread is stuck.
+    static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "ControllerTimeouts");
+        t.setDaemon(true);
+        return t;
+    });
+    static {
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+    
+    // Presets and the scripts of presets which are kept running offscreen,
+    // so that they are shown without restarting them
+    PresetStore presets = new PresetStore(null);
+    int standbyCount = 2;
+    final Map<String, Standby> standby = new HashMap<>();
+    String activePreset = null;
+    boolean playlistPlaying = false;
+    Scheduler.Worker playlistWorker = null;
+    
+    private static class Standby {
+        final PresetStore.Preset preset;
+        final ScriptInformation script;
+        final ScriptContext context;
+        
+        Standby(PresetStore.Preset preset, ScriptInformation script, ScriptContext context) {
+            this.preset = preset;
+            this.script = script;
+            this.context = context;
+        }
+    }
+    
+    // Measurements of preset switches
+    volatile long switchNanos = 0;
+    volatile long maxSwitchNanos = 0;
+    volatile long warmSwitches = 0;
+    volatile long coldSwitches = 0;
+    
+    // Measurements of the operations
+    final AtomicInteger queuedOperations = new AtomicInteger();
+    volatile long operationNanos = 0;
+    volatile long maxOperationNanos = 0;
+    volatile long timedOutOperations = 0;
+    volatile long stuckScripts = 0;
+    
     public Controller(LedApi api, ScriptManager scriptManager) {
+        this(api, scriptManager, new OutputCorrection(null));
+    }
+    
+    public Controller(LedApi api, ScriptManager scriptManager, OutputCorrection outputCorrection) {
+        this(api, scriptManager, outputCorrection, new Metrics(), AudioApi.SILENT);
+    }
+    
+    public Controller(LedApi api, ScriptManager scriptManager, OutputCorrection outputCorrection,
+                      Metrics metrics, AudioApi audio) {
         this.api = api;
+        this.audio = audio;
         this.scriptManager = scriptManager;
+        this.outputCorrection = outputCorrection;
+        this.metrics = metrics;
+        
+        metrics.register("external.frames", () -> { synchronized (externalLock) { return externalFrames; } });
+        metrics.register("external.rejected", () -> { synchronized (externalLock) { return externalRejected; } });
+        metrics.register("controller.queueDepth", queuedOperations::get);
+        metrics.register("controller.latencyMicros", () -> operationNanos / 1000);
+        metrics.register("controller.maxLatencyMicros", () -> maxOperationNanos / 1000);
+        metrics.register("controller.timeouts", () -> timedOutOperations);
+        metrics.register("controller.stuckScripts", () -> stuckScripts);
+        metrics.register("presets.switchMicros", () -> switchNanos / 1000);
+        metrics.register("presets.maxSwitchMicros", () -> maxSwitchNanos / 1000);
+        metrics.register("presets.warmSwitches", () -> warmSwitches);
+        metrics.register("presets.coldSwitches", () -> coldSwitches);
         
         scriptSub = 
         scriptManager.availableScriptsChanged()
                      .observeOn(scheduler)
                      .subscribe(scriptMap -> {
                          availableScripts = scriptMap;
-                         stateSubject.onNext(createStateJson());
+                         publishState();
+                         updateStandby();
                      });
     }
+    
+    /**
+     * Sets the presets and how many of them are kept warm. The next preset
+     * of the playlist is kept warm in addition.
+     */
+    public CompletableFuture<Void> setPresetStore(PresetStore presets, int standbyCount) {
+        return batch(ops -> {
+            this.presets = presets;
+            this.standbyCount = Math.max(0, standbyCount);
+            updateStandby();
+            return null;
+        });
+    }
 
+    /**
+     * Lets scripts run in worker processes instead of this process.
+     * Must be set before the first script is started.
+     */
+    public void setScriptSupervisor(ScriptSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+    
+    /**
+     * Sets the time after which the last external source is considered gone
+     */
+    public void setExternalTimeout(int milliseconds) {
+        synchronized (externalLock) {
+            externalTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, milliseconds));
+        }
+    }
+    
+    /**
+     * The operations on the controller thread, which back the asynchronous
+     * methods and batches
+     */
+    private final Operations operations = new Operations() {
+        @Override
+        public void stop() {
+            leaveExternalMode(true);
+            stopPlaylist();
+            stopActiveScript();
+            resumeScriptName = null;
+            activePreset = null;
+            updateStandby();
+        }
+        
+        @Override
+        public void setScript(String scriptName, Map<String,String> params) throws Exception {
+            leaveExternalMode(true);
+            stopPlaylist();
+            activePreset = null;
+            startScript(scriptName, params);
+            updateStandby();
+        }
+        
+        @Override
+        public void applyPreset(String name) throws Exception {
+            stopPlaylist();
+            showPreset(name);
+        }
+        
+        @Override
+        public String getCurrentScript() {
+            return mode == Mode.Script ? activeScriptInfo.name : "";
+        }
+        
+        @Override
+        public List<String> getAvailableScripts() {
+            return new ArrayList<String>(availableScripts.keySet());
+        }
+        
+        @Override
+        public void setOutputCorrection(Map<String,Double> settings) {
+            applyOutputCorrection(settings);
+        }
+        
+        @Override
+        public String getStateAsJson() {
+            return createStateJson();
+        }
+        
+        @Override
+        public Map<String,Object> getMetrics() {
+            return metrics.snapshot();
+        }
+        
+        @Override
+        public boolean isValidScript(String scriptName) {
+            return scriptManager.getScript(scriptName) != null;
+        }
+        
+        @Override
+        public boolean isValidPreset(String name) {
+            return presets.get(name) != null;
+        }
+        
+        @Override
+        public boolean isValidOutputCorrection(Map<String,Double> settings) {
+            return Controller.isValidOutputCorrection(settings);
+        }
+        
+        @Override
+        public Snapshot snapshot() {
+            return new ControllerSnapshot();
+        }
+    };
+    
+    /**
+     * The state which operations change, only used on the controller thread
+     */
+    private class ControllerSnapshot implements Snapshot {
+        final Mode mode = Controller.this.mode;
+        final ScriptContext script = activeScript;
+        final ScriptInformation scriptInfo = activeScriptInfo;
+        final String scriptName = resumeScriptName;
+        final Map<String,String> scriptParams = resumeScriptParams;
+        final String preset = activePreset;
+        final boolean playing = playlistPlaying;
+        final boolean suspended;
+        final double brightness = outputCorrection.getBrightness();
+        final double gamma = outputCorrection.getGamma();
+        final int temperature = outputCorrection.getTemperature();
+        final double[] balance = outputCorrection.getWhiteBalance();
+        
+        ControllerSnapshot() {
+            synchronized (externalLock) {
+                suspended = externalSuspended;
+            }
+        }
+        
+        @Override
+        public void restore() {
+            outputCorrection.set(brightness, gamma, temperature, balance[0], balance[1], balance[2]);
+            synchronized (externalLock) {
+                externalSuspended = suspended;
+            }
+            
+            if (Controller.this.mode != mode || activeScript != script || activeScriptInfo != scriptInfo) {
+                // External frames take over again by themselves
+                try {
+                    if (mode == Mode.Script && preset != null && presets.get(preset) != null) {
+                        showPreset(preset);
+                    } else if (mode == Mode.Script) {
+                        startScript(scriptName, scriptParams);
+                    } else {
+                        stopActiveScript();
+                    }
+                } catch (Exception e) {
+                    System.out.println("Can not restore script " + scriptName + ": " + e.getMessage());
+                    stopActiveScript();
+                }
+            }
+            resumeScriptName = scriptName;
+            resumeScriptParams = scriptParams;
+            activePreset = preset;
+            if (playing && !playlistPlaying) {
+                playlistPlaying = true;
+                schedulePlaylistAdvance();
+            }
+            publishState();
+            updateStandby();
+        }
+    }
+    
+    /**
+     * Runs the batch on the controller thread. The batch is skipped and the
+     * future fails with a TimeoutException if it didn't start within
+     * OPERATION_TIMEOUT.
+     */
     @Override
-    public CompletableFuture<Void> stop() {
-        final CompletableFuture<Void> f = new CompletableFuture<>();
+    public <T> CompletableFuture<T> batch(Batch<T> batch) {
+        final CompletableFuture<T> f = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        // Either the timeout or the controller thread claims the batch, so
+        // a batch which times out is never run and a started one never
+        // times out
+        final AtomicBoolean claimed = new AtomicBoolean();
+        queuedOperations.incrementAndGet();
+        ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+            if (claimed.compareAndSet(false, true)) {
+                timedOutOperations++;
+                f.completeExceptionally(new TimeoutException("Operation timed out"));
+            }
+        }, OPERATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        
         scheduler.createWorker().schedule(() -> {
-            stopActiveScript();
-            f.complete(null);
+            queuedOperations.decrementAndGet();
+            if (!claimed.compareAndSet(false, true)) return;
+            T result = null;
+            Exception error = null;
+            batchRunning = true;
+            try {
+                result = batch.run(operations);
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                batchRunning = false;
+            }
+            // The state is announced once with all changes of the batch
+            if (statePending) publishState();
+            if (error == null) {
+                f.complete(result);
+            } else {
+                f.completeExceptionally(error);
+            }
+            timeout.cancel(false);
+            // Only written from this thread
+            long nanos = System.nanoTime() - start;
+            operationNanos = nanos;
+            if (nanos > maxOperationNanos) maxOperationNanos = nanos;
         });
         return f;
+    }
+    
+    @Override
+    public CompletableFuture<Void> stop() {
+        return batch(ops -> {
+            ops.stop();
+            return null;
+        });
     }    
     
     public CompletableFuture<Void> setScript(String scriptName, Map<String,String> params) {
-        final CompletableFuture<Void> f = new CompletableFuture<>();
-        scheduler.createWorker().schedule(() -> {
-            stopActiveScript();
-            System.out.println("Setting to script " + scriptName + " with params " + params);
-            
-            ScriptInformation scriptInfo;
-            try {
-                scriptInfo = scriptManager.getScriptByName(scriptName).get();
+        return batch(ops -> {
+            ops.setScript(scriptName, params);
+            return null;
+        });
+    }
+    
+    private void startScript(String scriptName, Map<String,String> params) throws Exception {
+        stopActiveScript();
+        System.out.println("Setting to script " + scriptName + " with params " + params);
+        
+        ScriptInformation scriptInfo = scriptManager.getScript(scriptName);
+        if (scriptInfo == null) {
+            throw new RuntimeException("Invalid script name");
+        }
+        
+        try {
+            if (supervisor != null) {
+                supervisor.start(scriptInfo, params);
+                activeScriptInfo = new ScriptInformation(scriptInfo);
+                // Parse the parameters for the state like the context does
+                activeScriptInfo.parameters.forEach((pname, param) -> param.parseParameter(params.get(pname)));
+            } else {
+                activeScript = new ScriptContext(scriptSchedulerFactory, api, audio, scriptInfo, params);
+                activeScript.run();
+                activeScriptInfo = activeScript.getScriptInformation();
+            }
+            mode = Mode.Script;
+            resumeScriptName = scriptName;
+            resumeScriptParams = params;
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error starting script " + scriptName);
+        }
+        
+        publishState();
+    }
+    
+    @Override
+    public boolean pushExternalFrame(String source, int priority, ByteBuffer rgb) {
+        final long now = System.nanoTime();
+        boolean sourceChanged = false;
+        synchronized (externalLock) {
+            boolean expired = now - externalLastFrame > externalTimeoutNanos;
+            if (externalSuspended) {
+                if (!expired) {
+                    externalLastFrame = now;
+                    externalRejected++;
+                    return false;
+                }
+                externalSuspended = false;
             }
-            catch (Exception e1) {
-                f.completeExceptionally(e1);
-                return;
+            if (externalSource != null && !externalSource.equals(source)
+                && !expired && priority <= externalPriority) {
+                // Another source with at least the same priority is active
+                externalRejected++;
+                return false;
             }
-            if (scriptInfo == null) {
-                f.completeExceptionally(new RuntimeException("Invalid script name"));
-                return;
+            
+            if (!source.equals(externalSource)) {
+                externalSource = source;
+                sourceChanged = true;
             }
+            externalPriority = priority;
+            externalLastFrame = now;
             
+            if (externalActive) {
+                api.showFrame(rgb);
+                externalFrames++;
+            } else if (!externalPending) {
+                // The frame is dropped while the active script is stopped
+                externalPending = true;
+                scheduler.createWorker().schedule(this::enterExternalMode);
+            }
+        }
+        
+        if (sourceChanged) {
+            System.out.println("External frames from " + source + " with priority " + priority);
+            scheduler.createWorker().schedule(this::publishState);
+        }
+        return true;
+    }
+    
+    private void enterExternalMode() {
+        synchronized (externalLock) {
+            externalPending = false;
+            if (externalSuspended) return;
+        }
+        if (mode == Mode.External) return;
+        stopActiveScript();
+        mode = Mode.External;
+        synchronized (externalLock) {
+            externalActive = true;
+        }
+        
+        long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(externalTimeoutNanos) / 4);
+        externalTimeoutWorker = scheduler.createWorker();
+        externalTimeoutWorker.schedulePeriodically(() -> {
+            boolean expired;
+            synchronized (externalLock) {
+                expired = System.nanoTime() - externalLastFrame > externalTimeoutNanos;
+            }
+            // Unsubscribing the worker from its own action would interrupt
+            // this thread, so the script is resumed from a new action
+            if (expired) scheduler.createWorker().schedule(this::externalTimedOut);
+        }, period, period, TimeUnit.MILLISECONDS);
+        
+        publishState();
+    }
+    
+    private void externalTimedOut() {
+        if (mode != Mode.External) return;
+        System.out.println("External frames timed out");
+        leaveExternalMode(false);
+        if (resumeScriptName != null) {
             try {
-                activeScript = new ScriptContext(scriptSchedulerFactory, api, scriptInfo, params);
-                activeScript.run();
-                mode = Mode.Script;
+                startScript(resumeScriptName, resumeScriptParams);
             } catch (Exception e) {
-                e.printStackTrace();
-                f.completeExceptionally(new RuntimeException("Error starting script " + scriptName));
-                return;
+                System.out.println("Can not resume script " + resumeScriptName + ": " + e.getMessage());
             }
-            
-            stateSubject.onNext(createStateJson());
-            f.complete(null);
-        });
-        return f;
+        }
+    }
+    
+    /**
+     * Stops writing external frames and turns the LEDs off
+     *
+     * @param suspend If the current sources are ignored until they pause,
+     *                which is used when a script or stop was requested
+     */
+    private void leaveExternalMode(boolean suspend) {
+        synchronized (externalLock) {
+            if (suspend && (externalActive || externalPending)) externalSuspended = true;
+            externalActive = false;
+            externalSource = null;
+        }
+        if (mode != Mode.External) return;
+        externalTimeoutWorker.unsubscribe();
+        externalTimeoutWorker = null;
+        mode = Mode.None;
+        
+        try {
+            api.setAllLedsToColor(new ColorRgb(0,0,0));
+            api.flush();
+        } catch (Exception e) {}
+        
+        publishState();
     }
     
     @Override
     public CompletableFuture<String> getCurrentScript() {
-        final CompletableFuture<String> f = new CompletableFuture<>();
-        scheduler.createWorker().schedule(() -> {
-            if (mode != Mode.Script) f.complete("");
-            else f.complete(activeScript.getScriptName());
-        });
-        return f;
+        return batch(Operations::getCurrentScript);
     }
     
     @Override
@@ -128,49 +568,390 @@ public class Controller implements IController {
         return c;
     }
     
+    @Override
+    public CompletableFuture<Void> setOutputCorrection(Map<String,Double> settings) {
+        return batch(ops -> {
+            ops.setOutputCorrection(settings);
+            return null;
+        });
+    }
+    
+    /**
+     * Checks that all keys are known and all values are numbers
+     */
+    private static boolean isValidOutputCorrection(Map<String,Double> settings) {
+        for (Map.Entry<String,Double> e : settings.entrySet()) {
+            if (e.getValue() == null || e.getValue().isNaN() || e.getValue().isInfinite()) return false;
+            switch (e.getKey()) {
+            case "brightness": case "gamma": case "temperature":
+            case "red": case "green": case "blue":
+                break;
+            default:
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Applies all settings at once. Nothing is changed if one of them is invalid.
+     */
+    private void applyOutputCorrection(Map<String,Double> settings) {
+        if (!isValidOutputCorrection(settings)) {
+            throw new RuntimeException("Invalid output correction " + settings.keySet());
+        }
+        double[] balance = outputCorrection.getWhiteBalance();
+        outputCorrection.set(
+            settings.getOrDefault("brightness", outputCorrection.getBrightness()),
+            settings.getOrDefault("gamma", outputCorrection.getGamma()),
+            settings.containsKey("temperature") ? settings.get("temperature").intValue() : outputCorrection.getTemperature(),
+            settings.getOrDefault("red", balance[0]),
+            settings.getOrDefault("green", balance[1]),
+            settings.getOrDefault("blue", balance[2]));
+        
+        publishState();
+    }
+    
     private void stopActiveScript() {
+        stopActiveScript(false);
+    }
+    
+    /**
+     * @param switching If another script is shown right away, in which case
+     *                  the LEDs are not turned off and the state is published
+     *                  by the caller
+     */
+    private void stopActiveScript(boolean switching) {
         if (mode != Mode.Script) return;
         
-        activeScript.getScheduler().schedule(() -> { activeScript.stop(); });
-        // Wait till the script completes
-        try {
-            activeScript.getCompletionFuture().get();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
+        if (activeScript == null) {
+            supervisor.stop();
+        } else {
+            // The script can't change the LEDs anymore, so there is no need
+            // to wait until its current frame is finished
+            final String name = activeScriptInfo.name;
+            CompletableFuture<Boolean> stopped = activeScript.cancel();
+            timeouts.schedule(() -> {
+                if (!stopped.isDone()) {
+                    stuckScripts++;
+                    System.out.println("Script " + name + " did not stop within "
+                        + SCRIPT_STOP_TIMEOUT + " ms");
+                }
+            }, SCRIPT_STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            activeScript = null;
         }
-        activeScript = null;
+        activeScriptInfo = null;
+        mode = Mode.None;
+        if (switching) return;
         
         try {
             api.setAllLedsToColor(new ColorRgb(0,0,0));
             api.flush();
         } catch (Exception e) {}
         
-        mode = Mode.None;
+        publishState();
+    }
+    
+    @Override
+    public CompletableFuture<Map<String,Object>> getPresets() {
+        return batch(ops -> {
+            Map<String,Object> result = presets.toMap();
+            result.put("playing", playlistPlaying);
+            result.put("active", mode == Mode.Script ? activePreset : null);
+            return result;
+        });
+    }
+    
+    @Override
+    public CompletableFuture<Void> savePreset(String name, String scriptName, Map<String,String> params) {
+        return batch(ops -> {
+            if (name.isEmpty() || scriptManager.getScript(scriptName) == null) {
+                throw new RuntimeException("Invalid preset");
+            }
+            presets.put(name, new PresetStore.Preset(scriptName, params));
+            updateStandby();
+            return null;
+        });
+    }
+    
+    @Override
+    public CompletableFuture<Void> deletePreset(String name) {
+        return batch(ops -> {
+            if (!presets.remove(name)) throw new RuntimeException("Invalid preset " + name);
+            if (name.equals(activePreset)) {
+                // The script keeps running without its preset
+                activePreset = null;
+                publishState();
+            }
+            if (presets.getPlaylist().isEmpty()) stopPlaylist();
+            updateStandby();
+            return null;
+        });
+    }
+    
+    @Override
+    public CompletableFuture<Void> applyPreset(String name) {
+        return batch(ops -> {
+            ops.applyPreset(name);
+            return null;
+        });
+    }
+    
+    @Override
+    public CompletableFuture<Void> setPlaylist(List<String> names, int intervalSeconds) {
+        return batch(ops -> {
+            for (String name : names) {
+                if (presets.get(name) == null) throw new RuntimeException("Invalid preset " + name);
+            }
+            stopPlaylist();
+            presets.setPlaylist(names, intervalSeconds);
+            if (!names.isEmpty()) playPreset(0);
+            else updateStandby();
+            return null;
+        });
+    }
+    
+    @Override
+    public CompletableFuture<Void> nextPreset() {
+        return batch(ops -> {
+            List<String> playlist = presets.getPlaylist();
+            if (playlist.isEmpty()) throw new RuntimeException("The playlist is empty");
+            stopPlaylist();
+            playPreset(nextPlaylistIndex());
+            return null;
+        });
+    }
+    
+    /**
+     * Returns the index of the playlist entry after the active preset
+     */
+    private int nextPlaylistIndex() {
+        List<String> playlist = presets.getPlaylist();
+        if (playlist.isEmpty()) return -1;
+        return (playlist.indexOf(activePreset) + 1) % playlist.size();
+    }
+    
+    /**
+     * Applies an entry of the playlist and schedules the next one. The
+     * playlist stops if the preset can't be shown.
+     */
+    private void playPreset(int index) throws Exception {
+        // Set before the preset is shown, so the next one is kept warm
+        playlistPlaying = true;
+        try {
+            showPreset(presets.getPlaylist().get(index));
+        } catch (Exception e) {
+            stopPlaylist();
+            updateStandby();
+            throw e;
+        }
+        schedulePlaylistAdvance();
+    }
+    
+    /**
+     * Starts the timer after which the playlist moves to the next preset
+     */
+    private void schedulePlaylistAdvance() {
+        int interval = presets.getPlaylistInterval();
+        if (interval > 0) {
+            playlistWorker = scheduler.createWorker();
+            playlistWorker.schedule(() -> {
+                // The worker must not be unsubscribed from its own action
+                playlistWorker = null;
+                advancePlaylist();
+            }, interval, TimeUnit.SECONDS);
+        }
+    }
+    
+    private void advancePlaylist() {
+        if (!playlistPlaying) return;
+        int index = nextPlaylistIndex();
+        if (index < 0) {
+            stopPlaylist();
+            return;
+        }
+        try {
+            playPreset(index);
+        } catch (Exception e) {
+            System.out.println("Stopping the playlist, can not play preset "
+                + presets.getPlaylist().get(index) + ": " + e.getMessage());
+        }
+    }
+    
+    private void stopPlaylist() {
+        playlistPlaying = false;
+        if (playlistWorker != null) {
+            playlistWorker.unsubscribe();
+            playlistWorker = null;
+        }
+    }
+    
+    /**
+     * Shows the script of a preset. A warm script is moved from its offscreen
+     * device to the LEDs together with its last frame, everything else is
+     * started like by setScript.
+     */
+    private void showPreset(String name) throws Exception {
+        PresetStore.Preset preset = presets.get(name);
+        if (preset == null) throw new RuntimeException("Invalid preset " + name);
+        final long start = System.nanoTime();
+        
+        leaveExternalMode(true);
+        Standby warm = standby.remove(name);
+        if (warm != null && !isCurrent(name, warm)) {
+            warm.context.cancel();
+            warm = null;
+        }
+        if (warm != null) {
+            stopActiveScript(true);
+            warm.context.setOutput(api);
+            activeScript = warm.context;
+            activeScriptInfo = warm.context.getScriptInformation();
+            mode = Mode.Script;
+            warmSwitches++;
+        } else {
+            startScript(preset.script, preset.parameters);
+            coldSwitches++;
+        }
+        long nanos = System.nanoTime() - start;
+        switchNanos = nanos;
+        if (nanos > maxSwitchNanos) maxSwitchNanos = nanos;
+        System.out.println("Switched to preset " + name + (warm != null ? " (warm)" : "")
+            + " in " + nanos / 1000 + " us");
+        
+        resumeScriptName = preset.script;
+        resumeScriptParams = preset.parameters;
+        activePreset = name;
+        presets.used(name);
+        publishState();
+        updateStandby();
+    }
+    
+    /**
+     * Checks if a warm script still matches its preset and the loaded script
+     */
+    private boolean isCurrent(String name, Standby entry) {
+        return entry.preset == presets.get(name)
+            && entry.script == scriptManager.getScript(entry.preset.script)
+            && !entry.context.getCompletionFuture().isDone();
+    }
+    
+    /**
+     * Starts and stops the offscreen scripts, so that the most used presets
+     * and the next one of the playlist are warm
+     */
+    private void updateStandby() {
+        Set<String> wanted = new LinkedHashSet<>();
+        // Scripts in worker processes have no offscreen device
+        if (supervisor == null && standbyCount > 0) {
+            if (playlistPlaying) {
+                int next = nextPlaylistIndex();
+                if (next >= 0) wanted.add(presets.getPlaylist().get(next));
+            }
+            wanted.addAll(presets.mostUsed(standbyCount));
+        }
+        if (mode == Mode.Script && activePreset != null) wanted.remove(activePreset);
         
-        stateSubject.onNext(createStateJson());
+        Iterator<Map.Entry<String, Standby>> it = standby.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Standby> e = it.next();
+            if (!wanted.contains(e.getKey()) || !isCurrent(e.getKey(), e.getValue())) {
+                e.getValue().context.cancel();
+                it.remove();
+            }
+        }
+        
+        for (String name : wanted) {
+            if (standby.containsKey(name)) continue;
+            PresetStore.Preset preset = presets.get(name);
+            ScriptInformation script = scriptManager.getScript(preset.script);
+            if (script == null) continue;
+            try {
+                ScriptContext context = new ScriptContext(scriptSchedulerFactory,
+                    new OffscreenDevice(api), audio, script, preset.parameters);
+                context.run();
+                standby.put(name, new Standby(preset, script, context));
+            } catch (Exception e) {
+                System.out.println("Can not keep preset " + name + " warm: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Stops all scripts including the warm ones, e.g. before the server exits
+     */
+    public CompletableFuture<Void> shutdown() {
+        return batch(ops -> {
+            standbyCount = 0;
+            ops.stop();
+            return null;
+        });
     }
     
     @Override
     public CompletableFuture<String> getStateAsJson() {
-        final CompletableFuture<String> f = new CompletableFuture<>();
-        scheduler.createWorker().schedule(() -> {
-            f.complete(createStateJson());
-        });
-        return f;
+        return batch(Operations::getStateAsJson);
+    }
+    
+    @Override
+    public CompletableFuture<Map<String,Object>> getMetrics() {
+        CompletableFuture<Map<String,Object>> c = new CompletableFuture<>();
+        c.complete(metrics.snapshot());
+        return c;
+    }
+    
+    @Override
+    public FrameBuffer getCurrentFrame(FrameBuffer dest) {
+        int count = api.getLedCount();
+        if (dest == null || dest.size() != count) dest = new FrameBuffer(count);
+        api.getPreviousFrame(0, dest);
+        return dest;
+    }
+    
+    /**
+     * Returns the top level members of the state except the scripts
+     */
+    private Map<String,String> createStateMembers() {
+        Map<String,String> members = new LinkedHashMap<>();
+        if (mode == Mode.Script) members.put("mode", "\"script\"");
+        else if (mode == Mode.External) members.put("mode", "\"external\"");
+        else members.put("mode", "\"none\"");
+        members.put("active_script", mode == Mode.Script ? activeScriptInfo.toJson() : "{}");
+        members.put("preset", mode == Mode.Script && activePreset != null ? JsonString.quote(activePreset) : "null");
+        if (mode == Mode.External) {
+            String source;
+            int priority;
+            synchronized (externalLock) {
+                source = externalSource;
+                priority = externalPriority;
+            }
+            members.put("external", "{\"source\": " + (source == null ? "null" : JsonString.quote(source))
+                + ", \"priority\": " + priority + "}");
+        }
+        StringBuilder s = new StringBuilder();
+        s.append("{\"brightness\": ");
+        s.append(outputCorrection.getBrightness());
+        s.append(", \"gamma\": ");
+        s.append(outputCorrection.getGamma());
+        s.append(", \"temperature\": ");
+        s.append(outputCorrection.getTemperature());
+        double[] balance = outputCorrection.getWhiteBalance();
+        s.append(", \"whiteBalance\": [");
+        s.append(balance[0]).append(", ").append(balance[1]).append(", ").append(balance[2]);
+        s.append("]}");
+        members.put("output", s.toString());
+        return members;
     }
     
     private String createStateJson() {
+        return createStateJson(createStateMembers());
+    }
+    
+    private String createStateJson(Map<String,String> members) {
         StringBuilder s = new StringBuilder();
         s.append("{");
-        s.append("\"mode\": \"");
-        if (mode == Mode.Script) s.append("script");
-        else s.append("none");
-        s.append("\", \"active_script\": ");
-        if (mode == Mode.Script) {
-            s.append(activeScript.getScriptInformation().toJson());
-        }
-        else s.append("{}");
-        s.append(", \"available_scripts\": [");
+        members.forEach((name, value) -> s.append('"').append(name).append("\": ").append(value).append(", "));
+        s.append("\"available_scripts\": [");
         s.append(availableScripts.values().stream()
                 .map(ScriptInformation::toJson)
                 .collect(Collectors.joining(", ")));
@@ -178,9 +959,51 @@ public class Controller implements IController {
         return s.toString();
     }
     
-    BehaviorSubject<String> stateSubject = BehaviorSubject.create("{}");
+    /**
+     * Announces the current state if it changed. While a batch runs this is
+     * deferred until it finished, so a batch which is rolled back doesn't
+     * announce its intermediate states.
+     */
+    private void publishState() {
+        if (batchRunning) {
+            statePending = true;
+            return;
+        }
+        statePending = false;
+        Map<String,String> members = createStateMembers();
+        String patch = versionedState.update(members, availableScripts);
+        if (patch == null) return;
+        // The whole state is only built for observers, see getStateAsJson()
+        if (stateObservers.get() > 0) stateSubject.onNext(createStateJson(members));
+        statePatchSubject.onNext(patch);
+    }
+    
+    @Override
+    public CompletableFuture<String> getStateSince(long version) {
+        return batch(ops -> versionedState.since(version));
+    }
+    
+    @Override
+    public CompletableFuture<String> getScriptSchemas(Collection<String> names) {
+        return batch(ops -> versionedState.scriptSchemas(names));
+    }
+    
+    final VersionedState versionedState = new VersionedState();
+    // Only accessed from the controller thread
+    boolean batchRunning = false;
+    boolean statePending = false;
+    PublishSubject<String> stateSubject = PublishSubject.create();
+    final AtomicInteger stateObservers = new AtomicInteger();
+    PublishSubject<String> statePatchSubject = PublishSubject.create();
+    
+    @Override
+    public Observable<String> statePatches() {
+        return statePatchSubject;
+    }
     
     public Observable<String> stateChanged() {
-        return stateSubject;
+        return stateSubject
+            .doOnSubscribe(stateObservers::incrementAndGet)
+            .doOnUnsubscribe(stateObservers::decrementAndGet);
     }
 }
@@ -16,22 +16,158 @@
 
 package adalightserver;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 import rx.Observable;
+import adalightserver.types.FrameBuffer;
 
 public interface IController {
+    
+    /**
+     * The operations of the controller which can be combined in a batch.
+     * They run directly on the controller thread and must only be used
+     * while the batch runs.
+     */
+    interface Operations {
+        void setScript(String scriptName, Map<String,String> params) throws Exception;
+        String getCurrentScript();
+        List<String> getAvailableScripts();
+        void setOutputCorrection(Map<String,Double> settings);
+        String getStateAsJson();
+        Map<String,Object> getMetrics();
+        void applyPreset(String name) throws Exception;
+        void stop();
+        
+        // Preconditions, which let a batch check all of its operations
+        // before it changes anything
+        boolean isValidScript(String scriptName);
+        boolean isValidPreset(String name);
+        boolean isValidOutputCorrection(Map<String,Double> settings);
+        
+        /**
+         * Saves the script, preset, playlist and output correction, so a
+         * batch can undo its operations if one of them fails
+         */
+        Snapshot snapshot();
+    }
+    
+    interface Snapshot {
+        /**
+         * Returns to the saved state. A script which was stopped in the
+         * meantime is started again with the same parameters.
+         */
+        void restore();
+    }
+    
+    interface Batch<T> {
+        T run(Operations ops) throws Exception;
+    }
+    
+    /**
+     * Runs batch on the controller thread, so no other request runs between
+     * the operations it calls. The future fails if batch throws.
+     */
+    <T> CompletableFuture<T> batch(Batch<T> batch);
 
     CompletableFuture<Void> setScript(String scriptName, Map<String,String> params);
     CompletableFuture<String> getCurrentScript();
     CompletableFuture<List<String>> getAvailableScripts();
     
+    /**
+     * Changes the output correction while the current script keeps running.
+     * Supported keys are brightness, gamma, temperature, red, green and blue.
+     */
+    CompletableFuture<Void> setOutputCorrection(Map<String,Double> settings);
+    
+    /**
+     * Shows a frame which was produced outside of the server. Is called
+     * directly from IO threads and doesn't block.
+     *
+     * The first frame stops the running script. A source is ignored while
+     * another source with the same or a higher priority sent frames within
+     * the timeout. Once all sources time out the last script is resumed.
+     *
+     * @param source Identifies the sender, e.g. its address
+     * @param rgb 3 bytes per LED, only read during the call
+     * @return false if the frame was rejected because of the priority
+     */
+    boolean pushExternalFrame(String source, int priority, ByteBuffer rgb);
+    
     CompletableFuture<String> getStateAsJson();
     
+    /**
+     * Returns the current values of all registered metrics
+     */
+    CompletableFuture<Map<String,Object>> getMetrics();
+    
+    /**
+     * Copies the frame which is currently shown on the LEDs. dest is reused
+     * if it has the size of the current LED count, otherwise a new buffer
+     * is returned.
+     */
+    FrameBuffer getCurrentFrame(FrameBuffer dest);
+    
+    /**
+     * Emits the whole state, including the parameters of all scripts, on each
+     * change. It is only built while observed, the current state is returned
+     * by {@link #getStateAsJson()}.
+     */
     Observable<String> stateChanged();
     
+    /**
+     * Emits each change of the versioned state as {"version": n, "ops": [...]}
+     * with JSON patch operations. The available scripts are only listed with
+     * the revision of their schema.
+     */
+    Observable<String> statePatches();
+    
+    /**
+     * Returns the changes after version as one patch, or the whole versioned
+     * state as {"version": n, "state": {...}} if they are no longer known
+     */
+    CompletableFuture<String> getStateSince(long version);
+    
+    /**
+     * Returns the parameter schemas of the given scripts or all scripts if
+     * names is null
+     */
+    CompletableFuture<String> getScriptSchemas(Collection<String> names);
+    
+    /**
+     * Returns the presets, the playlist and the active preset
+     */
+    CompletableFuture<Map<String,Object>> getPresets();
+    
+    /**
+     * Stores a script with its parameters under name. An existing preset
+     * is replaced.
+     */
+    CompletableFuture<Void> savePreset(String name, String scriptName, Map<String,String> params);
+    
+    CompletableFuture<Void> deletePreset(String name);
+    
+    /**
+     * Runs the script of the preset. Presets which are kept warm are shown
+     * immediately without restarting their script.
+     */
+    CompletableFuture<Void> applyPreset(String name);
+    
+    /**
+     * Sets the playlist and applies its first preset. The playlist advances
+     * every intervalSeconds, or only on nextPreset if it is 0. An empty list
+     * stops the playlist.
+     */
+    CompletableFuture<Void> setPlaylist(List<String> presets, int intervalSeconds);
+    
+    /**
+     * Applies the next preset of the playlist
+     */
+    CompletableFuture<Void> nextPreset();
+    
     CompletableFuture<Void> stop();
 
 }
\ No newline at end of file
@@ -18,27 +18,102 @@ package adalightserver;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
+import adalightserver.audio.AudioAnalyzer;
+import adalightserver.audio.PcmInput;
 import adalightserver.device.AdalightDevice;
 import adalightserver.device.IpAdalightDevice;
+import adalightserver.device.PixelFormat;
+import adalightserver.device.PowerLimiter;
 import adalightserver.device.SerialAdalightDevice;
+import adalightserver.device.SharedFrameBuffer;
 import adalightserver.http.HttpServer;
+import adalightserver.http.UdpFrameServer;
 import adalightserver.scripting.ScriptManager;
+import adalightserver.scripting.ScriptSupervisor;
+import adalightserver.types.AudioApi;
 import adalightserver.types.ColorRgb;
+import adalightserver.types.PixelLayout;
 
 public class Main {
     
     private static void printUsageHelp() {
-        System.out.println("Usage: adalightserver nrLeds mode [serialport | [hostname port]]");
+        System.out.println("Usage: adalightserver [options] nrLeds mode [serialport | [hostname port]]");
         System.out.println("nrLeds (integer): Number of connected LEDs");
         System.out.println("mode   (string) : ip or serial.");
         System.out.println("  In case of serial the name of the serial port must follow");
         System.out.println("  In case of ip the hostname and the port number of the ip2serial");
         System.out.println("  daemon must follow");
+        System.out.println("Options:");
+        System.out.println("  --dither[=interval] : Use 16 bits per channel internally and reduce");
+        System.out.println("                        them with temporal dithering. The frame is sent");
+        System.out.println("                        at least every interval ms (default 10)");
+        System.out.println("  --format=name       : The channel order of the LEDs: rgb, rbg, grb, gbr,");
+        System.out.println("                        brg, bgr, rgbw, grbw, rgb16 or grb16 (default rgb)");
+        System.out.println("  --history=frames    : The number of flushed frames which scripts can");
+        System.out.println("                        read back (default 4)");
+        System.out.println("  --layout=file       : Load the physical placement of the LEDs from file");
+        System.out.println("  --audio=source      : Analyze audio for music reactive scripts. source is");
+        System.out.println("                        a WAV file, a named pipe with raw 16 bit PCM or -");
+        System.out.println("                        for raw PCM on stdin");
+        System.out.println("  --audio-rate=hz     : The sample rate of raw PCM (default 44100)");
+        System.out.println("  --audio-channels=n  : The number of channels of raw PCM (default 2)");
+        System.out.println("  --udp=port          : Receive external frames as UDP packets on port");
+        System.out.println("  --shm=file          : Create a shared memory frame buffer for local");
+        System.out.println("                        producers, e.g. /dev/shm/adalight");
+        System.out.println("  --external-timeout=ms : The time without external frames after which");
+        System.out.println("                        the last script is resumed (default 1000)");
+        System.out.println("  --isolate-scripts   : Run each script in its own worker process");
+        System.out.println("  --worker-heap=MB    : The maximum heap of a script worker (default 64)");
+        System.out.println("  --power-budget=mA   : Scale frames down so that the estimated current");
+        System.out.println("                        stays below the budget");
+        System.out.println("  --led-current=mA    : The current of one channel at full brightness");
+        System.out.println("                        (default 20)");
+        System.out.println("  --idle-current=mA   : The current of one LED while it is off (default 1)");
+        System.out.println("  --presets=file      : The file in which presets are stored");
+        System.out.println("                        (default presets.json)");
+        System.out.println("  --standby=n         : The number of most used presets which are kept");
+        System.out.println("                        running offscreen (default 2)");
         System.out.println("");
     }
     
+    /**
+     * Moves all arguments of the form --name or --name=value from args into options
+     */
+    private static String[] parseOptions(String[] args, Map<String, String> options) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int sep = arg.indexOf('=');
+                if (sep < 0) options.put(arg.substring(2), "");
+                else options.put(arg.substring(2, sep), arg.substring(sep + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        return positional.toArray(new String[positional.size()]);
+    }
+    
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null || value.isEmpty()) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Can not convert " + value + " to a number for option " + name);
+            return defaultValue;
+        }
+    }
+    
     public static void main(String [] args) {
+        Map<String, String> options = new HashMap<>();
+        args = parseOptions(args, options);
+        
         if (args.length < 3) {
             printUsageHelp();
             return;
@@ -93,6 +168,28 @@ public class Main {
         try {
             device.open();
             device.setLedCount(ledCount);
+            if (options.containsKey("layout")) {
+                PixelLayout layout = PixelLayout.load(Paths.get(options.get("layout")));
+                if (layout.size() != ledCount) {
+                    System.out.println("The layout contains " + layout.size() + " instead of " + ledCount + " LEDs");
+                    device.close();
+                    return;
+                }
+                device.setLayout(layout);
+            }
+            if (options.containsKey("history")) {
+                device.setHistoryDepth(Math.max(1, intOption(options, "history", 4)));
+            }
+            if (options.containsKey("format")) {
+                device.setPixelFormat(PixelFormat.parse(options.get("format")));
+            }
+            if (options.containsKey("dither")) {
+                device.setHighDepth(true, intOption(options, "dither", 10));
+            }
+            device.getPowerLimiter().configure(
+                intOption(options, "power-budget", 0),
+                intOption(options, "led-current", 20),
+                intOption(options, "idle-current", 1));
             device.setAllLedsToColor(new ColorRgb(0,0,0));
             device.flush();
         }
@@ -104,18 +201,113 @@ public class Main {
         ScriptManager scriptManager = new ScriptManager(Paths.get("scripts"));
         scriptManager.startWatch();
         
-        IController controller = new Controller(device, scriptManager);
+        Metrics metrics = new Metrics();
+        AudioApi audio = AudioApi.SILENT;
+        AudioAnalyzer audioAnalyzer = null;
+        String audioSource = options.get("audio");
+        if (audioSource != null) {
+            try {
+                PcmInput input = PcmInput.open(audioSource,
+                    intOption(options, "audio-rate", 44100), intOption(options, "audio-channels", 2));
+                audioAnalyzer = new AudioAnalyzer(input);
+                audioAnalyzer.start();
+                audio = audioAnalyzer;
+                metrics.register("audio.blockMillis", audioAnalyzer::getBlockMillis);
+                metrics.register("audio.processingMicros", audioAnalyzer::getProcessingMicros);
+                metrics.register("audio.readAgeMicros", audioAnalyzer::getReadAgeMicros);
+                metrics.register("audio.maxReadAgeMicros", audioAnalyzer::getMaxReadAgeMicros);
+                metrics.register("audio.droppedFrames", audioAnalyzer::getDroppedFrames);
+            } catch (IOException e) {
+                System.out.println("Can not open audio input " + audioSource + ": " + e.getMessage());
+            }
+        }
+        
+        PowerLimiter powerLimiter = device.getPowerLimiter();
+        metrics.register("power.milliamps", powerLimiter::getEstimatedMilliamps);
+        metrics.register("power.budget", powerLimiter::getBudgetMilliamps);
+        metrics.register("power.limitedFrames", powerLimiter::getLimitedFrames);
+        
+        Controller controller = new Controller(device, scriptManager, device.getOutputCorrection(), metrics, audio);
+        controller.setExternalTimeout(intOption(options, "external-timeout", 1000));
+        
+        String presetFile = options.get("presets");
+        PresetStore presets = new PresetStore(Paths.get(presetFile == null || presetFile.isEmpty()
+            ? "presets.json" : presetFile));
+        try {
+            presets.load();
+        } catch (IOException e) {
+            System.out.println("Can not load the presets: " + e.getMessage());
+        }
+        
+        ScriptSupervisor supervisor = null;
+        if (options.containsKey("isolate-scripts")) {
+            List<String> workerOptions = new ArrayList<>();
+            if (options.containsKey("layout")) {
+                workerOptions.add("--layout=" + Paths.get(options.get("layout")).toAbsolutePath());
+            }
+            if (options.containsKey("history")) {
+                workerOptions.add("--history=" + intOption(options, "history", 4));
+            }
+            supervisor = new ScriptSupervisor(device, Paths.get("scripts"), workerOptions,
+                intOption(options, "worker-heap", 64));
+            controller.setScriptSupervisor(supervisor);
+            metrics.register("worker.restarts", supervisor::getRestarts);
+            metrics.register("worker.frames", supervisor::getFrameCount);
+            metrics.register("worker.cpuPercent", supervisor::getCpuPercent);
+            metrics.register("worker.heapUsedMB", supervisor::getHeapUsedMegabytes);
+            metrics.register("worker.heapMaxMB", supervisor::getHeapMaxMegabytes);
+        }
+        controller.setPresetStore(presets, intOption(options, "standby", 2));
         HttpServer server = new HttpServer(controller);
         server.start();
         
+        SharedFrameBuffer sharedFrames = null;
+        if (options.containsKey("shm")) {
+            try {
+                sharedFrames = SharedFrameBuffer.create(Paths.get(options.get("shm")), ledCount);
+                String source = "shm:" + sharedFrames.getPath();
+                device.setSharedFrameBuffer(sharedFrames,
+                    (priority, rgb) -> controller.pushExternalFrame(source, priority, rgb));
+            } catch (IOException e) {
+                System.out.println("Can not create the shared frame buffer: " + e);
+            }
+        }
+        
+        UdpFrameServer udpServer = null;
+        if (options.containsKey("udp")) {
+            udpServer = new UdpFrameServer(controller, intOption(options, "udp", 7777));
+            try {
+                udpServer.start();
+            } catch (Exception e) {
+                System.out.println("Can not receive UDP frames: " + e);
+                udpServer = null;
+            }
+        }
+        
         try {
-            System.in.read();
-        } catch (IOException e) {}
+            if (audioAnalyzer != null && audioSource.equals("-")) {
+                // stdin carries the audio, so run until it ends
+                audioAnalyzer.join();
+            } else {
+                System.in.read();
+            }
+        } catch (IOException | InterruptedException e) {}
     
         server.stop();
-        controller.stop();
+        if (udpServer != null) udpServer.stop();
+        if (sharedFrames != null) {
+            device.setSharedFrameBuffer(null, null);
+            try {
+                sharedFrames.close();
+            } catch (IOException e) {}
+        }
+        try {
+            controller.shutdown().get();
+        } catch (InterruptedException | ExecutionException e) {}
+        presets.close();
         
         scriptManager.stopWatch();
+        if (audioAnalyzer != null) audioAnalyzer.stop();
         
         device.close();
 	}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A registry of named gauges which are read on request.
+ *
+ * Components keep their measurements in their own (volatile) fields and
+ * register a supplier for them, so recording a value never costs more than
+ * a field write.
+ */
+public class Metrics {
+
+    private final Map<String, Supplier<?>> gauges = new LinkedHashMap<>();
+
+    public synchronized void register(String name, Supplier<?> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public synchronized void unregister(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Reads all gauges
+     */
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Supplier<?>> e : gauges.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        return values;
+    }
+}
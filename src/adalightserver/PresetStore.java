@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+
+/**
+ * Named presets of a script with its parameters and a playlist of presets.
+ *
+ * They are stored as JSON in a file, which is written in the background
+ * after each change. Without a file they are only kept in memory. Must only
+ * be used from one thread, e.g. the controller thread.
+ */
+public class PresetStore {
+    
+    public static class Preset {
+        public final String script;
+        public final Map<String,String> parameters;
+        /** How often the preset was applied */
+        long uses;
+        
+        public Preset(String script, Map<String,String> parameters) {
+            this.script = script;
+            this.parameters = Collections.unmodifiableMap(new LinkedHashMap<>(parameters));
+        }
+    }
+    
+    private final Path path;
+    private final Map<String, Preset> presets = new LinkedHashMap<>();
+    private final List<String> playlist = new ArrayList<>();
+    /** The seconds after which the playlist advances, 0 if only on request */
+    private int playlistInterval = 0;
+    
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "PresetWriter");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    /**
+     * @param path The file in which the presets are stored or null
+     */
+    public PresetStore(Path path) {
+        this.path = path;
+    }
+    
+    /**
+     * Reads the presets from the file. A missing file is no error.
+     */
+    public void load() throws IOException {
+        if (path == null || !Files.exists(path)) return;
+        Object json;
+        try {
+            json = new JsonSlurper().parseText(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid presets in " + path + ": " + e.getMessage());
+        }
+        if (!(json instanceof Map<?,?>)) throw new IOException("Invalid presets in " + path);
+        Map<?,?> root = (Map<?,?>) json;
+        
+        presets.clear();
+        playlist.clear();
+        if (root.get("presets") instanceof Map<?,?>) {
+            for (Map.Entry<?,?> e : ((Map<?,?>) root.get("presets")).entrySet()) {
+                if (!(e.getValue() instanceof Map<?,?>)) continue;
+                Map<?,?> p = (Map<?,?>) e.getValue();
+                if (!(p.get("script") instanceof String)) continue;
+                Map<String,String> parameters = new LinkedHashMap<>();
+                if (p.get("parameters") instanceof Map<?,?>) {
+                    ((Map<?,?>) p.get("parameters")).forEach((k, v) -> parameters.put(k.toString(), v.toString()));
+                }
+                Preset preset = new Preset((String) p.get("script"), parameters);
+                if (p.get("uses") instanceof Number) preset.uses = ((Number) p.get("uses")).longValue();
+                presets.put(e.getKey().toString(), preset);
+            }
+        }
+        if (root.get("playlist") instanceof List<?>) {
+            for (Object name : (List<?>) root.get("playlist")) {
+                if (presets.containsKey(name)) playlist.add((String) name);
+            }
+        }
+        if (root.get("interval") instanceof Number) {
+            playlistInterval = Math.max(0, ((Number) root.get("interval")).intValue());
+        }
+    }
+    
+    public Preset get(String name) {
+        return presets.get(name);
+    }
+    
+    public void put(String name, Preset preset) {
+        presets.put(name, preset);
+        save();
+    }
+    
+    /**
+     * Removes the preset, also from the playlist
+     */
+    public boolean remove(String name) {
+        if (presets.remove(name) == null) return false;
+        playlist.removeIf(name::equals);
+        save();
+        return true;
+    }
+    
+    /**
+     * Counts that the preset was applied
+     */
+    public void used(String name) {
+        Preset preset = presets.get(name);
+        if (preset == null) return;
+        preset.uses++;
+        save();
+    }
+    
+    /**
+     * Returns up to count presets which were applied at least once, the most
+     * used first
+     */
+    public List<String> mostUsed(int count) {
+        return presets.entrySet().stream()
+            .filter(e -> e.getValue().uses > 0)
+            .sorted((a, b) -> Long.compare(b.getValue().uses, a.getValue().uses))
+            .limit(count)
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList());
+    }
+    
+    public List<String> getPlaylist() {
+        return Collections.unmodifiableList(playlist);
+    }
+    
+    public int getPlaylistInterval() {
+        return playlistInterval;
+    }
+    
+    /**
+     * Sets the playlist. All presets must exist.
+     */
+    public void setPlaylist(List<String> names, int interval) {
+        playlist.clear();
+        playlist.addAll(names);
+        playlistInterval = Math.max(0, interval);
+        save();
+    }
+    
+    /**
+     * Returns the presets and the playlist in the format of the file
+     */
+    public Map<String,Object> toMap() {
+        Map<String,Object> p = new LinkedHashMap<>();
+        presets.forEach((name, preset) -> {
+            Map<String,Object> entry = new LinkedHashMap<>();
+            entry.put("script", preset.script);
+            entry.put("parameters", new LinkedHashMap<>(preset.parameters));
+            entry.put("uses", preset.uses);
+            p.put(name, entry);
+        });
+        Map<String,Object> root = new LinkedHashMap<>();
+        root.put("presets", p);
+        root.put("playlist", new ArrayList<>(playlist));
+        root.put("interval", playlistInterval);
+        return root;
+    }
+    
+    private void save() {
+        if (path == null) return;
+        final String json = JsonOutput.prettyPrint(JsonOutput.toJson(toMap()));
+        writer.execute(() -> {
+            try {
+                // Replace the file at once, so it is never half written
+                Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+                Files.write(tmp, json.getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.out.println("Can not save the presets to " + path + ": " + e);
+            }
+        });
+    }
+    
+    /**
+     * Waits until the pending changes are written
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import adalightserver.scripting.ScriptInformation;
+import adalightserver.types.JsonString;
+
+/**
+ * The state of the controller with a version which increases on each change.
+ *
+ * The state is a JSON object with a fixed set of top level members, plus
+ * available_scripts, which maps the name of each script to the revision of
+ * its parameter schema. Changes are described as JSON patch operations on
+ * this object. The last changes are kept, so that clients which missed a
+ * few of them can catch up without fetching the whole state. The schemas of
+ * the scripts are not part of the state and are fetched on demand.
+ *
+ * All members are given as JSON strings and are only compared, not parsed.
+ * Names are quoted with {@link JsonString}.
+ */
+final class VersionedState {
+    /** The number of changes which are kept for clients to catch up */
+    static final int MAX_PATCHES = 64;
+
+    private static class Patch {
+        final long version;
+        final String ops;
+
+        Patch(long version, String ops) {
+            this.version = version;
+            this.ops = ops;
+        }
+    }
+
+    private long version = 0;
+    private Map<String, String> members = new LinkedHashMap<>();
+    private Map<String, ScriptInformation> scripts = new TreeMap<>();
+    private final Map<String, Long> scriptRevisions = new HashMap<>();
+    private long nextRevision = 1;
+    private final ArrayDeque<Patch> patches = new ArrayDeque<>();
+
+    /**
+     * Replaces the state.
+     *
+     * @param newMembers The top level members, missing ones are removed
+     * @return The change as {"version": n, "ops": [...]} or null if nothing changed
+     */
+    synchronized String update(Map<String, String> newMembers, Map<String, ScriptInformation> newScripts) {
+        StringBuilder ops = new StringBuilder();
+        for (Map.Entry<String, String> e : members.entrySet()) {
+            if (!newMembers.containsKey(e.getKey())) {
+                appendOp(ops, "remove", pointer(e.getKey()), null);
+            }
+        }
+        for (Map.Entry<String, String> e : newMembers.entrySet()) {
+            String old = members.get(e.getKey());
+            if (old == null) appendOp(ops, "add", pointer(e.getKey()), e.getValue());
+            else if (!old.equals(e.getValue())) appendOp(ops, "replace", pointer(e.getKey()), e.getValue());
+        }
+
+        Map<String, ScriptInformation> sortedScripts = new TreeMap<>(newScripts);
+        for (String name : scripts.keySet()) {
+            if (!sortedScripts.containsKey(name)) {
+                scriptRevisions.remove(name);
+                appendOp(ops, "remove", "/available_scripts/" + escape(name), null);
+            }
+        }
+        for (Map.Entry<String, ScriptInformation> e : sortedScripts.entrySet()) {
+            String name = e.getKey();
+            ScriptInformation old = scripts.get(name);
+            if (old == e.getValue()) continue;
+            if (old != null && old.toJson().equals(e.getValue().toJson())) continue;
+            long revision = nextRevision++;
+            scriptRevisions.put(name, revision);
+            appendOp(ops, old == null ? "add" : "replace",
+                "/available_scripts/" + escape(name), Long.toString(revision));
+        }
+
+        members = new LinkedHashMap<>(newMembers);
+        scripts = sortedScripts;
+        if (ops.length() == 0) return null;
+
+        version++;
+        patches.addLast(new Patch(version, ops.toString()));
+        if (patches.size() > MAX_PATCHES) patches.removeFirst();
+        return "{\"version\": " + version + ", \"ops\": [" + ops + "]}";
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the whole state as {"version": n, "state": {...}}
+     */
+    synchronized String snapshot() {
+        StringBuilder s = new StringBuilder();
+        s.append("{\"version\": ").append(version).append(", \"state\": {");
+        for (Map.Entry<String, String> e : members.entrySet()) {
+            JsonString.append(s, e.getKey()).append(": ").append(e.getValue()).append(", ");
+        }
+        s.append("\"available_scripts\": {");
+        boolean first = true;
+        for (String name : scripts.keySet()) {
+            if (!first) s.append(", ");
+            first = false;
+            JsonString.append(s, name).append(": ").append(scriptRevisions.get(name));
+        }
+        s.append("}}}");
+        return s.toString();
+    }
+
+    /**
+     * Returns the changes after the given version in one patch, or the
+     * whole state if these changes are no longer kept
+     */
+    synchronized String since(long clientVersion) {
+        if (clientVersion == version) return "{\"version\": " + version + ", \"ops\": []}";
+        if (clientVersion > version || patches.isEmpty()
+            || patches.peekFirst().version > clientVersion + 1) {
+            return snapshot();
+        }
+        StringBuilder ops = new StringBuilder();
+        for (Iterator<Patch> it = patches.iterator(); it.hasNext();) {
+            Patch p = it.next();
+            if (p.version <= clientVersion) continue;
+            if (ops.length() > 0) ops.append(", ");
+            ops.append(p.ops);
+        }
+        return "{\"version\": " + version + ", \"ops\": [" + ops + "]}";
+    }
+
+    /**
+     * Returns the schemas of the given scripts (all if names is null) as
+     * {"name": {"revision": n, "info": {...}}}. Unknown names are skipped.
+     */
+    synchronized String scriptSchemas(Collection<String> names) {
+        StringBuilder s = new StringBuilder("{");
+        boolean first = true;
+        for (String name : names == null ? scripts.keySet() : names) {
+            ScriptInformation info = scripts.get(name);
+            if (info == null) continue;
+            if (!first) s.append(", ");
+            first = false;
+            JsonString.append(s, name).append(": {\"revision\": ").append(scriptRevisions.get(name))
+             .append(", \"info\": ").append(info.toJson()).append('}');
+        }
+        return s.append('}').toString();
+    }
+
+    private static void appendOp(StringBuilder ops, String op, String path, String value) {
+        if (ops.length() > 0) ops.append(", ");
+        ops.append("{\"op\": \"").append(op).append("\", \"path\": ");
+        JsonString.append(ops, path);
+        if (value != null) ops.append(", \"value\": ").append(value);
+        ops.append('}');
+    }
+
+    private static String pointer(String member) {
+        return "/" + escape(member);
+    }
+
+    /**
+     * Escapes a name for use in a JSON pointer
+     */
+    private static String escape(String name) {
+        return name.replace("~", "~0").replace("/", "~1");
+    }
+}
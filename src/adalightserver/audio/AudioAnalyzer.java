@@ -0,0 +1,360 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.audio;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import adalightserver.types.AudioApi;
+import adalightserver.types.AudioFrame;
+
+/**
+ * Analyzes PCM input on a dedicated thread and publishes the results to
+ * scripts.
+ *
+ * The input is processed in blocks of HOP samples. For each block the last
+ * FFT_SIZE samples are windowed and transformed, and the energies of
+ * logarithmically spaced frequency bands, the loudness and bass beats are
+ * computed. All buffers are allocated up front.
+ *
+ * The results are published through a sequence lock, so readers never block
+ * the audio thread and never see results of two different blocks. The shared
+ * values are stored in an AtomicLongArray, which makes every single write
+ * ordered against the sequence number.
+ *
+ * The delay between a sample and the results containing it is bounded by
+ * the duration of one block plus the processing time. If the input delivers
+ * samples faster than they are processed the oldest ones are dropped.
+ */
+public class AudioAnalyzer implements AudioApi {
+    public static final int FFT_SIZE = 1024;
+    public static final int HOP = 512;
+    public static final int BAND_COUNT = 16;
+
+    private static final double MIN_FREQUENCY = 40.0;
+    private static final double MAX_FREQUENCY = 16000.0;
+    /** Bands up to this frequency count as bass for the beat detection */
+    private static final double BASS_FREQUENCY = 150.0;
+    /** Per block decay of the maximum, to which band levels are relative */
+    private static final double PEAK_DECAY = 0.998;
+    private static final double MIN_PEAK = 1.0;
+    private static final int BEAT_HISTORY = 86;
+    private static final double BEAT_THRESHOLD = 1.5;
+    /** The minimum time between two beats in seconds */
+    private static final double MIN_BEAT_INTERVAL = 0.2;
+    private static final int MAX_BACKLOG = 2 * HOP;
+
+    // Indices into the shared array
+    private static final int CAPTURE = 0;
+    private static final int RMS = 1;
+    private static final int PEAK = 2;
+    private static final int BEATS = 3;
+    private static final int STRENGTH = 4;
+    private static final int BANDS = 5;
+
+    private final PcmInput input;
+    private final int sampleRate;
+    private final Fft fft = new Fft(FFT_SIZE);
+    private final double[] window = new double[FFT_SIZE];
+    private final double[] samples = new double[FFT_SIZE];
+    private final double[] re = new double[FFT_SIZE];
+    private final double[] im = new double[FFT_SIZE];
+    private final int[] bandStart = new int[BAND_COUNT];
+    private final int[] bandEnd = new int[BAND_COUNT];
+    private final int bassBands;
+    private final double[] bandMax = new double[BAND_COUNT];
+    private final double[] bassHistory = new double[BEAT_HISTORY];
+    private int historyPos = 0;
+    private int historyCount = 0;
+    private long beatCount = 0;
+    private double beatStrength = 0.0;
+    /** The block in which the last beat was detected. Beats are timed in
+     *  samples, so that files can be analyzed faster than real time. */
+    private long lastBeatBlock = Long.MIN_VALUE / 2;
+    private final long minBeatBlocks;
+
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final AtomicLongArray shared = new AtomicLongArray(BANDS + BAND_COUNT);
+
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    // Measurements
+    private volatile long blocks = 0;
+    private volatile long droppedFrames = 0;
+    private volatile long processingNanos = 0;
+    private volatile long readAgeNanos = 0;
+    private volatile long maxReadAgeNanos = 0;
+
+    public AudioAnalyzer(PcmInput input) {
+        this.input = input;
+        this.sampleRate = input.getSampleRate();
+
+        for (int i = 0; i < FFT_SIZE; i++) {
+            window[i] = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / (FFT_SIZE - 1));
+        }
+
+        double maxFrequency = Math.min(MAX_FREQUENCY, sampleRate / 2.0);
+        double ratio = Math.pow(maxFrequency / MIN_FREQUENCY, 1.0 / BAND_COUNT);
+        int bins = FFT_SIZE / 2;
+        int bass = 0;
+        int prevEnd = 1;
+        for (int b = 0; b < BAND_COUNT; b++) {
+            double upper = MIN_FREQUENCY * Math.pow(ratio, b + 1);
+            int start = Math.min(prevEnd, bins - 1);
+            int end = Math.max(start + 1, Math.min(bins, (int)Math.round(upper * FFT_SIZE / sampleRate)));
+            bandStart[b] = start;
+            bandEnd[b] = end;
+            prevEnd = end;
+            if (upper <= BASS_FREQUENCY) bass = b + 1;
+        }
+        bassBands = Math.max(1, bass);
+        minBeatBlocks = (long)Math.ceil(MIN_BEAT_INTERVAL * sampleRate / HOP);
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(() -> {
+            try {
+                while (running && processBlock()) {
+                }
+            } catch (IOException e) {
+                if (running) e.printStackTrace();
+            }
+            running = false;
+            System.out.println("Audio input ended");
+        }, "AudioAnalyzer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            input.close();
+        } catch (IOException e) {
+        }
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    /**
+     * Waits until the input ended or the analyzer was stopped
+     */
+    public void join() throws InterruptedException {
+        if (thread != null) thread.join();
+    }
+
+    /**
+     * Reads and analyzes the next block of samples
+     *
+     * @return false if the input ended
+     */
+    boolean processBlock() throws IOException {
+        int backlog = input.isLive() ? input.available() : 0;
+        if (backlog > MAX_BACKLOG) {
+            // Keep the latency bounded by dropping the oldest samples
+            int drop = backlog - HOP;
+            input.skipFrames(drop);
+            droppedFrames += drop;
+        }
+
+        System.arraycopy(samples, HOP, samples, 0, FFT_SIZE - HOP);
+        if (!input.read(samples, FFT_SIZE - HOP, HOP)) return false;
+        long capture = System.nanoTime();
+        analyze(capture);
+        processingNanos = System.nanoTime() - capture;
+        blocks++;
+        return true;
+    }
+
+    private void analyze(long capture) {
+        double sumSquares = 0.0;
+        double peak = 0.0;
+        for (int i = FFT_SIZE - HOP; i < FFT_SIZE; i++) {
+            double s = samples[i];
+            sumSquares += s * s;
+            peak = Math.max(peak, Math.abs(s));
+        }
+        double rms = Math.min(1.0, Math.sqrt(sumSquares / HOP));
+
+        for (int i = 0; i < FFT_SIZE; i++) {
+            re[i] = samples[i] * window[i];
+            im[i] = 0.0;
+        }
+        fft.transform(re, im);
+
+        // Band energies, the bass energy is accumulated for the beat detection
+        double bass = 0.0;
+        sequence.incrementAndGet();
+        for (int b = 0; b < BAND_COUNT; b++) {
+            double energy = 0.0;
+            for (int k = bandStart[b]; k < bandEnd[b]; k++) {
+                energy += re[k] * re[k] + im[k] * im[k];
+            }
+            if (b < bassBands) bass += energy;
+            double amplitude = Math.sqrt(energy);
+            bandMax[b] = Math.max(amplitude, Math.max(MIN_PEAK, bandMax[b] * PEAK_DECAY));
+            shared.set(BANDS + b, Double.doubleToRawLongBits(amplitude / bandMax[b]));
+        }
+
+        if (historyCount >= BEAT_HISTORY / 2) {
+            double average = 0.0;
+            for (int i = 0; i < historyCount; i++) average += bassHistory[i];
+            average /= historyCount;
+            if (bass > BEAT_THRESHOLD * average && bass > MIN_PEAK
+                && blocks - lastBeatBlock >= minBeatBlocks) {
+                beatCount++;
+                beatStrength = bass / Math.max(average, 1e-9);
+                lastBeatBlock = blocks;
+            }
+        }
+        bassHistory[historyPos] = bass;
+        historyPos = (historyPos + 1) % BEAT_HISTORY;
+        if (historyCount < BEAT_HISTORY) historyCount++;
+
+        shared.set(CAPTURE, capture);
+        shared.set(RMS, Double.doubleToRawLongBits(rms));
+        shared.set(PEAK, Double.doubleToRawLongBits(Math.min(1.0, peak)));
+        shared.set(BEATS, beatCount);
+        shared.set(STRENGTH, Double.doubleToRawLongBits(beatStrength));
+        sequence.incrementAndGet();
+    }
+
+    @Override
+    public boolean isActive() {
+        return running;
+    }
+
+    @Override
+    public int getBandCount() {
+        return BAND_COUNT;
+    }
+
+    @Override
+    public boolean read(AudioFrame frame) {
+        final double[] bands = frame.bands();
+        final int count = Math.min(bands.length, BAND_COUNT);
+        while (true) {
+            long s1 = sequence.get();
+            if (s1 == 0) return false;
+            if ((s1 & 1) != 0) {
+                // The audio thread is writing, which only takes microseconds
+                Thread.yield();
+                continue;
+            }
+            long capture = shared.get(CAPTURE);
+            double rms = Double.longBitsToDouble(shared.get(RMS));
+            double peak = Double.longBitsToDouble(shared.get(PEAK));
+            long beats = shared.get(BEATS);
+            double strength = Double.longBitsToDouble(shared.get(STRENGTH));
+            for (int b = 0; b < count; b++) {
+                bands[b] = Double.longBitsToDouble(shared.get(BANDS + b));
+            }
+            if (sequence.get() != s1) continue;
+
+            long block = s1 >> 1;
+            boolean updated = block != frame.getSequence();
+            frame.update(block, capture, rms, peak, beats, strength);
+
+            long age = System.nanoTime() - capture;
+            readAgeNanos = age;
+            if (age > maxReadAgeNanos) maxReadAgeNanos = age;
+            return updated;
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * The number of sample frames which were dropped to keep up with the input
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * The duration of one block, which is the delay until a sample is analyzed
+     */
+    public double getBlockMillis() {
+        return HOP * 1000.0 / sampleRate;
+    }
+
+    /**
+     * The time between reading a block and publishing its results
+     */
+    public long getProcessingMicros() {
+        return processingNanos / 1000;
+    }
+
+    /**
+     * The age of the results when they were last read by a script
+     */
+    public long getReadAgeMicros() {
+        return readAgeNanos / 1000;
+    }
+
+    public long getMaxReadAgeMicros() {
+        return maxReadAgeNanos / 1000;
+    }
+
+    /**
+     * Analyzes a WAV file as fast as possible and prints the detected beats,
+     * which allows to check the analysis offline
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: AudioAnalyzer file.wav");
+            return;
+        }
+        PcmInput input = PcmInput.wav(new FileInputStream(args[0]), false);
+        AudioAnalyzer analyzer = new AudioAnalyzer(input);
+        AudioFrame frame = new AudioFrame(analyzer);
+        long lastBeats = 0;
+        long processing = 0;
+        long maxProcessing = 0;
+        double rmsSum = 0.0;
+        while (analyzer.processBlock()) {
+            analyzer.read(frame);
+            processing += analyzer.processingNanos;
+            maxProcessing = Math.max(maxProcessing, analyzer.processingNanos);
+            rmsSum += frame.getRms();
+            if (frame.getBeatCount() != lastBeats) {
+                lastBeats = frame.getBeatCount();
+                double seconds = analyzer.blocks * (double)HOP / analyzer.sampleRate;
+                System.out.printf("beat %d at %.3fs strength %.2f%n", lastBeats, seconds, frame.getBeatStrength());
+            }
+        }
+        input.close();
+        long blocks = Math.max(1, analyzer.blocks);
+        System.out.printf("%d blocks, %d beats, average rms %.3f%n", analyzer.blocks, lastBeats, rmsSum / blocks);
+        System.out.printf("processing %.1f us average, %.1f us max, block %.1f ms%n",
+            processing / 1000.0 / blocks, maxProcessing / 1000.0, analyzer.getBlockMillis());
+    }
+}
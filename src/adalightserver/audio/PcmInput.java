@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.audio;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Reads 16 bit signed little endian PCM samples and mixes them down to mono.
+ *
+ * The samples either come from a WAV file, whose header describes the
+ * format, or from a raw stream like stdin or a named pipe, whose format must
+ * be given. WAV files can be read at the speed at which they would be played,
+ * so they behave like live input.
+ */
+public class PcmInput implements Closeable {
+    private final InputStream in;
+    private final int sampleRate;
+    private final int channels;
+    private final boolean realtime;
+    private final boolean wav;
+
+    private byte[] bytes = new byte[0];
+    private long framesRead = 0;
+    private long startNanos = -1;
+
+    private PcmInput(InputStream in, int sampleRate, int channels, boolean realtime, boolean wav) {
+        this.in = in;
+        this.wav = wav;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.realtime = realtime;
+    }
+
+    /**
+     * Opens a source. "-" reads raw PCM from stdin, names ending with .wav are
+     * read as WAV files in real time, regular files as raw PCM in real time
+     * and everything else as live raw PCM, e.g. a named pipe.
+     *
+     * @param sampleRate The sample rate of raw input
+     * @param channels The number of channels of raw input
+     */
+    public static PcmInput open(String source, int sampleRate, int channels) throws IOException {
+        if (source.equals("-")) {
+            return raw(System.in, sampleRate, channels);
+        } else if (source.toLowerCase().endsWith(".wav")) {
+            return wav(new FileInputStream(source), true);
+        } else if (Files.isRegularFile(Paths.get(source))) {
+            // All samples of a file are available at once, so they are paced
+            return raw(new BufferedInputStream(new FileInputStream(source)), sampleRate, channels, true);
+        } else {
+            return raw(new FileInputStream(source), sampleRate, channels);
+        }
+    }
+
+    public static PcmInput raw(InputStream in, int sampleRate, int channels) {
+        return raw(in, sampleRate, channels, false);
+    }
+
+    /**
+     * @param realtime Whether samples are delivered at the sample rate or as
+     *                 fast as they can be read
+     */
+    public static PcmInput raw(InputStream in, int sampleRate, int channels, boolean realtime) {
+        if (sampleRate <= 0 || channels <= 0)
+            throw new IllegalArgumentException("Invalid PCM format");
+        return new PcmInput(in, sampleRate, channels, realtime, false);
+    }
+
+    /**
+     * Reads the header of a WAV file from in
+     *
+     * @param realtime Whether samples are delivered at the sample rate or as
+     *                 fast as they can be read
+     */
+    public static PcmInput wav(InputStream in, boolean realtime) throws IOException {
+        in = new BufferedInputStream(in);
+        byte[] header = new byte[12];
+        readFully(in, header, 12);
+        if (!tag(header, 0, "RIFF") || !tag(header, 8, "WAVE"))
+            throw new IOException("Not a WAV file");
+
+        int sampleRate = 0;
+        int channels = 0;
+        byte[] chunk = new byte[8];
+        while (true) {
+            readFully(in, chunk, 8);
+            int length = le32(chunk, 4);
+            if (tag(chunk, 0, "fmt ")) {
+                byte[] fmt = new byte[length];
+                readFully(in, fmt, length);
+                int format = le16(fmt, 0);
+                channels = le16(fmt, 2);
+                sampleRate = le32(fmt, 4);
+                int bits = le16(fmt, 14);
+                if ((format != 1 && format != 0xfffe) || bits != 16)
+                    throw new IOException("Only 16 bit PCM WAV files are supported");
+                if ((length & 1) != 0) skip(in, 1);
+            } else if (tag(chunk, 0, "data")) {
+                if (channels == 0)
+                    throw new IOException("WAV file has no format");
+                return new PcmInput(in, sampleRate, channels, realtime, true);
+            } else {
+                skip(in, length + (length & 1));
+            }
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Returns whether the samples are produced live, like from a pipe or a
+     * device. Regular files are never live, even if they are read in real time.
+     */
+    public boolean isLive() {
+        return !realtime && !wav;
+    }
+
+    /**
+     * Returns how many sample frames can be read without blocking
+     */
+    public int available() throws IOException {
+        return in.available() / (2 * channels);
+    }
+
+    /**
+     * Reads count sample frames, mixes them to mono and stores them as values
+     * between -1.0 and 1.0 in dest. Blocks until all samples were read.
+     *
+     * @return false if the input ended
+     */
+    public boolean read(double[] dest, int pos, int count) throws IOException {
+        int frameSize = 2 * channels;
+        int length = count * frameSize;
+        if (bytes.length < length) bytes = new byte[length];
+        try {
+            readFully(in, bytes, length);
+        } catch (EOFException e) {
+            return false;
+        }
+
+        final byte[] b = bytes;
+        final double scale = 1.0 / (32768.0 * channels);
+        for (int i = 0, o = 0; i < count; i++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++, o += 2) {
+                sum += (short)((b[o] & 0xff) | (b[o + 1] << 8));
+            }
+            dest[pos + i] = sum * scale;
+        }
+
+        framesRead += count;
+        if (realtime) pace();
+        return true;
+    }
+
+    /**
+     * Skips count sample frames
+     */
+    public void skipFrames(long count) throws IOException {
+        skip(in, count * 2 * channels);
+        framesRead += count;
+    }
+
+    /**
+     * Waits until the samples which were read so far would have been played
+     */
+    private void pace() {
+        long now = System.nanoTime();
+        if (startNanos < 0) startNanos = now;
+        long due = startNanos + (framesRead * 1000000000L) / sampleRate;
+        long wait = due - now;
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static void readFully(InputStream in, byte[] dest, int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            int n = in.read(dest, done, length - done);
+            if (n < 0) throw new EOFException();
+            done += n;
+        }
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long n = in.skip(count);
+            if (n <= 0) {
+                if (in.read() < 0) throw new EOFException();
+                n = 1;
+            }
+            count -= n;
+        }
+    }
+
+    private static boolean tag(byte[] b, int pos, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (b[pos + i] != tag.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int le16(byte[] b, int pos) {
+        return (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8);
+    }
+
+    private static int le32(byte[] b, int pos) {
+        return le16(b, pos) | (le16(b, pos + 2) << 16);
+    }
+}
@@ -19,28 +19,157 @@ package adalightserver.device;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
+import adalightserver.types.ColorOps;
 import adalightserver.types.ColorRgb;
+import adalightserver.types.FrameBuffer;
+import adalightserver.types.FrameHistory;
 import adalightserver.types.LedApi;
+import adalightserver.types.PixelLayout;
+import adalightserver.types.Sprite;
 
 public abstract class AdalightDevice implements LedApi {
     protected OutputStream outputStream;
     protected Thread writeThread = null;
     
     protected static final int MAX_LEDS = 1024;
+    /** The frame is sent again after this time, even if nothing changed */
+    protected static final int RESEND_INTERVAL = 3000;
+    /** How often a shared frame buffer is checked while frames arrive */
+    protected static final int SHARED_POLL_INTERVAL = 1;
+    /** How often it is checked after no frame arrived for SHARED_IDLE_TIMEOUT */
+    protected static final int SHARED_IDLE_POLL_INTERVAL = 20;
+    protected static final int SHARED_IDLE_TIMEOUT = 500;
 
-    protected List<ColorRgb> frontBuffer = new ArrayList<ColorRgb>();
-    protected List<ColorRgb> backBuffer = new ArrayList<ColorRgb>();
+    // Colors are stored packed as 0x00RRGGBB.
+    // The front buffer is always the newest frame of the history.
+    protected int[] frontBuffer = new int[0];
+    protected FrameHistory history = new FrameHistory(4, 0);
+    protected FrameBuffer backBuffer = new FrameBuffer(0);
+    protected PixelLayout layout = PixelLayout.linear(0);
     protected boolean bufferUpdated = false;
 
+    // Optional buffers with 16 bits per channel, packed as 0xRRRRGGGGBBBB.
+    // An entry is only valid as long as its upper 8 bits per channel match
+    // the 8 bit buffer, otherwise the pixel was overwritten with 8 bit colors.
+    protected boolean highDepth = false;
+    protected long[] frontBuffer16 = new long[0];
+    protected long[] backBuffer16 = new long[0];
+    protected int ditherInterval = 10;
+
+    private PixelEncoder encoder = PixelFormat.RGB.createEncoder();
+
+    // Frames from other processes. Only polled by the write thread.
+    private volatile SharedFrameBuffer sharedFrames = null;
+    private volatile SharedFrameListener sharedFrameListener = null;
+    private long sharedFrameCount = 0;
+    private long lastSharedFrame = 0;
+    private ByteBuffer sharedFrame = ByteBuffer.allocate(0);
+
     protected Object mutex = new Object();
     protected Boolean stopThread = true;
 
+    protected final OutputCorrection outputCorrection = new OutputCorrection(() -> resend());
+    protected final PowerLimiter powerLimiter = new PowerLimiter();
+
+    // The correction tables with the power limit folded in. They are
+    // allocated once and only rebuilt if the tables or the scale change.
+    // Only used by the write thread.
+    private final OutputCorrection.Tables limitedTables = new OutputCorrection.Tables(
+        new byte[256], new byte[256], new byte[256], new char[257], new char[257], new char[257]);
+    private OutputCorrection.Tables limitedSource = null;
+    private int limitedScale = -1;
+
     protected AdalightDevice() {
     }
     
+    public OutputCorrection getOutputCorrection() {
+        return outputCorrection;
+    }
+    
+    public PowerLimiter getPowerLimiter() {
+        return powerLimiter;
+    }
+    
+    /**
+     * Receives the frames of a {@link SharedFrameBuffer}
+     */
+    public interface SharedFrameListener {
+        /**
+         * Is called on the write thread without any lock held. The colors
+         * should be shown through {@link LedApi#showFrame}.
+         *
+         * @return false if the frame was not shown
+         */
+        boolean frameReceived(int priority, ByteBuffer rgb);
+    }
+
+    /**
+     * Lets the write thread check the shared frame buffer for new frames
+     * each millisecond and pass them to the listener, e.g. the controller
+     * which decides if they are shown. Passing null detaches the buffer.
+     */
+    public void setSharedFrameBuffer(SharedFrameBuffer frames, SharedFrameListener listener) {
+        synchronized (mutex) {
+            sharedFrameListener = listener;
+            sharedFrames = frames;
+            mutex.notifyAll();
+        }
+    }
+
+    /**
+     * Enables the internal buffer with 16 bits per channel.
+     * The colors are reduced to 8 bits through temporal dithering, which
+     * requires to send frames continuously.
+     * 
+     * @param ditherInterval The time in milliseconds after which the
+     *                       frame is sent again if no new frame arrives
+     */
+    public void setHighDepth(boolean enabled, int ditherInterval) {
+        synchronized (mutex) {
+            highDepth = enabled;
+            this.ditherInterval = Math.max(1, ditherInterval);
+            int ledCount = backBuffer.size();
+            backBuffer16 = new long[enabled ? ledCount : 0];
+            int[] pixels = backBuffer.getPixels();
+            for (int i = 0; i < backBuffer16.length; i++) {
+                backBuffer16[i] = ColorOps.to16(pixels[i]);
+            }
+            mutex.notifyAll();
+        }
+    }
+    
+    /**
+     * Sets the number of flushed frames which scripts can read back
+     */
+    public void setHistoryDepth(int depth) {
+        synchronized (mutex) {
+            if (depth == history.depth()) return;
+            FrameHistory h = new FrameHistory(depth, frontBuffer.length);
+            System.arraycopy(frontBuffer, 0, h.advance(), 0, frontBuffer.length);
+            history = h;
+            frontBuffer = h.frame(0);
+        }
+    }
+    
+    /**
+     * Sets the format in which the LED stripe expects the colors
+     */
+    public void setPixelFormat(PixelFormat format) {
+        synchronized (mutex) {
+            encoder = format.createEncoder();
+            bufferUpdated = true;
+            mutex.notifyAll();
+        }
+    }
+    
+    public PixelFormat getPixelFormat() {
+        synchronized (mutex) {
+            return encoder.getFormat();
+        }
+    }
+    
     abstract public void open() throws Exception;
     abstract public void close();
 
@@ -48,16 +177,43 @@ public abstract class AdalightDevice implements LedApi {
         ByteBuffer buffer = null;
         int bufferSize = -1;
         boolean stop = false;
+        long lastWrite = System.nanoTime();
 
         while (!stop) {
+            // Must not hold the mutex, since the listener shows the frame
+            // through the controller, which has its own lock
+            pollSharedFrame();
+
+            boolean send = false;
             synchronized (mutex) {
-                if (bufferUpdated || stopThread) {
+                if (!bufferUpdated && !stopThread) {
+                    // Wait for the next frame or until the current one must
+                    // be sent again. With temporal dithering frames have to
+                    // be encoded again at the output frame rate.
+                    long elapsed = (System.nanoTime() - lastWrite) / 1000000;
+                    long timeout = Math.max(1, (highDepth ? ditherInterval : RESEND_INTERVAL) - elapsed);
+                    if (sharedFrames != null) timeout = Math.min(timeout, sharedPollInterval());
+                    try {
+                        mutex.wait(timeout);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                
+                // The wait may have been shortened for polling, so the
+                // intervals are checked against the time of the last write
+                long sinceWrite = System.nanoTime() - lastWrite;
+                if (!bufferUpdated && !stopThread
+                    && (!highDepth || sinceWrite < ditherInterval * 1000000L)) {
+                    send = sinceWrite >= RESEND_INTERVAL * 1000000L;
+                } else {
+                    send = true;
                     stop = stopThread;
                     bufferUpdated = false;
-                    int ledCount = frontBuffer.size();
-                    int reqSize = ledCount * 3 + 6;
+                    int ledCount = frontBuffer.length;
+                    int frameSize = ledCount * encoder.getFormat().getBytesPerPixel();
+                    int reqSize = frameSize + 6;
                     if (bufferSize != reqSize) {
-                        buffer = ByteBuffer.allocate(ledCount * 3 + 6);
+                        buffer = ByteBuffer.allocate(reqSize);
                         bufferSize = reqSize;
                     }
                     else {
@@ -77,26 +233,38 @@ public abstract class AdalightDevice implements LedApi {
                     buffer.put((byte)ledsCountLo);
                     buffer.put((byte)(ledsCountHi ^ ledsCountLo ^ 0x55));
 
-                    for (int i = 0; i < ledCount; i++) {
-                        ColorRgb c = frontBuffer.get(i);
-                        buffer.put((byte)c.R());
-                        buffer.put((byte)c.G());
-                        buffer.put((byte)c.B());
+                    // Apply the output correction and the power limit while
+                    // encoding the colors
+                    OutputCorrection.Tables tables = outputCorrection.getTables();
+                    int scale = powerLimiter.getScale();
+                    if (scale < PowerLimiter.FULL_SCALE) {
+                        tables = limitTables(tables, scale);
                     }
-                }
-                else {
-                    // Wait 3 seconds or until interrupted
-                    try {
-                        mutex.wait(3000);
-                    } catch (InterruptedException e) {
+                    int pos = buffer.position();
+                    long channelSum;
+                    if (highDepth) {
+                        channelSum = encoder.encodeDithered(buffer.array(), pos,
+                            frontBuffer, frontBuffer16, ledCount, tables);
+                    } else {
+                        channelSum = encoder.encode(buffer.array(), pos,
+                            frontBuffer, ledCount, tables);
                     }
+                    
+                    // The frame got brighter than the previous scale allowed.
+                    // This is the only case in which the frame is touched twice.
+                    int correction = powerLimiter.frameEncoded(channelSum, ledCount);
+                    if (correction < PowerLimiter.FULL_SCALE) {
+                        encoder.scale(buffer.array(), pos, ledCount, correction);
+                    }
+                    buffer.position(pos + frameSize);
                 }
             }
 
-            if (buffer != null) {
+            if (send && buffer != null) {
                 try {
                     outputStream.write(buffer.array(), 0, buffer.position());
                     outputStream.flush();
+                    lastWrite = System.nanoTime();
                 } catch (IOException e) {
                     e.printStackTrace();
                     return;
@@ -105,6 +273,83 @@ public abstract class AdalightDevice implements LedApi {
         }
     }
 
+    /**
+     * Passes a new frame of the shared frame buffer to the listener
+     */
+    private void pollSharedFrame() {
+        final SharedFrameBuffer frames = sharedFrames;
+        final SharedFrameListener listener = sharedFrameListener;
+        if (frames == null || listener == null) return;
+        if (sharedFrame.capacity() < 3 * frames.getLedCount())
+            sharedFrame = ByteBuffer.allocate(3 * frames.getLedCount());
+        // The frame is copied and only passed on once the copy is known to be
+        // complete. A frame whose slot is overwritten while it is copied is
+        // read again, which only happens if the producer is much faster than
+        // the polling.
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long sequence = frames.getSequence();
+            long count = SharedFrameBuffer.frameCount(sequence);
+            if (count == 0 || count == sharedFrameCount) return;
+            lastSharedFrame = System.nanoTime();
+            if (frames.readFrame(sequence, sharedFrame)) {
+                sharedFrameCount = count;
+                if (listener.frameReceived(frames.getPriority(), sharedFrame))
+                    frames.frameShown(sequence);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Polls each millisecond while a producer sends frames and backs off
+     * once it paused, so an idle buffer doesn't wake the write thread all
+     * the time. The first frame after a pause is picked up within
+     * SHARED_IDLE_POLL_INTERVAL.
+     */
+    private long sharedPollInterval() {
+        long idle = System.nanoTime() - lastSharedFrame;
+        return idle < SHARED_IDLE_TIMEOUT * 1000000L ? SHARED_POLL_INTERVAL : SHARED_IDLE_POLL_INTERVAL;
+    }
+
+    /**
+     * Folds the power limit scale (0 - 256) into the preallocated tables
+     */
+    private OutputCorrection.Tables limitTables(OutputCorrection.Tables tables, int scale) {
+        final OutputCorrection.Tables l = limitedTables;
+        if (tables == limitedSource && scale == limitedScale) return l;
+        limitedSource = tables;
+        limitedScale = scale;
+        for (int i = 0; i < 256; i++) {
+            l.red[i] = (byte)(((tables.red[i] & 0xff) * scale) >> 8);
+            l.green[i] = (byte)(((tables.green[i] & 0xff) * scale) >> 8);
+            l.blue[i] = (byte)(((tables.blue[i] & 0xff) * scale) >> 8);
+        }
+        for (int i = 0; i < 257; i++) {
+            l.red88[i] = (char)((tables.red88[i] * scale) >> 8);
+            l.green88[i] = (char)((tables.green88[i] * scale) >> 8);
+            l.blue88[i] = (char)((tables.blue88[i] * scale) >> 8);
+        }
+        return l;
+    }
+
+    /**
+     * Switches all LEDs off with the next frame. Must be called with the mutex held.
+     */
+    protected void clearFrontBuffer() {
+        Arrays.fill(frontBuffer, 0);
+        Arrays.fill(frontBuffer16, 0);
+    }
+
+    /**
+     * Sends the current frame again, e.g. after the output correction changed
+     */
+    protected void resend() {
+        synchronized (mutex) {
+            bufferUpdated = true;
+            mutex.notifyAll();
+        }
+    }
+
     @Override
     public void setLedCount(int ledCount) throws Exception {
         if (ledCount > MAX_LEDS)
@@ -113,11 +358,30 @@ public abstract class AdalightDevice implements LedApi {
         synchronized (mutex) {
             // System.out.println("Setting count to " + ledCount);
             if (ledCount == backBuffer.size()) return;
-            backBuffer = new ArrayList<ColorRgb>(ledCount);
-            for (int i = 0; i < ledCount; i++) {
-                ColorRgb c = new ColorRgb((short)0, (short)0, (short)0);
-                backBuffer.add(c);
-            }
+            backBuffer = new FrameBuffer(ledCount);
+            if (highDepth) backBuffer16 = new long[ledCount];
+            if (layout.size() != ledCount) layout = PixelLayout.linear(ledCount);
+        }
+    }
+
+    /**
+     * Sets the physical placement of the LEDs. The LED count is set to the
+     * size of the layout.
+     */
+    public void setLayout(PixelLayout layout) throws Exception {
+        if (layout.size() > MAX_LEDS)
+            throw new Exception("Maximum LED count exceeded");
+
+        synchronized (mutex) {
+            this.layout = layout;
+            setLedCount(layout.size());
+        }
+    }
+
+    @Override
+    public PixelLayout getLayout() {
+        synchronized (mutex) {
+            return layout;
         }
     }
 
@@ -130,6 +394,16 @@ public abstract class AdalightDevice implements LedApi {
 
     @Override
     public void setLedColor(int position, ColorRgb color) throws Exception {
+        synchronized (mutex) {
+            if (position < 0 || position >= backBuffer.size()) {
+                throw new Exception("Index of ouf bounds");
+            }
+            backBuffer.set(position, color.toPacked());
+        }
+    }
+
+    @Override
+    public void setLedColor(int position, int color) throws Exception {
         synchronized (mutex) {
             if (position < 0 || position >= backBuffer.size()) {
                 throw new Exception("Index of ouf bounds");
@@ -138,24 +412,168 @@ public abstract class AdalightDevice implements LedApi {
         }
     }
 
+    @Override
+    public void setLedColor16(int position, int red, int green, int blue) throws Exception {
+        synchronized (mutex) {
+            if (position < 0 || position >= backBuffer.size()) {
+                throw new Exception("Index of ouf bounds");
+            }
+            long c = ColorOps.pack16(red, green, blue);
+            backBuffer.set(position, ColorOps.to8(c));
+            if (highDepth) backBuffer16[position] = c;
+        }
+    }
+
     @Override
     public void setAllLedsToColor(ColorRgb color) {
+        setAllLedsToColor(color.toPacked());
+    }
+
+    @Override
+    public void setAllLedsToColor(int color) {
+        synchronized (mutex) {
+            backBuffer.fill(color);
+        }
+    }
+
+    @Override
+    public void setLedColors(int[] colors) {
+        synchronized (mutex) {
+            backBuffer.copyFrom(colors);
+        }
+    }
+
+    @Override
+    public void setLedColors(FrameBuffer frame) {
+        synchronized (mutex) {
+            backBuffer.copyFrom(frame);
+        }
+    }
+
+    @Override
+    public void fadeToBlack(int scale) {
+        synchronized (mutex) {
+            backBuffer.fadeToBlack(scale);
+        }
+    }
+
+    @Override
+    public void blur(int amount) {
+        synchronized (mutex) {
+            backBuffer.blur(amount);
+        }
+    }
+
+    @Override
+    public void shift(int count) {
+        synchronized (mutex) {
+            backBuffer.shift(count, 0);
+        }
+    }
+
+    @Override
+    public void rotate(int count) {
+        synchronized (mutex) {
+            backBuffer.rotate(count);
+        }
+    }
+
+    @Override
+    public void mirror() {
+        synchronized (mutex) {
+            backBuffer.mirror();
+        }
+    }
+
+    @Override
+    public void blend(FrameBuffer other, int amount) {
+        synchronized (mutex) {
+            backBuffer.blend(other, amount);
+        }
+    }
+
+    @Override
+    public void drawSprite(Sprite sprite, int position, int color, Sprite.Blend blend) {
+        synchronized (mutex) {
+            sprite.draw(backBuffer, position, color, blend);
+        }
+    }
+
+    @Override
+    public int getHistoryDepth() {
         synchronized (mutex) {
-            for (int i = 0; i < backBuffer.size(); i++) {
-                backBuffer.set(i, color);
+            return history.depth();
+        }
+    }
+
+    @Override
+    public int getPreviousLedColor(int age, int position) throws Exception {
+        synchronized (mutex) {
+            if (position < 0 || position >= history.size()) {
+                throw new Exception("Index of ouf bounds");
             }
+            return history.get(age, position);
         }
     }
 
     @Override
-    public void flush() {
+    public void getPreviousFrame(int age, FrameBuffer dest) {
         synchronized (mutex) {
-            if (frontBuffer.size() != backBuffer.size()) {
-                frontBuffer = new ArrayList<ColorRgb>(backBuffer);
+            history.copyTo(age, dest.getPixels());
+        }
+    }
+
+    @Override
+    public void decayPreviousFrame(int scale) {
+        synchronized (mutex) {
+            history.decayInto(0, backBuffer.getPixels(), scale);
+        }
+    }
+
+    @Override
+    public void showFrame(ByteBuffer rgb) {
+        synchronized (mutex) {
+            advanceFrontBuffer();
+            final int[] front = frontBuffer;
+            final int count = Math.min(front.length, rgb.remaining() / 3);
+            int pos = rgb.position();
+            for (int i = 0; i < count; i++, pos += 3) {
+                front[i] = ((rgb.get(pos) & 0xff) << 16)
+                         | ((rgb.get(pos + 1) & 0xff) << 8)
+                         | (rgb.get(pos + 2) & 0xff);
             }
-            else {
-                for (int i = 0; i < frontBuffer.size(); i++) {
-                    frontBuffer.set(i, backBuffer.get(i));
+            Arrays.fill(front, count, front.length, 0);
+            // The 16 bit front buffer doesn't match the new colors anymore
+            // and is therefore ignored by the write thread
+
+            bufferUpdated = true;
+            mutex.notifyAll();
+        }
+    }
+
+    /**
+     * Makes the slot of the oldest frame in the history the front buffer
+     */
+    private void advanceFrontBuffer() {
+        int size = backBuffer.size();
+        if (history.size() != size) {
+            history = new FrameHistory(history.depth(), size);
+        }
+        frontBuffer = history.advance();
+    }
+
+    @Override
+    public void flush() {
+        synchronized (mutex) {
+            int[] pixels = backBuffer.getPixels();
+            // Reuse the slot of the oldest frame for the new one
+            advanceFrontBuffer();
+            System.arraycopy(pixels, 0, frontBuffer, 0, pixels.length);
+            if (highDepth) {
+                if (frontBuffer16.length != backBuffer16.length) {
+                    frontBuffer16 = backBuffer16.clone();
+                } else {
+                    System.arraycopy(backBuffer16, 0, frontBuffer16, 0, backBuffer16.length);
                 }
             }
 
@@ -17,7 +17,6 @@
 package adalightserver.device;
 
 import java.net.Socket;
-import adalightserver.types.ColorRgb;
 
 public class IpAdalightDevice extends AdalightDevice {
     private String hostAddress;
@@ -45,9 +44,7 @@ public class IpAdalightDevice extends AdalightDevice {
         synchronized (mutex) {
             // Switch light off
             // Will get flushed before thread stops
-            for (int i = 0; i < frontBuffer.size(); i++) {
-                frontBuffer.set(i, new ColorRgb(0, 0, 0));
-            }
+            clearFrontBuffer();
             stopThread = true;
             mutex.notifyAll();
         }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+
+/**
+ * Ordered access to memory outside of the Java heap, e.g. a memory mapped
+ * file which is shared with other processes.
+ *
+ * Java 8 has no public API for fences and volatile accesses on such memory,
+ * so the methods of sun.misc.Unsafe are used. They are looked up through
+ * method handles instead of being referenced directly, which keeps the
+ * internal API in this class and out of the compiler warnings. Calls through
+ * the static final handles are inlined like direct calls.
+ */
+final class MappedMemory {
+    private static final MethodHandle GET_INT_VOLATILE;
+    private static final MethodHandle PUT_INT_VOLATILE;
+    private static final MethodHandle GET_LONG_VOLATILE;
+    private static final MethodHandle PUT_LONG_VOLATILE;
+    private static final MethodHandle PUT_ORDERED_LONG;
+    private static final MethodHandle PUT_LONG;
+    private static final MethodHandle COPY_MEMORY;
+    private static final MethodHandle LOAD_FENCE;
+    private static final MethodHandle STORE_FENCE;
+    private static final MethodHandle GET_OBJECT_LONG;
+    private static final long BYTE_ARRAY_OFFSET;
+    private static final long ADDRESS_OFFSET;
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            GET_INT_VOLATILE = lookup.findVirtual(unsafeClass, "getIntVolatile",
+                MethodType.methodType(int.class, Object.class, long.class)).bindTo(unsafe);
+            PUT_INT_VOLATILE = lookup.findVirtual(unsafeClass, "putIntVolatile",
+                MethodType.methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+            GET_LONG_VOLATILE = lookup.findVirtual(unsafeClass, "getLongVolatile",
+                MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            PUT_LONG_VOLATILE = lookup.findVirtual(unsafeClass, "putLongVolatile",
+                MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+            PUT_ORDERED_LONG = lookup.findVirtual(unsafeClass, "putOrderedLong",
+                MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+            PUT_LONG = lookup.findVirtual(unsafeClass, "putLong",
+                MethodType.methodType(void.class, long.class, long.class)).bindTo(unsafe);
+            COPY_MEMORY = lookup.findVirtual(unsafeClass, "copyMemory",
+                MethodType.methodType(void.class, Object.class, long.class, Object.class, long.class, long.class)).bindTo(unsafe);
+            LOAD_FENCE = lookup.findVirtual(unsafeClass, "loadFence",
+                MethodType.methodType(void.class)).bindTo(unsafe);
+            STORE_FENCE = lookup.findVirtual(unsafeClass, "storeFence",
+                MethodType.methodType(void.class)).bindTo(unsafe);
+            BYTE_ARRAY_OFFSET = (int) lookup.findVirtual(unsafeClass, "arrayBaseOffset",
+                MethodType.methodType(int.class, Class.class)).invoke(unsafe, byte[].class);
+            GET_OBJECT_LONG = lookup.findVirtual(unsafeClass, "getLong",
+                MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            // Newer JDKs don't allow to make the field accessible, but its
+            // offset can still be read through Unsafe
+            ADDRESS_OFFSET = (long) lookup.findVirtual(unsafeClass, "objectFieldOffset",
+                MethodType.methodType(long.class, Field.class)).invoke(unsafe, Buffer.class.getDeclaredField("address"));
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private MappedMemory() {
+    }
+
+    /**
+     * Returns the address of the memory of a direct buffer
+     */
+    static long address(Buffer buffer) {
+        if (!buffer.isDirect()) throw new IllegalArgumentException("Not a direct buffer");
+        try {
+            return (long) GET_OBJECT_LONG.invokeExact((Object) buffer, ADDRESS_OFFSET);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int getIntVolatile(long address) {
+        try {
+            return (int) GET_INT_VOLATILE.invokeExact((Object) null, address);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void putIntVolatile(long address, int value) {
+        try {
+            PUT_INT_VOLATILE.invokeExact((Object) null, address, value);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static long getLongVolatile(long address) {
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void putLongVolatile(long address, long value) {
+        try {
+            PUT_LONG_VOLATILE.invokeExact((Object) null, address, value);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stores the value after all earlier stores, without a full fence
+     */
+    static void putOrderedLong(long address, long value) {
+        try {
+            PUT_ORDERED_LONG.invokeExact((Object) null, address, value);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void putLong(long address, long value) {
+        try {
+            PUT_LONG.invokeExact(address, value);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies length bytes from address into dest at destPos
+     */
+    static void copy(long address, byte[] dest, int destPos, int length) {
+        if (destPos < 0 || length < 0 || destPos + length > dest.length)
+            throw new IndexOutOfBoundsException();
+        try {
+            COPY_MEMORY.invokeExact((Object) null, address, (Object) dest, BYTE_ARRAY_OFFSET + destPos, (long) length);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Keeps the loads before the fence from moving behind loads after it
+     */
+    static void loadFence() {
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Keeps the stores before the fence from moving behind stores after it
+     */
+    static void storeFence() {
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+import adalightserver.types.LedApi;
+
+/**
+ * A device without output. Scripts render on it in the background until
+ * they are moved to the real device, e.g. presets which are kept warm.
+ * The frames are only kept in its history.
+ */
+public class OffscreenDevice extends AdalightDevice {
+
+    /**
+     * Creates a device with the LED count, layout and history depth of api
+     */
+    public OffscreenDevice(LedApi api) throws Exception {
+        setHistoryDepth(api.getHistoryDepth());
+        setLayout(api.getLayout());
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+/**
+ * The correction which is applied to all colors when they are sent to the LEDs.
+ *
+ * Gamma, color temperature, white balance and master brightness are folded
+ * into one lookup table per channel, so the encoder only needs one table
+ * lookup per byte. Changing a setting rebuilds the tables and swaps them in
+ * atomically, the encoder never sees a partially updated table.
+ */
+public class OutputCorrection {
+
+    /** The color temperature at which no correction is applied */
+    public static final int NEUTRAL_TEMPERATURE = 6600;
+
+    /**
+     * An immutable set of lookup tables for the red, green and blue channel.
+     *
+     * The byte tables map 8 bit input to 8 bit output. The 8.8 tables map
+     * 8 bit input to output in 8.8 fixed point, which keeps the fraction for
+     * dithering. They have an additional 257th entry so that 16 bit input
+     * can be interpolated between two entries.
+     */
+    public static final class Tables {
+        public final byte[] red;
+        public final byte[] green;
+        public final byte[] blue;
+        public final char[] red88;
+        public final char[] green88;
+        public final char[] blue88;
+
+        Tables(byte[] red, byte[] green, byte[] blue, char[] red88, char[] green88, char[] blue88) {
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+            this.red88 = red88;
+            this.green88 = green88;
+            this.blue88 = blue88;
+        }
+    }
+
+    private double brightness = 1.0;
+    private double gamma = 1.0;
+    private int temperature = NEUTRAL_TEMPERATURE;
+    private double redBalance = 1.0;
+    private double greenBalance = 1.0;
+    private double blueBalance = 1.0;
+
+    private volatile Tables tables;
+    private final Runnable changeListener;
+
+    /**
+     * @param changeListener Is called after the tables changed, e.g. to
+     *                       send the current frame again
+     */
+    public OutputCorrection(Runnable changeListener) {
+        this.changeListener = changeListener;
+        tables = buildTables();
+    }
+
+    /**
+     * Returns the current tables. The encoder should fetch them once per frame.
+     */
+    public Tables getTables() {
+        return tables;
+    }
+
+    public synchronized double getBrightness() {
+        return brightness;
+    }
+
+    public synchronized double getGamma() {
+        return gamma;
+    }
+
+    public synchronized int getTemperature() {
+        return temperature;
+    }
+
+    public synchronized double[] getWhiteBalance() {
+        return new double[] { redBalance, greenBalance, blueBalance };
+    }
+
+    /**
+     * Sets the master brightness between 0.0 and 1.0
+     */
+    public void setBrightness(double brightness) {
+        synchronized (this) {
+            this.brightness = clamp(brightness, 0.0, 1.0);
+            tables = buildTables();
+        }
+        notifyChange();
+    }
+
+    /**
+     * Sets the gamma exponent of the LEDs. 1.0 disables the correction,
+     * typical LED stripes need values between 2.0 and 2.8.
+     */
+    public void setGamma(double gamma) {
+        synchronized (this) {
+            this.gamma = clamp(gamma, 0.1, 5.0);
+            tables = buildTables();
+        }
+        notifyChange();
+    }
+
+    /**
+     * Sets the color temperature of white in Kelvin.
+     * {@link #NEUTRAL_TEMPERATURE} disables the correction.
+     */
+    public void setTemperature(int temperature) {
+        synchronized (this) {
+            this.temperature = (int)clamp(temperature, 1000, 40000);
+            tables = buildTables();
+        }
+        notifyChange();
+    }
+
+    /**
+     * Sets factors between 0.0 and 1.0 for each channel which compensate
+     * the different efficiency of the red, green and blue LEDs
+     */
+    public void setWhiteBalance(double red, double green, double blue) {
+        synchronized (this) {
+            redBalance = clamp(red, 0.0, 1.0);
+            greenBalance = clamp(green, 0.0, 1.0);
+            blueBalance = clamp(blue, 0.0, 1.0);
+            tables = buildTables();
+        }
+        notifyChange();
+    }
+
+    /**
+     * Sets all values at once, which rebuilds the tables only once.
+     * The values are limited like by the individual setters.
+     */
+    public void set(double brightness, double gamma, int temperature,
+                    double red, double green, double blue) {
+        synchronized (this) {
+            this.brightness = clamp(brightness, 0.0, 1.0);
+            this.gamma = clamp(gamma, 0.1, 5.0);
+            this.temperature = (int)clamp(temperature, 1000, 40000);
+            redBalance = clamp(red, 0.0, 1.0);
+            greenBalance = clamp(green, 0.0, 1.0);
+            blueBalance = clamp(blue, 0.0, 1.0);
+            tables = buildTables();
+        }
+        notifyChange();
+    }
+
+    private void notifyChange() {
+        if (changeListener != null) changeListener.run();
+    }
+
+    private Tables buildTables() {
+        double[] temp = temperatureToRgb(temperature);
+        double red = brightness * redBalance * temp[0];
+        double green = brightness * greenBalance * temp[1];
+        double blue = brightness * blueBalance * temp[2];
+        return new Tables(
+            buildTable(red), buildTable(green), buildTable(blue),
+            buildTable88(red), buildTable88(green), buildTable88(blue));
+    }
+
+    private byte[] buildTable(double factor) {
+        byte[] table = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            double linear = Math.pow(i / 255.0, gamma) * factor;
+            table[i] = (byte)Math.round(clamp(linear, 0.0, 1.0) * 255.0);
+        }
+        return table;
+    }
+
+    private char[] buildTable88(double factor) {
+        char[] table = new char[257];
+        for (int i = 0; i < 256; i++) {
+            double linear = Math.pow(i / 255.0, gamma) * factor;
+            table[i] = (char)Math.round(clamp(linear, 0.0, 1.0) * (255 << 8));
+        }
+        table[256] = table[255];
+        return table;
+    }
+
+    /**
+     * Approximates the color of a black body at the given temperature with
+     * factors between 0.0 and 1.0. The result is white at 6600K.
+     */
+    static double[] temperatureToRgb(int kelvin) {
+        double t = kelvin / 100.0;
+        double r, g, b;
+        if (t <= 66.0) {
+            r = 255.0;
+            g = 99.4708025861 * Math.log(t) - 161.1195681661;
+        } else {
+            r = 329.698727446 * Math.pow(t - 60.0, -0.1332047592);
+            g = 288.1221695283 * Math.pow(t - 60.0, -0.0755148492);
+        }
+        if (t >= 66.0) b = 255.0;
+        else if (t <= 19.0) b = 0.0;
+        else b = 138.5177312231 * Math.log(t - 10.0) - 305.0447927307;
+
+        return new double[] {
+            clamp(r / 255.0, 0.0, 1.0),
+            clamp(g / 255.0, 0.0, 1.0),
+            clamp(b / 255.0, 0.0, 1.0)
+        };
+    }
+
+    private static double clamp(double v, double min, double max) {
+        if (v < min) return min;
+        if (v > max) return max;
+        return v;
+    }
+}
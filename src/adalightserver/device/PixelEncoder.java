@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+import adalightserver.types.ColorOps;
+
+/**
+ * Encodes frames into the byte layout of one {@link PixelFormat}.
+ *
+ * There is one implementation per kind of format, so that the inner loops
+ * don't need to decide per pixel how to write it. The channel offsets are
+ * fixed when the encoder is created.
+ *
+ * Encoders are only used by the write thread and may keep state between
+ * frames, e.g. the dithering error.
+ */
+abstract class PixelEncoder {
+
+    protected final PixelFormat format;
+
+    protected PixelEncoder(PixelFormat format) {
+        this.format = format;
+    }
+
+    public PixelFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Encodes the 8 bit colors through the byte tables
+     *
+     * @return The sum of all encoded channel values in 8 bit units
+     */
+    abstract long encode(byte[] out, int pos, int[] colors, int ledCount, OutputCorrection.Tables tables);
+
+    /**
+     * Encodes the colors through the 8.8 tables and reduces them to the output
+     * depth with temporal dithering. Entries of colors16 are used instead of
+     * colors as long as they match the 8 bit color.
+     *
+     * @return The sum of all encoded channel values in 8 bit units
+     */
+    abstract long encodeDithered(byte[] out, int pos, int[] colors, long[] colors16, int ledCount,
+                                 OutputCorrection.Tables tables);
+
+    /**
+     * Scales an encoded frame down by scale / 256
+     */
+    void scale(byte[] out, int pos, int ledCount, int scale) {
+        int end = pos + ledCount * format.getBytesPerPixel();
+        for (int i = pos; i < end; i++) {
+            out[i] = (byte)(((out[i] & 0xff) * scale) >> 8);
+        }
+    }
+
+    /**
+     * Returns whether the 16 bit color can be used instead of the 8 bit color
+     */
+    protected static boolean use16(long[] colors16, int ledCount, int i, int color) {
+        return colors16.length == ledCount && ColorOps.to8(colors16[i]) == color;
+    }
+
+    /**
+     * Looks up a 16 bit value in a 257 entry 8.8 table
+     */
+    protected static int interpolate(char[] table, int value16) {
+        // Scale 0 - 65535 to 0.0 - 255.0 in 8.8 fixed point (value * 256 / 257).
+        // The intermediate result exceeds the int range, so use an unsigned shift.
+        int x = (value16 * 65281 + 32768) >>> 16;
+        int idx = x >> 8;
+        int a = table[idx];
+        return a + (((table[idx + 1] - a) * (x & 0xff)) >> 8);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+import java.security.InvalidParameterException;
+
+/**
+ * Describes how the LEDs of a stripe expect their color data.
+ *
+ * Scripts always work with RGB colors, the device reorders the channels,
+ * extracts the white channel or widens the channels to 16 bits while it
+ * encodes the frame.
+ */
+public enum PixelFormat {
+    RGB(0, 1, 2, -1, 1),
+    RBG(0, 2, 1, -1, 1),
+    GRB(1, 0, 2, -1, 1),
+    GBR(2, 0, 1, -1, 1),
+    BRG(1, 2, 0, -1, 1),
+    BGR(2, 1, 0, -1, 1),
+    /** RGB with an additional white LED, the white part of a color is moved to it */
+    RGBW(0, 1, 2, 3, 1),
+    GRBW(1, 0, 2, 3, 1),
+    /** 16 bits per channel in big endian byte order */
+    RGB16(0, 1, 2, -1, 2),
+    GRB16(1, 0, 2, -1, 2);
+
+    /** The index of each channel inside a pixel, -1 if the channel doesn't exist */
+    final int red, green, blue, white;
+    final int bytesPerChannel;
+
+    private PixelFormat(int red, int green, int blue, int white, int bytesPerChannel) {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+        this.white = white;
+        this.bytesPerChannel = bytesPerChannel;
+    }
+
+    public int getBytesPerPixel() {
+        return (white >= 0 ? 4 : 3) * bytesPerChannel;
+    }
+
+    public boolean hasWhite() {
+        return white >= 0;
+    }
+
+    /**
+     * Returns the format with the given name, e.g. "grb"
+     */
+    public static PixelFormat parse(String name) throws InvalidParameterException {
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidParameterException("Unknown pixel format " + name);
+        }
+    }
+
+    /**
+     * Creates an encoder which is specialized for this format
+     */
+    PixelEncoder createEncoder() {
+        if (bytesPerChannel == 2) return new Rgb16Encoder(this);
+        if (white >= 0) return new RgbwEncoder(this);
+        return new RgbEncoder(this);
+    }
+}
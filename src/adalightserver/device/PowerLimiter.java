@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+/**
+ * Keeps the estimated current draw of the LEDs below a budget.
+ *
+ * The encoder sums up all channel values of a frame while it encodes it.
+ * From that sum the limiter estimates the current draw and derives the scale
+ * for the next frame, which the encoder folds into its lookup tables.
+ * If a frame gets brighter than the current scale allows, the frame is scaled
+ * down once more after encoding, so the budget is never exceeded.
+ *
+ * All methods except the getters and the configuration must only be called
+ * from the write thread.
+ */
+public class PowerLimiter {
+
+    /** A scale of FULL_SCALE means no limiting */
+    public static final int FULL_SCALE = 256;
+
+    private volatile int budgetMilliamps = 0;
+    private volatile int channelMilliamps = 20;
+    private volatile int idleMilliamps = 1;
+
+    private int scale = FULL_SCALE;
+    private volatile int estimatedMilliamps = 0;
+    private volatile long limitedFrames = 0;
+
+    /**
+     * Configures the limiter
+     *
+     * @param budgetMilliamps The maximum current. 0 disables the limiter.
+     * @param channelMilliamps The current of a single channel at full brightness
+     * @param idleMilliamps The current a LED draws while it is off
+     */
+    public void configure(int budgetMilliamps, int channelMilliamps, int idleMilliamps) {
+        this.budgetMilliamps = Math.max(0, budgetMilliamps);
+        this.channelMilliamps = Math.max(1, channelMilliamps);
+        this.idleMilliamps = Math.max(0, idleMilliamps);
+    }
+
+    public boolean isEnabled() {
+        return budgetMilliamps > 0;
+    }
+
+    public int getBudgetMilliamps() {
+        return budgetMilliamps;
+    }
+
+    /**
+     * Returns the estimated current draw of the last frame after limiting
+     */
+    public int getEstimatedMilliamps() {
+        return estimatedMilliamps;
+    }
+
+    /**
+     * Returns the number of frames which had to be scaled down
+     */
+    public long getLimitedFrames() {
+        return limitedFrames;
+    }
+
+    /**
+     * Returns the scale (0 - 256) which the encoder shall apply to the next frame
+     */
+    public int getScale() {
+        return isEnabled() ? scale : FULL_SCALE;
+    }
+
+    /**
+     * Processes the sum of all encoded channel values of a frame, which was
+     * encoded with {@link #getScale()}.
+     *
+     * @return The scale (0 - 256) which must still be applied to the encoded
+     *         frame to stay in the budget, or FULL_SCALE if it is fine
+     */
+    public int frameEncoded(long channelSum, int ledCount) {
+        int idle = idleMilliamps * ledCount;
+        int active = (int)((channelSum * channelMilliamps) / 255);
+        int budget = budgetMilliamps;
+        int usedScale = scale;
+
+        if (budget <= 0) {
+            scale = FULL_SCALE;
+            estimatedMilliamps = idle + active;
+            return FULL_SCALE;
+        }
+
+        int available = Math.max(0, budget - idle);
+        int correction = FULL_SCALE;
+        if (active > available) {
+            // The frame got brighter than the scale allows, scale it down now
+            correction = (int)(((long)available * FULL_SCALE) / active);
+            active = (int)(((long)active * correction) / FULL_SCALE);
+            limitedFrames++;
+        } else if (usedScale < FULL_SCALE) {
+            limitedFrames++;
+        }
+        estimatedMilliamps = idle + active;
+
+        // Derive the scale for the next frame from the unscaled brightness.
+        // A frame which was scaled to black tells nothing about it, so start
+        // again at full scale and rely on the correction.
+        if (available == 0) {
+            scale = 0;
+            return correction;
+        }
+        long divisor = (long)usedScale * correction;
+        long unscaledActive = divisor == 0 ? 0 : ((long)active * FULL_SCALE * FULL_SCALE) / divisor;
+        if (unscaledActive <= available) scale = FULL_SCALE;
+        else scale = (int)(((long)available * FULL_SCALE) / unscaledActive);
+
+        return correction;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+/**
+ * Encodes 3 channels with 16 bits each in big endian byte order.
+ *
+ * The channels are taken from the 8.8 tables, so the fraction of the output
+ * correction is kept. No dithering is necessary since the output is as
+ * precise as the internal 16 bit buffer.
+ */
+final class Rgb16Encoder extends PixelEncoder {
+
+    private static final long[] NO_COLORS16 = new long[0];
+
+    Rgb16Encoder(PixelFormat format) {
+        super(format);
+    }
+
+    @Override
+    long encode(byte[] out, int pos, int[] colors, int ledCount, OutputCorrection.Tables tables) {
+        return encodeDithered(out, pos, colors, NO_COLORS16, ledCount, tables);
+    }
+
+    @Override
+    long encodeDithered(byte[] out, int pos, int[] colors, long[] colors16, int ledCount,
+                        OutputCorrection.Tables tables) {
+        final char[] red = tables.red88;
+        final char[] green = tables.green88;
+        final char[] blue = tables.blue88;
+        final int ro = pos + 2 * format.red;
+        final int go = pos + 2 * format.green;
+        final int bo = pos + 2 * format.blue;
+        long sum = 0;
+
+        for (int i = 0, o = 0; i < ledCount; i++, o += 6) {
+            int c = colors[i];
+            int r, g, b;
+            if (use16(colors16, ledCount, i, c)) {
+                long c16 = colors16[i];
+                r = interpolate(red, (int)(c16 >> 32) & 0xffff);
+                g = interpolate(green, (int)(c16 >> 16) & 0xffff);
+                b = interpolate(blue, (int)c16 & 0xffff);
+            } else {
+                r = red[(c >> 16) & 0xff];
+                g = green[(c >> 8) & 0xff];
+                b = blue[c & 0xff];
+            }
+            // Stretch 0 - 0xff00 to 0 - 0xffff
+            r += r >> 8;
+            g += g >> 8;
+            b += b >> 8;
+            out[ro + o] = (byte)(r >> 8);
+            out[ro + o + 1] = (byte)r;
+            out[go + o] = (byte)(g >> 8);
+            out[go + o + 1] = (byte)g;
+            out[bo + o] = (byte)(b >> 8);
+            out[bo + o + 1] = (byte)b;
+            sum += (r >> 8) + (g >> 8) + (b >> 8);
+        }
+        return sum;
+    }
+
+    @Override
+    void scale(byte[] out, int pos, int ledCount, int scale) {
+        int end = pos + ledCount * 6;
+        for (int i = pos; i < end; i += 2) {
+            int v = (((out[i] & 0xff) << 8) | (out[i + 1] & 0xff)) * scale >> 8;
+            out[i] = (byte)(v >> 8);
+            out[i + 1] = (byte)v;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+/**
+ * Encodes 3 channels with 8 bits each in any order
+ */
+final class RgbEncoder extends PixelEncoder {
+
+    // The accumulated error per channel for temporal dithering
+    private int[] ditherError = new int[0];
+
+    RgbEncoder(PixelFormat format) {
+        super(format);
+    }
+
+    @Override
+    long encode(byte[] out, int pos, int[] colors, int ledCount, OutputCorrection.Tables tables) {
+        final byte[] red = tables.red;
+        final byte[] green = tables.green;
+        final byte[] blue = tables.blue;
+        final int ro = pos + format.red;
+        final int go = pos + format.green;
+        final int bo = pos + format.blue;
+        long sum = 0;
+        for (int i = 0, o = 0; i < ledCount; i++, o += 3) {
+            int c = colors[i];
+            byte r = red[(c >> 16) & 0xff];
+            byte g = green[(c >> 8) & 0xff];
+            byte b = blue[c & 0xff];
+            out[ro + o] = r;
+            out[go + o] = g;
+            out[bo + o] = b;
+            sum += (r & 0xff) + (g & 0xff) + (b & 0xff);
+        }
+        return sum;
+    }
+
+    @Override
+    long encodeDithered(byte[] out, int pos, int[] colors, long[] colors16, int ledCount,
+                        OutputCorrection.Tables tables) {
+        final char[] red = tables.red88;
+        final char[] green = tables.green88;
+        final char[] blue = tables.blue88;
+        final int ro = pos + format.red;
+        final int go = pos + format.green;
+        final int bo = pos + format.blue;
+        if (ditherError.length != 3 * ledCount) {
+            ditherError = new int[3 * ledCount];
+        }
+        final int[] error = ditherError;
+        long sum = 0;
+
+        for (int i = 0, o = 0; i < ledCount; i++, o += 3) {
+            int c = colors[i];
+            int r, g, b;
+            if (use16(colors16, ledCount, i, c)) {
+                long c16 = colors16[i];
+                r = interpolate(red, (int)(c16 >> 32) & 0xffff);
+                g = interpolate(green, (int)(c16 >> 16) & 0xffff);
+                b = interpolate(blue, (int)c16 & 0xffff);
+            } else {
+                r = red[(c >> 16) & 0xff];
+                g = green[(c >> 8) & 0xff];
+                b = blue[c & 0xff];
+            }
+
+            // Output the integer part and carry the fraction over to the next frame
+            int acc = r + error[o];
+            out[ro + o] = (byte)(acc >> 8);
+            error[o] = acc & 0xff;
+            sum += acc >> 8;
+            acc = g + error[o + 1];
+            out[go + o] = (byte)(acc >> 8);
+            error[o + 1] = acc & 0xff;
+            sum += acc >> 8;
+            acc = b + error[o + 2];
+            out[bo + o] = (byte)(acc >> 8);
+            error[o + 2] = acc & 0xff;
+            sum += acc >> 8;
+        }
+        return sum;
+    }
+}
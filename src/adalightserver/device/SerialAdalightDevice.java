@@ -18,7 +18,6 @@ package adalightserver.device;
 
 import java.io.IOException;
 import java.util.Enumeration;
-import adalightserver.types.ColorRgb;
 import gnu.io.CommPortIdentifier;
 import gnu.io.PortInUseException;
 import gnu.io.SerialPort;
@@ -86,9 +85,7 @@ public class SerialAdalightDevice extends AdalightDevice {
         synchronized (mutex) {
             // Switch light off
             // Will get flushed before thread stops
-            for (int i = 0; i < frontBuffer.size(); i++) {
-                frontBuffer.set(i, new ColorRgb(0, 0, 0));
-            }
+            clearFrontBuffer();
             stopThread = true;
             mutex.notifyAll();
         }
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A frame buffer in a memory mapped file, through which processes on the
+ * same host can show frames without any socket in between.
+ *
+ * The file starts with a header of 128 bytes in native byte order:
+ *
+ * <pre>
+ *  0 int  magic 'ALFB'
+ *  4 int  version 1
+ *  8 int  number of LEDs
+ * 12 int  priority of the producer (see IController.pushExternalFrame)
+ * 16 long sequence, odd while a frame is written
+ * 24 long System.nanoTime() of the producer when the frame was published
+ * 32 long sequence of the last frame that was shown
+ * 40 long System.nanoTime() of the server when it picked that frame up
+ * 48 int  number of frame slots
+ * 56 long System.nanoTime() of the last producer statistics
+ * 64 long CPU time of the producer process in nanoseconds
+ * 72 long used heap of the producer in bytes
+ * 80 long maximum heap of the producer in bytes
+ * </pre>
+ *
+ * followed by a ring of frame slots with 3 bytes red, green and blue per
+ * LED. The server creates the file, producers open it and write their frames
+ * directly into the slot which {@link #beginFrame()} returns.
+ *
+ * Frames are published with a sequence lock. The producer makes the
+ * sequence odd before it writes frame n into slot n % slots and even again
+ * afterwards. Frame n is complete once the sequence reached 2 * (n + 1).
+ * The server reads the newest complete frame and checks afterwards that the
+ * producer didn't start to write into its slot again, so it never shows half
+ * written frames and never blocks the producer. With more than one slot the
+ * producer can write the next frames while the server reads. Mapped memory
+ * is outside of the Java memory model, so the ordering is enforced with the
+ * fences of {@link MappedMemory}.
+ *
+ * On Linux System.nanoTime() is the same monotonic clock in all processes,
+ * so the timestamps can be compared to measure the latency.
+ */
+public class SharedFrameBuffer implements Closeable {
+    public static final int MAGIC = 0x414c4642;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 128;
+    public static final int DEFAULT_SLOTS = 3;
+
+    private static final int LED_COUNT = 8;
+    private static final int PRIORITY = 12;
+    private static final int SEQUENCE = 16;
+    private static final int PUBLISH_NANOS = 24;
+    private static final int SHOWN_SEQUENCE = 32;
+    private static final int SHOWN_NANOS = 40;
+    private static final int SLOTS = 48;
+    private static final int STATS_NANOS = 56;
+    private static final int CPU_NANOS = 64;
+    private static final int HEAP_USED = 72;
+    private static final int HEAP_MAX = 80;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final ByteBuffer[] frames;
+    private final long address;
+    private final int ledCount;
+    private final boolean owner;
+
+    private SharedFrameBuffer(Path path, FileChannel channel, int ledCount, int slots, boolean owner) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.ledCount = ledCount;
+        this.owner = owner;
+        int frameSize = 3 * ledCount;
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + slots * frameSize);
+        mapped.order(ByteOrder.nativeOrder());
+        address = MappedMemory.address(mapped);
+        frames = new ByteBuffer[slots];
+        for (int i = 0; i < slots; i++) {
+            mapped.limit(HEADER_SIZE + (i + 1) * frameSize);
+            mapped.position(HEADER_SIZE + i * frameSize);
+            frames[i] = mapped.slice();
+        }
+        mapped.clear();
+    }
+
+    /**
+     * Creates the file for ledCount LEDs with the default number of slots
+     */
+    public static SharedFrameBuffer create(Path path, int ledCount) throws IOException {
+        return create(path, ledCount, DEFAULT_SLOTS);
+    }
+
+    /**
+     * Creates the file for ledCount LEDs. An existing file is replaced.
+     * The file is deleted again when the buffer is closed.
+     */
+    public static SharedFrameBuffer create(Path path, int ledCount, int slots) throws IOException {
+        if (ledCount <= 0 || slots <= 0)
+            throw new IllegalArgumentException("Invalid frame buffer size");
+        Files.deleteIfExists(path);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        SharedFrameBuffer b = new SharedFrameBuffer(path, channel, ledCount, slots, true);
+        b.mapped.putInt(4, VERSION);
+        b.mapped.putInt(LED_COUNT, ledCount);
+        b.mapped.putInt(SLOTS, slots);
+        // The magic is written last, so producers never see a partial header
+        MappedMemory.storeFence();
+        b.mapped.putInt(0, MAGIC);
+        return b;
+    }
+
+    /**
+     * Opens a file which was created by the server
+     */
+    public static SharedFrameBuffer open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        channel.read(header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException(path + " is no frame buffer");
+        }
+        int ledCount = header.getInt(LED_COUNT);
+        int slots = header.getInt(SLOTS);
+        if (ledCount <= 0 || slots <= 0 || channel.size() < HEADER_SIZE + 3L * ledCount * slots) {
+            channel.close();
+            throw new IOException(path + " is truncated");
+        }
+        return new SharedFrameBuffer(path, channel, ledCount, slots, false);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getLedCount() {
+        return ledCount;
+    }
+
+    public int getSlots() {
+        return frames.length;
+    }
+
+    public int getPriority() {
+        return MappedMemory.getIntVolatile(address + PRIORITY);
+    }
+
+    public void setPriority(int priority) {
+        MappedMemory.putIntVolatile(address + PRIORITY, priority & 0xff);
+    }
+
+    // Producer side
+
+    /**
+     * Marks the next frame as being written and returns its slot, to which
+     * the colors must be written with 3 bytes per LED before the frame is
+     * published. The position and limit of the slot must not be changed.
+     */
+    public ByteBuffer beginFrame() {
+        long s = MappedMemory.getLongVolatile(address + SEQUENCE);
+        MappedMemory.putLongVolatile(address + SEQUENCE, (s | 1));
+        // A volatile store doesn't keep later stores behind it, the fence
+        // keeps the color writes from becoming visible before the odd sequence
+        MappedMemory.storeFence();
+        return frames[(int)((s >> 1) % frames.length)];
+    }
+
+    /**
+     * Publishes the frame which was written after {@link #beginFrame()}
+     *
+     * @return The sequence of the frame
+     */
+    public long publishFrame() {
+        long s = (MappedMemory.getLongVolatile(address + SEQUENCE) | 1) + 1;
+        MappedMemory.putLong(address + PUBLISH_NANOS, System.nanoTime());
+        MappedMemory.storeFence();
+        MappedMemory.putOrderedLong(address + SEQUENCE, s);
+        return s;
+    }
+
+    /**
+     * Returns the sequence of the last frame which the server picked up
+     */
+    public long getShownSequence() {
+        return MappedMemory.getLongVolatile(address + SHOWN_SEQUENCE);
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the server picked up the last
+     * shown frame. Is only consistent with {@link #getShownSequence()} if
+     * that was read first.
+     */
+    public long getShownNanos() {
+        return MappedMemory.getLongVolatile(address + SHOWN_NANOS);
+    }
+
+    // Server side
+
+    /**
+     * Returns the current sequence. It is odd while a frame is written.
+     */
+    public long getSequence() {
+        return MappedMemory.getLongVolatile(address + SEQUENCE);
+    }
+
+    /**
+     * Returns the number of complete frames at the given sequence
+     */
+    public static long frameCount(long sequence) {
+        return sequence >> 1;
+    }
+
+    /**
+     * Returns the slot with the newest complete frame at the given sequence
+     * or null if no frame was published yet. The producer may overwrite the
+     * slot at any time, frames which are shown must be read with
+     * {@link #readFrame(long, ByteBuffer)}.
+     */
+    public ByteBuffer frame(long sequence) {
+        long n = frameCount(sequence) - 1;
+        if (n < 0) return null;
+        return frames[(int)(n % frames.length)];
+    }
+
+    /**
+     * Checks after the colors of {@link #frame(long)} were read whether the
+     * producer started to overwrite the slot in the meantime
+     */
+    public boolean validate(long sequence) {
+        MappedMemory.loadFence();
+        long n = frameCount(sequence) - 1;
+        // The slot is written again as frame n + slots
+        return MappedMemory.getLongVolatile(address + SEQUENCE) < 2 * (n + frames.length) + 1;
+    }
+
+    /**
+     * Copies the newest complete frame at the given sequence into dest and
+     * checks afterwards that the producer didn't overwrite its slot in the
+     * meantime. dest must be a heap buffer with room for 3 bytes per LED. Its
+     * position is set to 0 and its limit to the end of the frame.
+     *
+     * @return true if dest holds the complete frame, false if no frame was
+     *         published yet or the copy may be torn and must not be shown
+     */
+    public boolean readFrame(long sequence, ByteBuffer dest) {
+        long n = frameCount(sequence) - 1;
+        if (n < 0) return false;
+        int frameSize = 3 * ledCount;
+        if (!dest.hasArray() || dest.capacity() < frameSize)
+            throw new IllegalArgumentException("Invalid frame destination");
+        int slot = (int)(n % frames.length);
+        MappedMemory.copy(address + HEADER_SIZE + (long)slot * frameSize,
+            dest.array(), dest.arrayOffset(), frameSize);
+        dest.limit(frameSize);
+        dest.position(0);
+        return validate(sequence);
+    }
+
+    /**
+     * Tells the producer that the newest frame at the given sequence is shown
+     */
+    public void frameShown(long sequence) {
+        MappedMemory.putLong(address + SHOWN_NANOS, System.nanoTime());
+        // The sequence at which the frame was published
+        MappedMemory.putLongVolatile(address + SHOWN_SEQUENCE, sequence & ~1L);
+    }
+
+    // Statistics of the producer process, which are also its heartbeat
+
+    /**
+     * Publishes the resource usage of the producer process
+     */
+    public void publishStatistics(long cpuNanos, long heapUsed, long heapMax) {
+        MappedMemory.putLongVolatile(address + CPU_NANOS, cpuNanos);
+        MappedMemory.putLongVolatile(address + HEAP_USED, heapUsed);
+        MappedMemory.putLongVolatile(address + HEAP_MAX, heapMax);
+        MappedMemory.putLongVolatile(address + STATS_NANOS, System.nanoTime());
+    }
+
+    /**
+     * The System.nanoTime() of the last statistics or 0 if there were none
+     */
+    public long getStatisticsNanos() {
+        return MappedMemory.getLongVolatile(address + STATS_NANOS);
+    }
+
+    public long getProducerCpuNanos() {
+        return MappedMemory.getLongVolatile(address + CPU_NANOS);
+    }
+
+    public long getProducerHeapUsed() {
+        return MappedMemory.getLongVolatile(address + HEAP_USED);
+    }
+
+    public long getProducerHeapMax() {
+        return MappedMemory.getLongVolatile(address + HEAP_MAX);
+    }
+
+    /**
+     * Closes the file. The mapping stays valid until it is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (owner) Files.deleteIfExists(path);
+    }
+}
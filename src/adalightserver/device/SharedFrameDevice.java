@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A device which publishes each flushed frame to a {@link SharedFrameBuffer}
+ * instead of sending it to LEDs. It is used by script workers, whose frames
+ * are shown by the server process.
+ *
+ * There is no write thread. The frame is written into the next slot of the
+ * ring while flush is called. Output correction, dithering and the power
+ * limit are applied by the server, so only 8 bit colors are published.
+ */
+public class SharedFrameDevice extends AdalightDevice {
+    private final SharedFrameBuffer frames;
+
+    public SharedFrameDevice(SharedFrameBuffer frames) throws Exception {
+        this.frames = frames;
+        setLedCount(frames.getLedCount());
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void flush() {
+        synchronized (mutex) {
+            super.flush();
+            publish();
+        }
+    }
+
+    @Override
+    public void showFrame(ByteBuffer rgb) {
+        synchronized (mutex) {
+            super.showFrame(rgb);
+            publish();
+        }
+    }
+
+    private void publish() {
+        final int[] front = frontBuffer;
+        final int count = Math.min(front.length, frames.getLedCount());
+        final ByteBuffer rgb = frames.beginFrame();
+        for (int i = 0, pos = 0; i < count; i++, pos += 3) {
+            int c = front[i];
+            rgb.put(pos, (byte)(c >> 16));
+            rgb.put(pos + 1, (byte)(c >> 8));
+            rgb.put(pos + 2, (byte)c);
+        }
+        for (int pos = 3 * count; pos < rgb.limit(); pos++) {
+            rgb.put(pos, (byte)0);
+        }
+        frames.publishFrame();
+    }
+}
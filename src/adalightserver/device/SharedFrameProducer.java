@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * A reference producer for a {@link SharedFrameBuffer}, which also measures
+ * the latency until the server picks up the frames.
+ *
+ * It draws a moving rainbow directly into the mapped frame, publishes it and
+ * waits until the server reports the frame as shown.
+ */
+public class SharedFrameProducer {
+    private final SharedFrameBuffer frames;
+    private final long[] latencies;
+    private int measured = 0;
+    private int missed = 0;
+
+    public SharedFrameProducer(SharedFrameBuffer frames, int maxFrames) {
+        this.frames = frames;
+        this.latencies = new long[maxFrames];
+    }
+
+    /**
+     * Writes and publishes one frame of the rainbow at the given offset
+     *
+     * @return The sequence of the frame
+     */
+    public long writeFrame(int offset) {
+        final int count = frames.getLedCount();
+        final ByteBuffer rgb = frames.beginFrame();
+        for (int i = 0, pos = 0; i < count; i++, pos += 3) {
+            int hue = ((i * 256) / count + offset) & 0xff;
+            int third = hue / 86;
+            int v = (hue % 86) * 3;
+            // Three ramps, each color rises in one third and falls in the next
+            rgb.put(pos, (byte)(third == 0 ? 255 - v : third == 1 ? 0 : v));
+            rgb.put(pos + 1, (byte)(third == 0 ? v : third == 1 ? 255 - v : 0));
+            rgb.put(pos + 2, (byte)(third == 0 ? 0 : third == 1 ? v : 255 - v));
+        }
+        return frames.publishFrame();
+    }
+
+    /**
+     * Waits until the server showed the frame and records the latency
+     *
+     * @param publishNanos The System.nanoTime() before the frame was published
+     * @param timeoutNanos The time after which the frame counts as missed
+     */
+    public boolean awaitShown(long sequence, long publishNanos, long timeoutNanos) {
+        while (frames.getShownSequence() < sequence) {
+            if (System.nanoTime() - publishNanos > timeoutNanos) {
+                missed++;
+                return false;
+            }
+            Thread.yield();
+        }
+        if (frames.getShownSequence() == sequence && measured < latencies.length) {
+            latencies[measured++] = frames.getShownNanos() - publishNanos;
+        }
+        return true;
+    }
+
+    public int getMissed() {
+        return missed;
+    }
+
+    /**
+     * Returns the measured latencies in nanoseconds, sorted
+     */
+    public long[] getLatencies() {
+        long[] l = Arrays.copyOf(latencies, measured);
+        Arrays.sort(l);
+        return l;
+    }
+
+    /**
+     * Sends frames to a running server and prints the latency
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: SharedFrameProducer file [fps] [seconds] [priority]");
+            return;
+        }
+        int fps = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int priority = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+        try (SharedFrameBuffer frames = SharedFrameBuffer.open(Paths.get(args[0]))) {
+            frames.setPriority(priority);
+            SharedFrameProducer producer = new SharedFrameProducer(frames, fps * seconds);
+            long interval = 1000000000L / fps;
+            long next = System.nanoTime();
+            for (int i = 0; i < fps * seconds; i++) {
+                long now = System.nanoTime();
+                long sequence = producer.writeFrame(i);
+                producer.awaitShown(sequence, now, interval);
+                next += interval;
+                long wait = next - System.nanoTime();
+                if (wait > 0) Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            }
+
+            long[] l = producer.getLatencies();
+            if (l.length == 0) {
+                System.out.println("No frame was shown");
+                return;
+            }
+            long sum = 0;
+            for (long v : l) sum += v;
+            System.out.printf("%d frames shown, %d missed%n", l.length, producer.getMissed());
+            System.out.printf("latency us: min %.1f, average %.1f, median %.1f, 99%% %.1f, max %.1f%n",
+                l[0] / 1000.0, sum / 1000.0 / l.length, l[l.length / 2] / 1000.0,
+                l[(int)(l.length * 0.99)] / 1000.0, l[l.length - 1] / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package adalightserver.effects;
+
+import java.util.Map;
+
+import adalightserver.types.ColorOps;
+import adalightserver.types.ColorRgb;
+
+/**
+ * Slowly pulses all LEDs between a minimum and the full brightness
+ */
+public class BreatheEffect extends NativeEffect {
+
+    /** One period of a sine wave scaled to 0 - 256 */
+    private static final int[] SINE = new int[256];
+    static {
+        for (int i = 0; i < SINE.length; i++) {
+            SINE[i] = (int)Math.round((Math.sin(2.0 * Math.PI * i / SINE.length) + 1.0) * 128.0);
+        }
+    }
+
+    private int phase = 3 << 14; // Start at the minimum of the wave
+    private int phaseStep;
+    private int color;
+    private int minimum;
+
+    @Override
+    protected Map<String, Map<String, Object>> declareParameters() {
+        Map<String, Map<String,Object>> params = parameterMap();
+        params.put("color", param(ColorRgb.class, new ColorRgb(255, 255, 255)));
+        params.put("period", param(int.class, 4000));
+        params.put("minimum", param(double.class, 0.05));
+        params.put("brightness", param(double.class, 1.0));
+        return params;
+    }
+
+    @Override
+    protected void setup() {
+        int period = Math.max(1, intParameter("period"));
+        // The phase runs from 0 to 65535 for a full period
+        phaseStep = (int)((65536L * intParameter("interval")) / period);
+        color = ColorOps.nscale8(colorParameter("color"), toScale(doubleParameter("brightness")));
+        minimum = toScale(doubleParameter("minimum"));
+    }
+
+    @Override
+    protected void render() {
+        int wave = SINE[(phase >> 8) & 0xff];
+        int level = minimum + (((255 - minimum) * wave) >> 8);
+        int c = ColorOps.nscale8(color, level);
+        for (int i = 0; i < ledCount; i++) {
+            frame[i] = c;
+        }
+        phase = (phase + phaseStep) & 0xffff;
+    }
+}
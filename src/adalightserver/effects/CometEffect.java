@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package adalightserver.effects;
+
+import java.util.Map;
+
+import adalightserver.types.ColorOps;
+import adalightserver.types.ColorRgb;
+
+/**
+ * A bright head which moves along the strip and leaves a fading tail
+ */
+public class CometEffect extends NativeEffect {
+
+    private int position = 0;
+    private int color;
+    private int speed;
+    private int tail;
+
+    @Override
+    protected Map<String, Map<String, Object>> declareParameters() {
+        Map<String, Map<String,Object>> params = parameterMap();
+        params.put("color", param(ColorRgb.class, new ColorRgb(255, 255, 255)));
+        params.put("speed", param(int.class, 1));
+        params.put("tail", param(double.class, 0.75));
+        params.put("brightness", param(double.class, 1.0));
+        return params;
+    }
+
+    @Override
+    protected void setup() {
+        color = ColorOps.nscale8(colorParameter("color"), toScale(doubleParameter("brightness")));
+        speed = intParameter("speed");
+        tail = toScale(doubleParameter("tail"));
+    }
+
+    @Override
+    protected void render() {
+        if (ledCount == 0) return;
+        
+        frameBuffer.fadeToBlack(tail);
+        frame[position] = color;
+
+        position = (position + speed) % ledCount;
+        if (position < 0) position += ledCount;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package adalightserver.effects;
+
+import java.util.Map;
+
+import adalightserver.types.ColorOps;
+/**
+ * A fire simulation which lets sparks rise from the start of the strip and
+ * cool down while they move upwards
+ */
+public class FireEffect extends NativeEffect {
+
+    private int[] heat;
+    private int cooling;
+    private int sparking;
+    private int brightness;
+
+    @Override
+    protected Map<String, Map<String, Object>> declareParameters() {
+        Map<String, Map<String,Object>> params = parameterMap();
+        params.get("interval").put("default", 30);
+        params.put("cooling", param(int.class, 55));
+        params.put("sparking", param(int.class, 120));
+        params.put("brightness", param(double.class, 1.0));
+        return params;
+    }
+
+    @Override
+    protected void setup() {
+        heat = new int[ledCount];
+        cooling = intParameter("cooling");
+        sparking = intParameter("sparking");
+        brightness = toScale(doubleParameter("brightness"));
+    }
+
+    @Override
+    protected void render() {
+        if (ledCount == 0) return;
+        
+        // Cool down every cell a little
+        int maxCooldown = (cooling * 10) / ledCount + 2;
+        for (int i = 0; i < ledCount; i++) {
+            int h = heat[i] - random(maxCooldown);
+            heat[i] = h < 0 ? 0 : h;
+        }
+
+        // Heat drifts up and diffuses
+        for (int k = ledCount - 1; k >= 2; k--) {
+            heat[k] = (heat[k - 1] + 2 * heat[k - 2]) / 3;
+        }
+
+        // Ignite new sparks near the bottom
+        if (random(255) < sparking) {
+            int y = random(Math.min(7, ledCount));
+            int h = heat[y] + 160 + random(96);
+            heat[y] = h > 255 ? 255 : h;
+        }
+
+        for (int i = 0; i < ledCount; i++) {
+            frame[i] = ColorOps.nscale8(heatColor(heat[i]), brightness);
+        }
+    }
+
+    private static int heatColor(int temperature) {
+        int t192 = (temperature * 191) / 255;
+        int ramp = (t192 & 0x3f) << 2;
+        if (t192 > 0x80) return 0xffff00 | ramp;
+        else if (t192 > 0x40) return 0xff0000 | (ramp << 8);
+        else return ramp << 16;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.effects;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import rx.functions.Action0;
+import adalightserver.scripting.LedScript;
+import adalightserver.types.ColorOps;
+import adalightserver.types.ColorRgb;
+import adalightserver.types.FrameBuffer;
+import adalightserver.types.LedApi;
+
+/**
+ * Base class for effects which are implemented in Java instead of Groovy.
+ *
+ * Native effects are LedScripts, so they are announced, parameterized, started
+ * and stopped exactly like the scripts from the scripts directory.
+ * The difference is that the per frame work happens in {@link #render()},
+ * which writes packed 0x00RRGGBB colors into a preallocated frame and must
+ * not allocate.
+ */
+public abstract class NativeEffect extends LedScript {
+
+    /** The frame which is rendered and sent to the LEDs on every tick */
+    protected FrameBuffer frameBuffer;
+    /** The pixels of frameBuffer */
+    protected int[] frame;
+    protected int ledCount;
+
+    private int randomState = (int)System.nanoTime() | 1;
+
+    /**
+     * Returns the parameters of the effect in the same format that Groovy
+     * scripts pass to parameters()
+     */
+    protected abstract Map<String, Map<String,Object>> declareParameters();
+
+    /**
+     * Is called once after the parameters are bound and the frame is allocated
+     */
+    protected void setup() {
+    }
+
+    /**
+     * Renders the next frame into {@link #frame}
+     */
+    protected abstract void render();
+
+    @Override
+    public final Object run() {
+        parameters(declareParameters());
+
+        final LedApi ledApi = getLedApi();
+        ledCount = ledApi.getLedCount();
+        frameBuffer = new FrameBuffer(ledCount);
+        frame = frameBuffer.getPixels();
+        setup();
+
+        Action0 tick = () -> {
+            render();
+            ledApi.setLedColors(frameBuffer);
+            ledApi.flush();
+        };
+        repeat(intParameter("interval"), tick);
+        return null;
+    }
+
+    protected static Map<String, Map<String,Object>> parameterMap() {
+        Map<String, Map<String,Object>> params = new LinkedHashMap<>();
+        params.put("interval", param(int.class, 20));
+        return params;
+    }
+
+    protected static Map<String,Object> param(Class<?> type, Object defaultValue) {
+        Map<String,Object> p = new HashMap<>();
+        p.put("type", type);
+        p.put("default", defaultValue);
+        return p;
+    }
+
+    protected int intParameter(String name) {
+        return ((Number)getBinding().getVariable(name)).intValue();
+    }
+
+    protected double doubleParameter(String name) {
+        return ((Number)getBinding().getVariable(name)).doubleValue();
+    }
+
+    protected int colorParameter(String name) {
+        return ((ColorRgb)getBinding().getVariable(name)).toPacked();
+    }
+
+    /**
+     * Converts a brightness factor between 0.0 and 1.0 into a scale
+     * between 0 and 255 which can be used by {@link ColorOps#nscale8(int, int)}
+     */
+    protected static int toScale(double factor) {
+        if (factor <= 0.0) return 0;
+        if (factor >= 1.0) return 255;
+        return Math.max(0, (int)(factor * 256.0) - 1);
+    }
+
+    /**
+     * Returns a pseudo random number between 0 (inclusive) and bound (exclusive)
+     */
+    protected int random(int bound) {
+        // xorshift32, which doesn't allocate or synchronize
+        int x = randomState;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        randomState = x;
+        return (int)(((x & 0xffffffffL) * bound) >>> 32);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package adalightserver.effects;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import adalightserver.scripting.LedScript;
+
+/**
+ * The list of effects which are built into the server
+ */
+public class NativeEffects {
+
+    private static final Map<String, Class<? extends LedScript>> effects = new LinkedHashMap<>();
+    static {
+        effects.put("Breathe", BreatheEffect.class);
+        effects.put("Comet", CometEffect.class);
+        effects.put("Fire", FireEffect.class);
+        effects.put("Noise", NoiseEffect.class);
+        effects.put("Rainbow", RainbowEffect.class);
+        effects.put("Twinkle", TwinkleEffect.class);
+    }
+
+    public static Map<String, Class<? extends LedScript>> getEffects() {
+        return effects;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package adalightserver.effects;
+
+import java.util.Map;
+
+import adalightserver.types.FastHsv;
+import adalightserver.types.Noise;
+
+/**
+ * Colors the strip with slowly changing smooth gradient noise
+ */
+public class NoiseEffect extends NativeEffect {
+
+    private int[] hues;
+    private int time = 0;
+    private int spatialStep;
+    private int speed;
+    private int hueScale;
+    private int brightness;
+
+    @Override
+    protected Map<String, Map<String, Object>> declareParameters() {
+        Map<String, Map<String,Object>> params = parameterMap();
+        params.get("interval").put("default", 30);
+        params.put("scale", param(double.class, 0.1));
+        params.put("speed", param(double.class, 0.02));
+        params.put("hueRange", param(int.class, 1536));
+        params.put("brightness", param(double.class, 1.0));
+        return params;
+    }
+
+    @Override
+    protected void setup() {
+        // Noise coordinates are in 8.8 fixed point
+        spatialStep = (int)(doubleParameter("scale") * 256.0);
+        speed = (int)(doubleParameter("speed") * 256.0);
+        hues = new int[ledCount];
+        // hueRange is given in 1/1536 of a full turn
+        hueScale = (FastHsv.FULL_TURN * intParameter("hueRange")) / 1536;
+        brightness = toScale(doubleParameter("brightness"));
+    }
+
+    @Override
+    protected void render() {
+        Noise.fill8(hues, 0, ledCount, 0, spatialStep, time);
+        for (int i = 0; i < ledCount; i++) {
+            hues[i] = (hues[i] * hueScale) >> 8;
+        }
+        FastHsv.toRgb(hues, 0, frame, 0, ledCount, 255, brightness);
+        time += speed;
+    }
+}
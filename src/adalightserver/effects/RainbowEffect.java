@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package adalightserver.effects;
+
+import java.util.Map;
+
+import adalightserver.types.FastHsv;
+
+/**
+ * Moves a rainbow along the strip
+ */
+public class RainbowEffect extends NativeEffect {
+
+    private int hueOffset = 0;
+    private int hueSpeed;
+    private int hueStep;
+    private int brightness;
+
+    @Override
+    protected Map<String, Map<String, Object>> declareParameters() {
+        Map<String, Map<String,Object>> params = parameterMap();
+        params.put("speed", param(int.class, 8));
+        params.put("density", param(double.class, 1.0));
+        params.put("brightness", param(double.class, 1.0));
+        return params;
+    }
+
+    @Override
+    protected void setup() {
+        // speed is given in 1/1536 of a full turn per tick
+        hueSpeed = (FastHsv.FULL_TURN * intParameter("speed")) / 1536;
+        hueStep = ledCount == 0 ? 0 : (int)(FastHsv.FULL_TURN * doubleParameter("density") / ledCount);
+        brightness = toScale(doubleParameter("brightness"));
+    }
+
+    @Override
+    protected void render() {
+        FastHsv.fillRainbow(frame, 0, ledCount, hueOffset, hueStep, 255, brightness);
+        hueOffset = (hueOffset + hueSpeed) & 0xffff;
+    }
+}
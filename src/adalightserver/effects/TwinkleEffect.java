@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package adalightserver.effects;
+
+import java.util.Map;
+
+import adalightserver.types.ColorOps;
+import adalightserver.types.ColorRgb;
+
+/**
+ * Lets random LEDs light up and slowly fade out again
+ */
+public class TwinkleEffect extends NativeEffect {
+
+    private int[] level;
+    private int color;
+    private int density;
+    private int fade;
+    private int brightness;
+
+    @Override
+    protected Map<String, Map<String, Object>> declareParameters() {
+        Map<String, Map<String,Object>> params = parameterMap();
+        params.get("interval").put("default", 30);
+        params.put("color", param(ColorRgb.class, new ColorRgb(255, 200, 120)));
+        params.put("density", param(int.class, 20));
+        params.put("fade", param(double.class, 0.9));
+        params.put("brightness", param(double.class, 1.0));
+        return params;
+    }
+
+    @Override
+    protected void setup() {
+        level = new int[ledCount];
+        color = colorParameter("color");
+        density = intParameter("density");
+        fade = toScale(doubleParameter("fade"));
+        brightness = toScale(doubleParameter("brightness"));
+    }
+
+    @Override
+    protected void render() {
+        for (int i = 0; i < ledCount; i++) {
+            int l = (level[i] * (fade + 1)) >> 8;
+            // density is the chance for a new twinkle per LED in 1/1000
+            if (random(1000) < density) l = 255;
+            level[i] = l;
+            frame[i] = ColorOps.nscale8(color, (l * (brightness + 1)) >> 8);
+        }
+    }
+}
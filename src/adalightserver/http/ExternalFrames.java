@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.http;
+
+import adalightserver.IController;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Decodes frames which are produced outside of the server.
+ *
+ * A frame is the priority of the source as one unsigned byte followed by
+ * 3 bytes red, green and blue per LED. The same format is used for binary
+ * websocket messages and UDP packets.
+ */
+final class ExternalFrames {
+    /** The largest frame which is accepted: the priority and 3 bytes for 1024 LEDs */
+    static final int MAX_SIZE = 1 + 3 * 1024;
+
+    private ExternalFrames() {
+    }
+
+    /**
+     * Passes the frame in content to the controller without copying it
+     *
+     * @return false if the frame is invalid or was rejected
+     */
+    static boolean push(IController controller, String source, ByteBuf content) {
+        int length = content.readableBytes();
+        if (length < 1 || length > MAX_SIZE) return false;
+        int priority = content.getUnsignedByte(content.readerIndex());
+        return controller.pushExternalFrame(source, priority,
+            content.nioBuffer(content.readerIndex() + 1, length - 1));
+    }
+}
@@ -29,8 +29,15 @@ import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 import javax.activation.MimetypesFileTypeMap;
@@ -39,10 +46,10 @@ import rx.Scheduler;
 import rx.Subscription;
 import rx.schedulers.Schedulers;
 import adalightserver.IController;
-import groovy.json.JsonBuilder;
-import groovy.json.JsonSlurper;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
@@ -65,6 +72,7 @@ import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
@@ -75,24 +83,77 @@ import io.netty.util.internal.SystemPropertyUtil;
 
 public class HttpServer {
 
+    /** The rate at which the LEDs are sampled for the live preview */
+    private static final int PREVIEW_TICK_MICROS = 1000000 / 60;
+    private static final int PREVIEW_MAX_FPS = 60;
+    private static final int PREVIEW_DEFAULT_FPS = 10;
+    /** The time a client may stay unwritable while events arrive before it is disconnected */
+    private static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(10);
+    
+    /**
+     * A websocket client which receives the state events.
+     * Only accessed from the boss thread.
+     */
+    private static class EventClient {
+        final Channel channel;
+        /** Receives statePatch instead of stateChanged events */
+        boolean patches = false;
+        /** The latest stateChanged event, which is held back while the channel is not writable */
+        ByteBuf pendingState = null;
+        /** statePatch events were dropped while the channel was not writable */
+        boolean patchesDropped = false;
+        long unwritableSince = 0;
+        
+        EventClient(Channel channel) {
+            this.channel = channel;
+        }
+    }
+    
+    /**
+     * A websocket client which receives the live preview.
+     * Only accessed from the boss thread, except for inFlight.
+     */
+    private static class PreviewSubscriber {
+        final Channel channel;
+        long interval;
+        long lastSent = 0;
+        /** The number of the last frame which was sent, a delta is only valid after it */
+        int lastFrame = -1;
+        /** Set while a message is written, further frames are conflated until it is done */
+        volatile boolean inFlight = false;
+        
+        PreviewSubscriber(Channel channel) {
+            this.channel = channel;
+        }
+    }
+
     private final IController ledController;
     private final ChannelGroup connections;
-    private final ChannelGroup wsConnections;
     private final EventLoopGroup bossGroup;
     private final EventLoopGroup clientGroup;
     private final Scheduler scheduler;
     private Channel channel;
-    private Subscription stateSub;
-    private String lastState = "{}";
+    private Subscription statePatchSub;
+    private final Map<Channel, EventClient> eventClients = new HashMap<>();
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    /** The last stateChanged event, which is sent to new clients */
+    private ByteBuf lastStateEvent;
+    /** The state changed after lastStateEvent was fetched */
+    private boolean stateStale = true;
+    /** The state for lastStateEvent is being fetched */
+    private boolean stateRequested = false;
+    private final Map<Channel, PreviewSubscriber> previewSubscribers = new HashMap<>();
+    private final PreviewEncoder previewEncoder = new PreviewEncoder();
+    private ScheduledFuture<?> previewTick = null;
 	
     public HttpServer(IController ledController) {
         this.bossGroup = new NioEventLoopGroup(1);
         this.clientGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
         this.scheduler = Schedulers.from(bossGroup);
         this.connections = new DefaultChannelGroup(bossGroup.next());
-        this.wsConnections = new DefaultChannelGroup(bossGroup.next());
         
         this.ledController = ledController;
+        this.lastStateEvent = encodeEvent("stateChanged", "{}");
     }
 
     public void start() {
@@ -105,16 +166,29 @@ public class HttpServer {
             channel = bootStrap.bind(8081).sync().channel();
         } catch (InterruptedException e) {}
         
-        // Listen to the state and send it to all connected clients
-        stateSub = ledController.stateChanged().observeOn(scheduler).subscribe(state -> {
-            lastState = state;
-            wsConnections.writeAndFlush(makeWebSocketEventFrame("stateChanged", state));
+        // Listen to the state changes and send them to all connected clients.
+        // The whole state is only fetched while clients without patches need it.
+        statePatchSub = ledController.statePatches().observeOn(scheduler).subscribe(patch -> {
+            ByteBuf event = encodeEvent("statePatch", patch);
+            broadcastState(event, true);
+            event.release();
+            stateStale = true;
+            if (hasStateClients()) requestState();
         });
     }
     
     public void stop() {
         try {
-            stateSub.unsubscribe();
+            statePatchSub.unsubscribe();
+            bossGroup.submit(() -> {
+                previewSubscribers.clear();
+                stopPreviewTick();
+                for (EventClient c : eventClients.values()) {
+                    if (c.pendingState != null) c.pendingState.release();
+                }
+                eventClients.clear();
+                lastStateEvent.release();
+            }).sync();
             
             channel.close().sync();
             connections.close();
@@ -124,6 +198,158 @@ public class HttpServer {
         } catch (InterruptedException e) {}
     }
     
+    /**
+     * Encodes an event once, so that it can be written to all clients
+     */
+    private ByteBuf encodeEvent(String eventName, String data) {
+        return RpcCodec.event(alloc, eventName, data);
+    }
+    
+    /**
+     * Writes a state event to all clients which receive this kind of events.
+     * Each client writes a duplicate of the same buffer. While a client is
+     * not writable only the latest stateChanged event is kept for it, while
+     * statePatch events are dropped and the client is told to catch up once
+     * it is writable again. Clients which stay behind for too long are
+     * disconnected. Must be called from the boss thread.
+     */
+    private void broadcastState(ByteBuf event, boolean patch) {
+        final long now = System.nanoTime();
+        for (Iterator<EventClient> it = eventClients.values().iterator(); it.hasNext();) {
+            EventClient c = it.next();
+            if (c.patches != patch) continue;
+            if (c.channel.isWritable() && c.pendingState == null && !c.patchesDropped) {
+                c.unwritableSince = 0;
+                c.channel.writeAndFlush(new TextWebSocketFrame(event.duplicate().retain()));
+                continue;
+            }
+            
+            if (c.unwritableSince == 0) {
+                c.unwritableSince = now;
+            } else if (now - c.unwritableSince > MAX_LAG_NANOS) {
+                System.out.println("Server => Disconnecting slow client " + c.channel.remoteAddress());
+                if (c.pendingState != null) c.pendingState.release();
+                it.remove();
+                c.channel.close();
+                continue;
+            }
+            if (patch) {
+                c.patchesDropped = true;
+            } else {
+                if (c.pendingState != null) c.pendingState.release();
+                c.pendingState = event.duplicate().retain();
+            }
+        }
+    }
+    
+    /**
+     * Returns whether a client receives stateChanged events.
+     * Must be called from the boss thread.
+     */
+    private boolean hasStateClients() {
+        for (EventClient c : eventClients.values()) {
+            if (!c.patches) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Fetches the whole state and sends it to the clients which receive
+     * stateChanged events. Changes while it is fetched are conflated into
+     * one more request. Must be called from the boss thread.
+     */
+    private void requestState() {
+        if (stateRequested) return;
+        stateRequested = true;
+        stateStale = false;
+        ledController.getStateAsJson().whenComplete((state, e) -> bossGroup.execute(() -> {
+            stateRequested = false;
+            if (state == null) {
+                // Fetched again with the next change or client
+                stateStale = true;
+                return;
+            }
+            lastStateEvent.release();
+            lastStateEvent = encodeEvent("stateChanged", state);
+            broadcastState(lastStateEvent, false);
+            if (stateStale && hasStateClients()) requestState();
+        }));
+    }
+    
+    /**
+     * Sends the events which were held back while the channel was not writable
+     */
+    private void resumeEvents(Channel channel) {
+        EventClient c = eventClients.get(channel);
+        if (c == null || !channel.isWritable()) return;
+        c.unwritableSince = 0;
+        if (c.pendingState != null) {
+            channel.write(new TextWebSocketFrame(c.pendingState));
+            c.pendingState = null;
+        }
+        if (c.patchesDropped) {
+            c.patchesDropped = false;
+            channel.write(makeWebSocketEventFrame("stateStale", "{}"));
+        }
+        channel.flush();
+    }
+    
+    /**
+     * Adds or updates a subscriber of the live preview.
+     * Must be called from the boss thread.
+     */
+    private void subscribePreview(Channel channel, int fps) {
+        PreviewSubscriber s = previewSubscribers.get(channel);
+        if (s == null) {
+            s = new PreviewSubscriber(channel);
+            previewSubscribers.put(channel, s);
+        }
+        s.interval = 1000000000L / fps;
+        if (previewTick == null) {
+            previewTick = bossGroup.scheduleAtFixedRate(this::sendPreview,
+                0, PREVIEW_TICK_MICROS, TimeUnit.MICROSECONDS);
+        }
+    }
+    
+    private void unsubscribePreview(Channel channel) {
+        previewSubscribers.remove(channel);
+        if (previewSubscribers.isEmpty()) stopPreviewTick();
+    }
+    
+    private void stopPreviewTick() {
+        if (previewTick == null) return;
+        previewTick.cancel(false);
+        previewTick = null;
+        previewEncoder.release();
+    }
+    
+    /**
+     * Samples the LEDs and sends the frame to all subscribers which are due.
+     * A subscriber which still writes the last message or whose channel is
+     * not writable skips frames. Since a delta is only valid directly after
+     * the previous frame, such subscribers and those with a lower rate get a
+     * keyframe instead. Both messages are encoded once for all subscribers.
+     */
+    private void sendPreview() {
+        previewEncoder.sample(ledController);
+        final int frame = previewEncoder.getFrameNumber();
+        // Allow half a tick of jitter, otherwise 60 fps would only get every second tick
+        final long now = System.nanoTime() + PREVIEW_TICK_MICROS * 500L;
+        for (PreviewSubscriber s : previewSubscribers.values()) {
+            if (s.lastFrame == frame || s.inFlight || now - s.lastSent < s.interval) continue;
+            if (!s.channel.isWritable()) continue;
+            
+            ByteBuf msg = null;
+            if (s.lastFrame == frame - 1) msg = previewEncoder.delta(alloc);
+            if (msg == null) msg = previewEncoder.keyframe(alloc);
+            s.lastFrame = frame;
+            s.lastSent = now;
+            s.inFlight = true;
+            s.channel.writeAndFlush(new BinaryWebSocketFrame(msg.duplicate().retain()))
+                     .addListener(f -> s.inFlight = false);
+        }
+    }
+    
     private class ServerInitializer extends ChannelInitializer<SocketChannel> {
         private final SslContext sslCtx;
         
@@ -143,134 +369,405 @@ public class HttpServer {
         }
     }
     
-    private void handleWebSocketFrame(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
-        // System.out.println("Received: " + frame.text());
-        JsonSlurper slurper = new JsonSlurper();
-        Object o = slurper.parseText(frame.text());
-        if (!(o instanceof Map<?, ?>)) return;
-        Map<?, ?> msg = (Map<?, ?>) o;
-        if (!msg.containsKey("type")) return;
-        Object typeO = msg.get("type");
-        if (!(typeO instanceof String)) return;
-        String type = (String) typeO;
+    private void handleWebSocketFrame(ChannelHandlerContext ctx, TextWebSocketFrame frame,
+                                      RpcCodec codec, RpcCodec.Request rq, ReplyQueue replies) {
+        if (!codec.parse(frame.content(), rq)) return;
         
-        if (type.equals("rq")) {
+        if ("rq".equals(rq.type)) {
             // Received a request
             // Need id, method name and data
-            if (!msg.containsKey("id") || !msg.containsKey("method") || !msg.containsKey("data")) return;
-            Object idObj = msg.get("id");
-            long id;
-            if (idObj instanceof Integer) {
-                id = (Integer) idObj;
-            }
-            else if (idObj instanceof Long) {
-                id = (Long) idObj;
-            }
-            else return;
-            Object methodObj = msg.get("method");
-            if (!(methodObj instanceof String)) return;
-            String method = (String) methodObj;
-            Object dataObj = msg.get("data");
-            Map<?, ?> data;
-            if (dataObj instanceof Map<?, ?>) data = (Map<?, ?>) dataObj;
-            else data = null;
-            handleRequest(ctx, id, method, data);
+            if (!rq.hasId || rq.method == null || !rq.hasData) return;
+            handleRequest(ctx, replies.next(), rq.id, rq.method, rq.data);
         }
     }
     
     private TextWebSocketFrame makeWebSocketEventFrame(String eventName, String data) {
-        StringBuilder b = new StringBuilder();
-        b.append("{\"type\":\"ev\", \"name\":\"")
-         .append(eventName)
-         .append("\", \"data\":")
-         .append(data)
-         .append("}");
-        return new TextWebSocketFrame(b.toString());
+        return new TextWebSocketFrame(encodeEvent(eventName, data));
     }
     
     private TextWebSocketFrame makeWebSocketResultMsg(long id, Object result, Object error) {
-        JsonBuilder builder = new JsonBuilder();
-        Map<String, Object> msg = new HashMap<String, Object>();
-        msg.put("type", "rp");
-        msg.put("id", id);
-        if (error != null) {
-            msg.put("error", error);
-        } else {
-            msg.put("result", result);
-        }
-        builder.call(msg);
-        return new TextWebSocketFrame(builder.toString());
+        return new TextWebSocketFrame(RpcCodec.result(alloc, id, result, error));
     }
     
-    private void handleRequest(ChannelHandlerContext ctx, long id, String method, Map<?, ?> data) {
+    /**
+     * Creates a result message from a result which is already encoded as JSON
+     */
+    private TextWebSocketFrame makeWebSocketJsonResultMsg(long id, String result) {
+        return new TextWebSocketFrame(RpcCodec.jsonResult(alloc, id, result));
+    }
+    
+    private void handleRequest(ChannelHandlerContext ctx, ReplyQueue.Reply reply,
+                               long id, String method, Map<?, ?> data) {
         if (method.equals("stop")) {
             ledController.stop()
-            .thenAccept(v -> ctx.writeAndFlush(makeWebSocketResultMsg(id, null, null)))
+            .thenAccept(v -> reply.send(makeWebSocketResultMsg(id, null, null)))
             .exceptionally(e -> { 
-                ctx.writeAndFlush(makeWebSocketResultMsg(id, null, "Bad request"));
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
                 return null; 
                 });
         } else if (method.equals("getState")) {
-            bossGroup.execute(() -> 
-                ctx.writeAndFlush(makeWebSocketResultMsg(id, lastState, null))
-            );
+            // Asks the controller, so that the state includes the changes of
+            // pipelined requests before this one
+            ledController.getStateAsJson()
+            .thenAccept(state -> reply.send(makeWebSocketResultMsg(id, state, null)))
+            .exceptionally(e -> { 
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return null; 
+                });
+        } else if (method.equals("subscribeState")) {
+            // The client only gets patches from now on. It passes the last
+            // version it knows to catch up, patches up to the version of the
+            // result are ignored by the client.
+            long version = -1;
+            if (data != null && data.get("version") instanceof Number) {
+                version = ((Number) data.get("version")).longValue();
+            }
+            final long since = version;
+            bossGroup.execute(() -> {
+                EventClient c = eventClients.get(ctx.channel());
+                if (c != null) {
+                    c.patches = true;
+                    if (c.pendingState != null) c.pendingState.release();
+                    c.pendingState = null;
+                }
+                ledController.getStateSince(since)
+                .thenAccept(state -> reply.send(makeWebSocketJsonResultMsg(id, state)))
+                .exceptionally(e -> { 
+                    reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                    return null; 
+                    });
+            });
+        } else if (method.equals("getScriptInfo")) {
+            List<String> names = null;
+            if (data != null && data.get("names") instanceof List<?>) {
+                names = new ArrayList<>();
+                for (Object name : (List<?>) data.get("names")) {
+                    if (name instanceof String) names.add((String) name);
+                }
+            }
+            ledController.getScriptSchemas(names)
+            .thenAccept(schemas -> reply.send(makeWebSocketJsonResultMsg(id, schemas)))
+            .exceptionally(e -> { 
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return null; 
+                });
         } else if (method.equals("getCurrentScript")) {
             ledController.getCurrentScript()
-            .thenAccept(script -> ctx.writeAndFlush(makeWebSocketResultMsg(id, script, null)))
+            .thenAccept(script -> reply.send(makeWebSocketResultMsg(id, script, null)))
             .exceptionally(e -> { 
-                ctx.writeAndFlush(makeWebSocketResultMsg(id, null, "Bad request"));
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
                 return null; 
                 });
+        } else if (method.equals("getMetrics")) {
+            ledController.getMetrics()
+            .thenAccept(metrics -> reply.send(makeWebSocketResultMsg(id, metrics, null)))
+            .exceptionally(e -> { 
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return null; 
+                });
+        } else if (method.equals("subscribePreview")) {
+            int fps = PREVIEW_DEFAULT_FPS;
+            if (data != null && data.get("fps") instanceof Number) {
+                fps = Math.max(1, Math.min(PREVIEW_MAX_FPS, ((Number) data.get("fps")).intValue()));
+            }
+            final int rate = fps;
+            bossGroup.execute(() -> {
+                subscribePreview(ctx.channel(), rate);
+                reply.send(makeWebSocketResultMsg(id, rate, null));
+            });
+        } else if (method.equals("unsubscribePreview")) {
+            bossGroup.execute(() -> {
+                unsubscribePreview(ctx.channel());
+                reply.send(makeWebSocketResultMsg(id, null, null));
+            });
         } else if (method.equals("getScripts")) {
             ledController.getAvailableScripts()
-            .thenAccept(scripts -> ctx.writeAndFlush(makeWebSocketResultMsg(id, scripts, null)))
+            .thenAccept(scripts -> reply.send(makeWebSocketResultMsg(id, scripts, null)))
             .exceptionally(e -> { 
-                ctx.writeAndFlush(makeWebSocketResultMsg(id, null, "Bad request"));
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return null; 
+                });
+        } else if (method.equals("setBrightness") || method.equals("setOutputCorrection")) {
+            Map<String,Double> settings = parseOutputSettings(method, data);
+            if (settings == null) {
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return;
+            }
+            
+            ledController.setOutputCorrection(settings)
+            .thenAccept(v -> reply.send(makeWebSocketResultMsg(id, null, null)))
+            .exceptionally(e -> { 
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
                 return null; 
                 });
         } else if (method.equals("setScript")) {
-            boolean isError = false;
-            String scriptName = null;
-            Map<String,String> parameters = new HashMap<>();
+            Map<String,String> parameters = parseScriptParameters(data);
+            if (parameters == null) {
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return;
+            }
+            String scriptName = (String) data.get("name");
             
-            if (data == null) isError = true;
-            if (!isError && !data.containsKey("name") || !data.containsKey("parameters")) isError = true;
-            if (!isError) {
-                Object nameObj = data.get("name");
-                if (!(nameObj instanceof String)) isError = true;
-                else scriptName = (String) nameObj;
-                
-                Object paramMapObj = data.get("parameters");
-                if (!(paramMapObj instanceof Map<?,?>)) isError = true;
-                else {
-                    Map<?,?> pmap = (Map<?,?>) paramMapObj;
-                    for (Map.Entry<?, ?> e : pmap.entrySet()) {
-                        if (!(e.getKey() instanceof String) || !(e.getValue() instanceof String)) {
-                            isError = true;
-                            break;
-                        } else {
-                            parameters.put((String) e.getKey(), (String) e.getValue());
-                        }
-                    }
-                }
+            ledController.setScript(scriptName, parameters)
+            .thenAccept(script -> reply.send(makeWebSocketResultMsg(id, script, null)))
+            .exceptionally(e -> { 
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return null; 
+                });
+        } else if (method.equals("getPresets")) {
+            ledController.getPresets()
+            .thenAccept(presets -> reply.send(makeWebSocketResultMsg(id, presets, null)))
+            .exceptionally(e -> { 
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return null; 
+                });
+        } else if (method.equals("savePreset")) {
+            // The name is the one of the preset, the script is given separately
+            Map<String,String> parameters = parseScriptParameters(data);
+            if (data == null || parameters == null || !(data.get("script") instanceof String)) {
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return;
             }
             
-            if (isError) {
-                ctx.writeAndFlush(makeWebSocketResultMsg(id, null, "Bad request"));
+            ledController.savePreset((String) data.get("name"), (String) data.get("script"), parameters)
+            .thenAccept(v -> reply.send(makeWebSocketResultMsg(id, null, null)))
+            .exceptionally(e -> { 
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return null; 
+                });
+        } else if (method.equals("deletePreset") || method.equals("applyPreset")) {
+            if (data == null || !(data.get("name") instanceof String)) {
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
                 return;
             }
+            String name = (String) data.get("name");
             
-            ledController.setScript(scriptName, parameters)
-            .thenAccept(script -> ctx.writeAndFlush(makeWebSocketResultMsg(id, script, null)))
+            (method.equals("deletePreset") ? ledController.deletePreset(name) : ledController.applyPreset(name))
+            .thenAccept(v -> reply.send(makeWebSocketResultMsg(id, null, null)))
+            .exceptionally(e -> { 
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return null; 
+                });
+        } else if (method.equals("setPlaylist")) {
+            if (data == null) {
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return;
+            }
+            List<String> names = parseNames(data.get("presets"));
+            Object interval = data.get("interval");
+            if (names == null || (interval != null && !(interval instanceof Number))) {
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return;
+            }
+            
+            ledController.setPlaylist(names, interval == null ? 0 : ((Number) interval).intValue())
+            .thenAccept(v -> reply.send(makeWebSocketResultMsg(id, null, null)))
             .exceptionally(e -> { 
-                ctx.writeAndFlush(makeWebSocketResultMsg(id, null, "Bad request"));
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
                 return null; 
                 });
+        } else if (method.equals("nextPreset")) {
+            ledController.nextPreset()
+            .thenAccept(v -> reply.send(makeWebSocketResultMsg(id, null, null)))
+            .exceptionally(e -> { 
+                reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+                return null; 
+                });
+        } else if (method.equals("batch")) {
+            handleBatch(reply, id, data);
+        } else {
+            reply.send(makeWebSocketResultMsg(id, null, "Unknown method"));
         }
     }
     
+    /**
+     * Runs a list of requests at once on the controller thread. The requests
+     * are given as {"requests": [{"method": "setScript", "data": {...}}, ...]}
+     * and the result contains {"result": ...} or {"error": ...} for each of
+     * them. The batch is atomic: if any request is invalid nothing is run,
+     * and if a request fails the ones before it are rolled back.
+     */
+    private void handleBatch(ReplyQueue.Reply reply, long id, Map<?, ?> data) {
+        List<BatchOperation> operations = new ArrayList<>();
+        boolean isError = data == null || !(data.get("requests") instanceof List<?>);
+        if (!isError) {
+            for (Object request : (List<?>) data.get("requests")) {
+                BatchOperation op = parseBatchOperation(request);
+                if (op == null) {
+                    isError = true;
+                    break;
+                }
+                operations.add(op);
+            }
+        }
+        if (isError) {
+            reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+            return;
+        }
+        
+        ledController.batch(ops -> {
+            // All preconditions are checked before anything is changed
+            for (int i = 0; i < operations.size(); i++) {
+                if (!operations.get(i).check.test(ops)) return failedBatch(operations.size(), i, "Not run");
+            }
+            IController.Snapshot snapshot = ops.snapshot();
+            List<Object> results = new ArrayList<>(operations.size());
+            for (int i = 0; i < operations.size(); i++) {
+                Map<String, Object> result = new LinkedHashMap<>();
+                try {
+                    result.put("result", operations.get(i).run.run(ops));
+                } catch (Exception e) {
+                    snapshot.restore();
+                    return failedBatch(operations.size(), i, "Rolled back");
+                }
+                results.add(result);
+            }
+            return results;
+        })
+        .thenAccept(results -> reply.send(makeWebSocketResultMsg(id, results, null)))
+        .exceptionally(e -> { 
+            reply.send(makeWebSocketResultMsg(id, null, "Bad request"));
+            return null; 
+            });
+    }
+    
+    /**
+     * Returns the results of a batch in which the request at index failed.
+     * The requests before it get the given error, the ones after it weren't run.
+     */
+    private static List<Object> failedBatch(int count, int failed, String before) {
+        List<Object> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("error", i < failed ? before : i == failed ? "Bad request" : "Not run");
+            results.add(result);
+        }
+        return results;
+    }
+    
+    /**
+     * A request of a batch together with its precondition
+     */
+    private static class BatchOperation {
+        final Predicate<IController.Operations> check;
+        final IController.Batch<Object> run;
+        
+        BatchOperation(Predicate<IController.Operations> check, IController.Batch<Object> run) {
+            this.check = check;
+            this.run = run;
+        }
+        
+        BatchOperation(IController.Batch<Object> run) {
+            this(ops -> true, run);
+        }
+    }
+    
+    private static BatchOperation parseBatchOperation(Object request) {
+        if (!(request instanceof Map<?, ?>)) return null;
+        Map<?, ?> rq = (Map<?, ?>) request;
+        if (!(rq.get("method") instanceof String)) return null;
+        String method = (String) rq.get("method");
+        Map<?, ?> data = rq.get("data") instanceof Map<?, ?> ? (Map<?, ?>) rq.get("data") : null;
+        
+        switch (method) {
+        case "stop":
+            return new BatchOperation(ops -> {
+                ops.stop();
+                return null;
+            });
+        case "getState":
+            return new BatchOperation(ops -> ops.getStateAsJson());
+        case "getCurrentScript":
+            return new BatchOperation(ops -> ops.getCurrentScript());
+        case "getScripts":
+            return new BatchOperation(ops -> ops.getAvailableScripts());
+        case "getMetrics":
+            return new BatchOperation(ops -> ops.getMetrics());
+        case "setBrightness":
+        case "setOutputCorrection": {
+            Map<String,Double> settings = parseOutputSettings(method, data);
+            if (settings == null) return null;
+            return new BatchOperation(ops -> ops.isValidOutputCorrection(settings), ops -> {
+                ops.setOutputCorrection(settings);
+                return null;
+            });
+        }
+        case "applyPreset": {
+            if (data == null || !(data.get("name") instanceof String)) return null;
+            String name = (String) data.get("name");
+            return new BatchOperation(ops -> ops.isValidPreset(name), ops -> {
+                ops.applyPreset(name);
+                return null;
+            });
+        }
+        case "setScript": {
+            Map<String,String> parameters = parseScriptParameters(data);
+            if (parameters == null) return null;
+            String scriptName = (String) data.get("name");
+            return new BatchOperation(ops -> ops.isValidScript(scriptName), ops -> {
+                ops.setScript(scriptName, parameters);
+                return null;
+            });
+        }
+        default:
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the settings of a setBrightness or setOutputCorrection request
+     * or null if they are invalid
+     */
+    private static Map<String,Double> parseOutputSettings(String method, Map<?, ?> data) {
+        if (data == null) return null;
+        Map<String,Double> settings = new HashMap<>();
+        for (Map.Entry<?, ?> e : data.entrySet()) {
+            if (!(e.getKey() instanceof String) || !(e.getValue() instanceof Number)) return null;
+            settings.put((String) e.getKey(), ((Number) e.getValue()).doubleValue());
+        }
+        if (method.equals("setBrightness")
+            && (settings.size() != 1 || !settings.containsKey("brightness"))) {
+            return null;
+        }
+        return settings;
+    }
+    
+    /**
+     * Returns a list of strings or null if names is no such list
+     */
+    private static List<String> parseNames(Object names) {
+        if (!(names instanceof List<?>)) return null;
+        List<String> result = new ArrayList<>();
+        for (Object name : (List<?>) names) {
+            if (!(name instanceof String)) return null;
+            result.add((String) name);
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the parameters of a setScript request or null if the request
+     * is invalid. The name is a String if the parameters are returned.
+     */
+    private static Map<String,String> parseScriptParameters(Map<?, ?> data) {
+        if (data == null || !(data.get("name") instanceof String)
+            || !(data.get("parameters") instanceof Map<?,?>)) {
+            return null;
+        }
+        Map<String,String> parameters = new HashMap<>();
+        for (Map.Entry<?, ?> e : ((Map<?,?>) data.get("parameters")).entrySet()) {
+            if (!(e.getKey() instanceof String) || !(e.getValue() instanceof String)) return null;
+            parameters.put((String) e.getKey(), (String) e.getValue());
+        }
+        return parameters;
+    }
+    
     class ServerHandler extends SimpleChannelInboundHandler<Object> {
         boolean isWebSocket = false;
+        String externalSource = null;
+        final RpcCodec codec = new RpcCodec();
+        final RpcCodec.Request request = new RpcCodec.Request();
+        ReplyQueue replies = null;
         
         @Override
         public void channelActive(ChannelHandlerContext ctx) throws Exception {
@@ -280,9 +777,24 @@ public class HttpServer {
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
             connections.remove(ctx.channel());
-            wsConnections.remove(ctx.channel());
+            if (replies != null) replies.release();
+            Channel channel = ctx.channel();
+            bossGroup.execute(() -> {
+                EventClient c = eventClients.remove(channel);
+                if (c != null && c.pendingState != null) c.pendingState.release();
+                unsubscribePreview(channel);
+            });
         };
         
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                Channel channel = ctx.channel();
+                bossGroup.execute(() -> resumeEvents(channel));
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+        
         @Override
         public void channelRead0(ChannelHandlerContext ctx, Object data) {
             if (data instanceof FullHttpRequest) {
@@ -293,7 +805,12 @@ public class HttpServer {
                     sendErrorResponse(ctx, req, BAD_REQUEST);
                 }
             } else if (data instanceof TextWebSocketFrame) {
-                handleWebSocketFrame(ctx, (TextWebSocketFrame) data);
+                if (replies == null) replies = new ReplyQueue(ctx);
+                handleWebSocketFrame(ctx, (TextWebSocketFrame) data, codec, request, replies);
+            } else if (data instanceof BinaryWebSocketFrame) {
+                // Binary messages carry external frames and are not answered
+                if (externalSource == null) externalSource = "ws:" + ctx.channel().remoteAddress();
+                ExternalFrames.push(ledController, externalSource, ((BinaryWebSocketFrame) data).content());
             } else {
                 // invalid data
                 ctx.close();
@@ -336,10 +853,16 @@ public class HttpServer {
                         handshaker.handshake(ctx.channel(), req);
                         // Push the initial state to the client.
                         // Do it from the server thread were it's safe
+                        Channel channel = ctx.channel();
                         bossGroup.execute(() -> {
-                            ctx.writeAndFlush(makeWebSocketEventFrame("stateChanged", lastState));
+                            eventClients.put(channel, new EventClient(channel));
+                            if (stateStale) {
+                                // The client gets the state once it is fetched
+                                requestState();
+                            } else {
+                                channel.writeAndFlush(new TextWebSocketFrame(lastStateEvent.duplicate().retain()));
+                            }
                         });
-                        wsConnections.add(ctx.channel());
                     }
                 } 
                 else {
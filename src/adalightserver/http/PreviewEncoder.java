@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.http;
+
+import java.util.Arrays;
+
+import adalightserver.IController;
+import adalightserver.types.FrameBuffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Encodes the frames of the LEDs for the live preview.
+ *
+ * Each message starts with the type (1 keyframe, 2 delta), the frame number
+ * as 32 bit and the number of LEDs as 16 bit integer, all big endian. A
+ * keyframe continues with 3 bytes red, green and blue per LED. A delta only
+ * contains the LEDs which changed since the previous frame as runs of the
+ * index of the first LED and the number of LEDs as 16 bit integers, followed
+ * by their colors.
+ *
+ * Both messages are encoded at most once per frame and shared by all
+ * subscribers, which each write a duplicate. Must only be used from one
+ * thread.
+ */
+final class PreviewEncoder {
+    static final int KEYFRAME = 1;
+    static final int DELTA = 2;
+    static final int HEADER_SIZE = 7;
+    /** Unchanged LEDs up to this number are included in a run, since a new run costs 4 bytes */
+    private static final int MAX_GAP = 1;
+
+    private FrameBuffer current = null;
+    private FrameBuffer previous = null;
+    private FrameBuffer next = null;
+    private int frameNumber = 0;
+    private boolean hasPrevious = false;
+    private ByteBuf keyframe = null;
+    private ByteBuf delta = null;
+    private boolean deltaEncoded = false;
+
+    /**
+     * Fetches the current frame of the LEDs
+     *
+     * @return true if it differs from the last sampled frame
+     */
+    boolean sample(IController controller) {
+        next = controller.getCurrentFrame(next);
+        if (current != null && current.size() == next.size()
+            && Arrays.equals(current.getPixels(), next.getPixels())) {
+            return false;
+        }
+
+        FrameBuffer t = previous;
+        previous = current;
+        current = next;
+        next = t;
+        hasPrevious = previous != null && previous.size() == current.size();
+        frameNumber++;
+        release();
+        return true;
+    }
+
+    int getFrameNumber() {
+        return frameNumber;
+    }
+
+    /**
+     * Returns the keyframe of the current frame. The buffer stays owned by
+     * the encoder and must be duplicated and retained for writing.
+     */
+    ByteBuf keyframe(ByteBufAllocator alloc) {
+        if (keyframe == null) {
+            final int[] pixels = current.getPixels();
+            keyframe = alloc.directBuffer(HEADER_SIZE + 3 * pixels.length);
+            writeHeader(keyframe, KEYFRAME, pixels.length);
+            for (int c : pixels) {
+                keyframe.writeMedium(c);
+            }
+        }
+        return keyframe;
+    }
+
+    /**
+     * Returns the delta from the previous to the current frame, or null if
+     * there is no previous frame or the keyframe is smaller
+     */
+    ByteBuf delta(ByteBufAllocator alloc) {
+        if (deltaEncoded) return delta;
+        deltaEncoded = true;
+        if (!hasPrevious) return null;
+
+        final int[] now = current.getPixels();
+        final int[] before = previous.getPixels();
+        final int count = now.length;
+        final int limit = HEADER_SIZE + 3 * count;
+        ByteBuf b = alloc.directBuffer(limit);
+        writeHeader(b, DELTA, count);
+        int i = 0;
+        while (i < count) {
+            if (now[i] == before[i]) {
+                i++;
+                continue;
+            }
+            // Extend the run until more than MAX_GAP LEDs are unchanged
+            int end = i + 1;
+            int gap = 0;
+            for (int j = i + 1; j < count && gap <= MAX_GAP; j++) {
+                if (now[j] == before[j]) {
+                    gap++;
+                } else {
+                    gap = 0;
+                    end = j + 1;
+                }
+            }
+            int length = end - i;
+            if (b.writerIndex() + 4 + 3 * length >= limit) {
+                b.release();
+                return null;
+            }
+            b.writeShort(i);
+            b.writeShort(length);
+            for (int j = i; j < end; j++) {
+                b.writeMedium(now[j]);
+            }
+            i = end;
+        }
+        delta = b;
+        return delta;
+    }
+
+    private void writeHeader(ByteBuf b, int type, int count) {
+        b.writeByte(type);
+        b.writeInt(frameNumber);
+        b.writeShort(count);
+    }
+
+    /**
+     * Releases the messages of the current frame
+     */
+    void release() {
+        if (keyframe != null) keyframe.release();
+        if (delta != null) delta.release();
+        keyframe = null;
+        delta = null;
+        deltaEncoded = false;
+    }
+}
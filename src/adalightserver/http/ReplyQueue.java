@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Writes the replies of one connection in the order of its requests.
+ *
+ * Requests are answered from different threads and complete in any order,
+ * so a reply waits until the replies of all earlier requests were written.
+ * Replies are written without flushing. One flush runs after all replies
+ * which were written in a row, so pipelined requests don't cost a flush
+ * each.
+ */
+final class ReplyQueue {
+
+    /**
+     * The reply to one request, which must be sent exactly once
+     */
+    final class Reply {
+        private final long sequence;
+
+        private Reply(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void send(Object msg) {
+            EventLoop loop = ctx.channel().eventLoop();
+            if (loop.inEventLoop()) write(sequence, msg);
+            else loop.execute(() -> write(sequence, msg));
+        }
+    }
+
+    private final ChannelHandlerContext ctx;
+    // Only accessed from the event loop of the channel
+    private long nextRequest = 0;
+    private long nextReply = 0;
+    private final Map<Long, Object> completed = new HashMap<>();
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+
+    ReplyQueue(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * Reserves the place of the reply to the next request.
+     * Must be called from the event loop in the order of the requests.
+     */
+    Reply next() {
+        return new Reply(nextRequest++);
+    }
+
+    private void write(long sequence, Object msg) {
+        if (closed) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        if (sequence != nextReply) {
+            completed.put(sequence, msg);
+            return;
+        }
+        ctx.write(msg);
+        nextReply++;
+        Object next;
+        while ((next = completed.remove(nextReply)) != null) {
+            ctx.write(next);
+            nextReply++;
+        }
+        if (!flushScheduled) {
+            // Runs after the replies which are already queued on the event loop
+            flushScheduled = true;
+            ctx.channel().eventLoop().execute(() -> {
+                flushScheduled = false;
+                ctx.flush();
+            });
+        }
+    }
+
+    /**
+     * Releases the replies which wait for earlier ones after the connection closed
+     */
+    void release() {
+        EventLoop loop = ctx.channel().eventLoop();
+        if (!loop.inEventLoop()) {
+            loop.execute(this::release);
+            return;
+        }
+        closed = true;
+        completed.values().forEach(ReferenceCountUtil::release);
+        completed.clear();
+    }
+}
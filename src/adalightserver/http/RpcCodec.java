@@ -0,0 +1,681 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Reads and writes the JSON messages of the websocket API directly on
+ * ByteBufs.
+ *
+ * The envelope of a request (type, id, method and data) is parsed without
+ * building a tree, the known member names and methods are matched on the
+ * raw bytes and return constant strings. Only the data member is turned into
+ * maps, lists, strings, Long, Double and Boolean values. Unknown members are
+ * skipped.
+ *
+ * A codec is used by one connection at a time, the write functions are
+ * static.
+ */
+final class RpcCodec {
+
+    /**
+     * The envelope of a message. The instance is reused for each message.
+     */
+    static final class Request {
+        String type;
+        long id;
+        boolean hasId;
+        String method;
+        Map<String, Object> data;
+        boolean hasData;
+
+        void reset() {
+            type = null;
+            id = 0;
+            hasId = false;
+            method = null;
+            data = null;
+            hasData = false;
+        }
+    }
+
+    /** Strings which are returned as constants instead of being decoded */
+    private static final String[] KNOWN = {
+        "type", "id", "method", "data", "rq",
+        "stop", "getState", "getCurrentScript", "getMetrics", "getScripts",
+        "setBrightness", "setOutputCorrection", "setScript", "subscribePreview",
+        "unsubscribePreview", "subscribeState", "getScriptInfo"
+    };
+    private static final byte[][] KNOWN_BYTES = new byte[KNOWN.length][];
+    static {
+        for (int i = 0; i < KNOWN.length; i++) {
+            KNOWN_BYTES[i] = KNOWN[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /** Nesting limit for the data member */
+    private static final int MAX_DEPTH = 32;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buf;
+    private int pos;
+    private int end;
+    private byte[] copy = new byte[256];
+    private char[] chars = new char[64];
+
+    /**
+     * Parses a message into rq.
+     *
+     * @return false if the message is no valid JSON object
+     */
+    boolean parse(ByteBuf in, Request rq) {
+        rq.reset();
+        final int length = in.readableBytes();
+        if (in.hasArray()) {
+            buf = in.array();
+            pos = in.arrayOffset() + in.readerIndex();
+        } else {
+            // Direct buffers are copied at once, which is faster than
+            // reading them byte by byte
+            if (copy.length < length) copy = new byte[Math.max(length, 2 * copy.length)];
+            in.getBytes(in.readerIndex(), copy, 0, length);
+            buf = copy;
+            pos = 0;
+        }
+        end = pos + length;
+        try {
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return trailingWhitespaceOnly();
+            }
+            while (true) {
+                skipWhitespace();
+                String name = readString(true);
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if ("type".equals(name)) {
+                    rq.type = peek() == '"' ? readString(true) : skipValueAsNull();
+                } else if ("method".equals(name)) {
+                    rq.method = peek() == '"' ? readString(true) : skipValueAsNull();
+                } else if ("id".equals(name)) {
+                    Object id = readValue(0);
+                    rq.hasId = id instanceof Long;
+                    if (rq.hasId) rq.id = (Long) id;
+                } else if ("data".equals(name)) {
+                    Object data = readValue(0);
+                    rq.hasData = true;
+                    rq.data = data instanceof Map<?, ?> ? asMap(data) : null;
+                } else {
+                    skipValue(0);
+                }
+                skipWhitespace();
+                byte c = next();
+                if (c == '}') break;
+                if (c != ',') return false;
+            }
+            return trailingWhitespaceOnly();
+        } catch (IllegalArgumentException e) {
+            return false;
+        } finally {
+            buf = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object o) {
+        return (Map<String, Object>) o;
+    }
+
+    private boolean trailingWhitespaceOnly() {
+        skipWhitespace();
+        return pos == end;
+    }
+
+    private byte peek() {
+        if (pos >= end) throw new IllegalArgumentException("Unexpected end");
+        return buf[pos];
+    }
+
+    private byte next() {
+        if (pos >= end) throw new IllegalArgumentException("Unexpected end");
+        return buf[pos++];
+    }
+
+    private void expect(char c) {
+        if (next() != c) throw new IllegalArgumentException("Expected " + c);
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte c = buf[pos];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return;
+            pos++;
+        }
+    }
+
+    private Object readValue(int depth) {
+        if (depth > MAX_DEPTH) throw new IllegalArgumentException("Nested too deep");
+        byte c = peek();
+        switch (c) {
+        case '"':
+            return readString(false);
+        case '{': {
+            pos++;
+            Map<String, Object> map = new LinkedHashMap<>();
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return map;
+            }
+            while (true) {
+                skipWhitespace();
+                String name = readString(false);
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                map.put(name, readValue(depth + 1));
+                skipWhitespace();
+                c = next();
+                if (c == '}') return map;
+                if (c != ',') throw new IllegalArgumentException("Expected , or }");
+            }
+        }
+        case '[': {
+            pos++;
+            List<Object> list = new ArrayList<>();
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return list;
+            }
+            while (true) {
+                skipWhitespace();
+                list.add(readValue(depth + 1));
+                skipWhitespace();
+                c = next();
+                if (c == ']') return list;
+                if (c != ',') throw new IllegalArgumentException("Expected , or ]");
+            }
+        }
+        case 't':
+            expectLiteral("true");
+            return Boolean.TRUE;
+        case 'f':
+            expectLiteral("false");
+            return Boolean.FALSE;
+        case 'n':
+            expectLiteral("null");
+            return null;
+        default:
+            return readNumber();
+        }
+    }
+
+    private String skipValueAsNull() {
+        skipValue(0);
+        return null;
+    }
+
+    /**
+     * Skips a value without creating any objects
+     */
+    private void skipValue(int depth) {
+        if (depth > MAX_DEPTH) throw new IllegalArgumentException("Nested too deep");
+        byte c = peek();
+        if (c == '"') {
+            pos++;
+            while (true) {
+                c = next();
+                if (c == '"') return;
+                if (c == '\\') next();
+            }
+        } else if (c == '{' || c == '[') {
+            final byte close = c == '{' ? (byte) '}' : (byte) ']';
+            pos++;
+            skipWhitespace();
+            if (peek() == close) {
+                pos++;
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                if (close == '}') {
+                    skipValue(depth + 1);
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                }
+                skipValue(depth + 1);
+                skipWhitespace();
+                c = next();
+                if (c == close) return;
+                if (c != ',') throw new IllegalArgumentException("Expected ,");
+            }
+        } else if (c == 't') {
+            expectLiteral("true");
+        } else if (c == 'f') {
+            expectLiteral("false");
+        } else if (c == 'n') {
+            expectLiteral("null");
+        } else {
+            scanNumber();
+        }
+    }
+
+    private void expectLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (next() != literal.charAt(i)) throw new IllegalArgumentException("Invalid literal");
+        }
+    }
+
+    /**
+     * Moves behind a number and returns whether it has a fraction or exponent
+     */
+    private boolean scanNumber() {
+        int start = pos;
+        boolean isFloat = false;
+        if (pos < end && buf[pos] == '-') pos++;
+        while (pos < end) {
+            byte c = buf[pos];
+            if (c >= '0' && c <= '9') {
+                pos++;
+            } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                isFloat = true;
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (pos == start || (pos == start + 1 && buf[start] == '-'))
+            throw new IllegalArgumentException("Invalid value");
+        return isFloat;
+    }
+
+    private Object readNumber() {
+        final int start = pos;
+        boolean isFloat = scanNumber();
+        int digits = pos - start;
+        if (!isFloat && digits < 19) {
+            long value = 0;
+            int i = start;
+            boolean negative = buf[i] == '-';
+            if (negative) i++;
+            for (; i < pos; i++) {
+                value = value * 10 + (buf[i] - '0');
+            }
+            return negative ? -value : value;
+        }
+        ensureChars(digits);
+        for (int i = 0; i < digits; i++) {
+            chars[i] = (char) buf[start + i];
+        }
+        try {
+            return Double.parseDouble(new String(chars, 0, digits));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number");
+        }
+    }
+
+    private void ensureChars(int length) {
+        if (chars.length < length) chars = new char[Math.max(length, 2 * chars.length)];
+    }
+
+    /**
+     * Reads a string
+     *
+     * @param known Return one of the KNOWN constants if it matches
+     */
+    private String readString(boolean known) {
+        expect('"');
+        final int start = pos;
+        if (known) {
+            while (pos < end) {
+                byte c = buf[pos];
+                if (c == '"') {
+                    String k = matchKnown(start, pos - start);
+                    if (k != null) {
+                        pos++;
+                        return k;
+                    }
+                    break;
+                }
+                if (c == '\\') break;
+                pos++;
+            }
+            pos = start;
+        }
+        int length = 0;
+        while (true) {
+            int c = next() & 0xff;
+            if (c == '"') break;
+            ensureChars(length + 2);
+            if (c == '\\') {
+                c = next();
+                switch (c) {
+                case '"': case '\\': case '/': chars[length++] = (char) c; break;
+                case 'b': chars[length++] = '\b'; break;
+                case 'f': chars[length++] = '\f'; break;
+                case 'n': chars[length++] = '\n'; break;
+                case 'r': chars[length++] = '\r'; break;
+                case 't': chars[length++] = '\t'; break;
+                case 'u':
+                    int u = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int h = Character.digit(next(), 16);
+                        if (h < 0) throw new IllegalArgumentException("Invalid escape");
+                        u = (u << 4) | h;
+                    }
+                    chars[length++] = (char) u;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid escape");
+                }
+            } else if (c < 0x80) {
+                chars[length++] = (char) c;
+            } else {
+                length = readUtf8(c, length);
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Decodes the remaining bytes of a UTF-8 sequence which starts with c
+     */
+    private int readUtf8(int c, int length) {
+        int extra;
+        int cp;
+        if ((c & 0xe0) == 0xc0) {
+            extra = 1;
+            cp = c & 0x1f;
+        } else if ((c & 0xf0) == 0xe0) {
+            extra = 2;
+            cp = c & 0x0f;
+        } else if ((c & 0xf8) == 0xf0) {
+            extra = 3;
+            cp = c & 0x07;
+        } else {
+            throw new IllegalArgumentException("Invalid UTF-8");
+        }
+        for (int i = 0; i < extra; i++) {
+            int b = next() & 0xff;
+            if ((b & 0xc0) != 0x80) throw new IllegalArgumentException("Invalid UTF-8");
+            cp = (cp << 6) | (b & 0x3f);
+        }
+        if (cp >= 0x10000) {
+            chars[length++] = Character.highSurrogate(cp);
+            chars[length++] = Character.lowSurrogate(cp);
+        } else {
+            chars[length++] = (char) cp;
+        }
+        return length;
+    }
+
+    private String matchKnown(int start, int length) {
+        for (int k = 0; k < KNOWN_BYTES.length; k++) {
+            byte[] known = KNOWN_BYTES[k];
+            if (known.length != length) continue;
+            int i = 0;
+            while (i < length && buf[start + i] == known[i]) i++;
+            if (i == length) return KNOWN[k];
+        }
+        return null;
+    }
+
+    /** The bytes of a message which is written, one per thread */
+    private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(Output::new);
+
+    /**
+     * Encodes {"type":"rp", "id":id, "result":result} or with error instead
+     * of result if error is not null
+     */
+    static ByteBuf result(ByteBufAllocator alloc, long id, Object result, Object error) {
+        Output out = OUTPUT.get();
+        out.reset();
+        out.ascii("{\"type\":\"rp\", \"id\":");
+        out.number(id);
+        if (error != null) {
+            out.ascii(", \"error\":");
+            out.value(error);
+        } else {
+            out.ascii(", \"result\":");
+            out.value(result);
+        }
+        out.put('}');
+        return out.toBuffer(alloc);
+    }
+
+    /**
+     * Encodes a result which is already encoded as JSON
+     */
+    static ByteBuf jsonResult(ByteBufAllocator alloc, long id, CharSequence json) {
+        Output out = OUTPUT.get();
+        out.reset();
+        out.ascii("{\"type\":\"rp\", \"id\":");
+        out.number(id);
+        out.ascii(", \"result\":");
+        out.utf8(json);
+        out.put('}');
+        return out.toBuffer(alloc);
+    }
+
+    /**
+     * Encodes an event whose data is already encoded as JSON
+     */
+    static ByteBuf event(ByteBufAllocator alloc, String name, CharSequence json) {
+        Output out = OUTPUT.get();
+        out.reset();
+        out.ascii("{\"type\":\"ev\", \"name\":");
+        out.string(name);
+        out.ascii(", \"data\":");
+        out.utf8(json);
+        out.put('}');
+        return out.toBuffer(alloc);
+    }
+
+    /**
+     * A growing byte array into which a message is encoded. It is copied
+     * into a buffer at once in the end, which is faster than writing each
+     * byte to the buffer.
+     */
+    private static final class Output {
+        private byte[] bytes = new byte[1024];
+        private int length = 0;
+
+        void reset() {
+            length = 0;
+            // Don't keep the memory of a huge message forever
+            if (bytes.length > 64 * 1024) bytes = new byte[1024];
+        }
+
+        ByteBuf toBuffer(ByteBufAllocator alloc) {
+            ByteBuf b = alloc.buffer(length);
+            b.writeBytes(bytes, 0, length);
+            return b;
+        }
+
+        private void ensure(int n) {
+            if (length + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + n, 2 * bytes.length));
+            }
+        }
+
+        void put(int b) {
+            if (length == bytes.length) ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void ascii(String s) {
+            final int n = s.length();
+            ensure(n);
+            for (int i = 0; i < n; i++) {
+                bytes[length++] = (byte) s.charAt(i);
+            }
+        }
+
+        /**
+         * Writes null, strings, numbers, booleans, maps, iterables and arrays of
+         * objects. Other objects are written as their string.
+         */
+        void value(Object value) {
+            if (value == null) {
+                ascii("null");
+            } else if (value instanceof CharSequence) {
+                string((CharSequence) value);
+            } else if (value instanceof Integer || value instanceof Long
+                       || value instanceof Short || value instanceof Byte) {
+                number(((Number) value).longValue());
+            } else if (value instanceof Double || value instanceof Float) {
+                double d = ((Number) value).doubleValue();
+                if (Double.isNaN(d) || Double.isInfinite(d)) ascii("null");
+                else ascii(Double.toString(d));
+            } else if (value instanceof Number || value instanceof Boolean) {
+                ascii(value.toString());
+            } else if (value instanceof Map<?, ?>) {
+                put('{');
+                boolean first = true;
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                    if (!first) put(',');
+                    first = false;
+                    string(String.valueOf(e.getKey()));
+                    put(':');
+                    value(e.getValue());
+                }
+                put('}');
+            } else if (value instanceof Iterable<?>) {
+                put('[');
+                boolean first = true;
+                for (Object o : (Iterable<?>) value) {
+                    if (!first) put(',');
+                    first = false;
+                    value(o);
+                }
+                put(']');
+            } else if (value instanceof Object[]) {
+                put('[');
+                Object[] array = (Object[]) value;
+                for (int i = 0; i < array.length; i++) {
+                    if (i > 0) put(',');
+                    value(array[i]);
+                }
+                put(']');
+            } else {
+                string(value.toString());
+            }
+        }
+
+        void string(CharSequence s) {
+            final int n = s.length();
+            // Quotes plus the worst case of 6 bytes for an escaped char
+            ensure(2 + 6 * n);
+            final byte[] b = bytes;
+            b[length++] = '"';
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x20 && c < 0x80) {
+                    if (c == '"' || c == '\\') b[length++] = '\\';
+                    b[length++] = (byte) c;
+                } else if (c < 0x20) {
+                    b[length++] = '\\';
+                    switch (c) {
+                    case '\n': b[length++] = 'n'; break;
+                    case '\r': b[length++] = 'r'; break;
+                    case '\t': b[length++] = 't'; break;
+                    default:
+                        b[length++] = 'u';
+                        b[length++] = '0';
+                        b[length++] = '0';
+                        b[length++] = HEX[c >> 4];
+                        b[length++] = HEX[c & 0xf];
+                    }
+                } else {
+                    i = utf8Char(s, i);
+                }
+            }
+            b[length++] = '"';
+        }
+
+        /**
+         * Writes the characters without escaping them
+         */
+        void utf8(CharSequence s) {
+            final int n = s.length();
+            ensure(3 * n);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) bytes[length++] = (byte) c;
+                else i = utf8Char(s, i);
+            }
+        }
+
+        /**
+         * Writes the non ASCII character at index i and returns the index of
+         * its last char, which differs for surrogate pairs. Requires 3 free
+         * bytes per char.
+         */
+        private int utf8Char(CharSequence s, int i) {
+            int c = s.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, s.charAt(++i));
+            }
+            if (c < 0x800) {
+                bytes[length++] = (byte) (0xc0 | (c >> 6));
+            } else if (c < 0x10000) {
+                bytes[length++] = (byte) (0xe0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            } else {
+                bytes[length++] = (byte) (0xf0 | (c >> 18));
+                bytes[length++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            }
+            bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            return i;
+        }
+
+        void number(long value) {
+            if (value == Long.MIN_VALUE) {
+                ascii(Long.toString(value));
+                return;
+            }
+            ensure(20);
+            if (value < 0) {
+                bytes[length++] = '-';
+                value = -value;
+            }
+            long div = 1;
+            while (div <= value / 10) div *= 10;
+            while (div > 0) {
+                bytes[length++] = (byte) ('0' + (value / div) % 10);
+                div /= 10;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.http;
+
+import java.net.InetSocketAddress;
+
+import adalightserver.IController;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+
+/**
+ * Receives external frames as UDP packets, one frame per packet.
+ * See {@link ExternalFrames} for the format.
+ *
+ * Packets are received into pooled buffers, from which the colors are
+ * decoded straight into the output buffer of the device.
+ */
+public class UdpFrameServer {
+    private final IController ledController;
+    private final int port;
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+    private Channel channel;
+
+    public UdpFrameServer(IController ledController, int port) {
+        this.ledController = ledController;
+        this.port = port;
+    }
+
+    public void start() throws InterruptedException {
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group)
+                 .channel(NioDatagramChannel.class)
+                 .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                 .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(4096))
+                 .handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+                     // Senders usually stream, so their name is only built once
+                     InetSocketAddress lastSender = null;
+                     String lastSource = null;
+
+                     @Override
+                     protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+                         if (!packet.sender().equals(lastSender)) {
+                             lastSender = packet.sender();
+                             lastSource = "udp:" + lastSender;
+                         }
+                         ExternalFrames.push(ledController, lastSource, packet.content());
+                     }
+                 });
+        channel = bootstrap.bind(port).sync().channel();
+    }
+
+    public void stop() {
+        try {
+            if (channel != null) channel.close().sync();
+        } catch (InterruptedException e) {}
+        group.shutdownGracefully();
+    }
+}
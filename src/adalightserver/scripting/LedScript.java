@@ -22,6 +22,7 @@ import java.util.concurrent.TimeUnit;
 
 import rx.Subscription;
 import rx.functions.Action0;
+import adalightserver.types.AudioApi;
 import adalightserver.types.LedApi;
 
 public abstract class LedScript extends groovy.lang.Script {
@@ -31,6 +32,10 @@ public abstract class LedScript extends groovy.lang.Script {
         return _context.getLedApi();
     }
     
+    public AudioApi getAudio() {
+        return _context.getAudio();
+    }
+    
     public void stop() {
         _context.stop();
     }
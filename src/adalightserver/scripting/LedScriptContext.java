@@ -19,10 +19,12 @@ package adalightserver.scripting;
 import java.util.Map;
 
 import rx.Scheduler;
+import adalightserver.types.AudioApi;
 import adalightserver.types.LedApi;
 
 public interface LedScriptContext {
     LedApi getLedApi();
+    AudioApi getAudio();
     Scheduler.Worker getScheduler();
     void stop();
     void setupBindingFromParameters(Map<String, Map<String,Object>> paramMap);
@@ -17,24 +17,29 @@
 package adalightserver.scripting;
 
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 
+import adalightserver.types.AudioApi;
 import adalightserver.types.LedApi;
 import rx.Scheduler;
-import rx.subjects.AsyncSubject;
 
 public class ScriptContext implements LedScriptContext {
     private Scheduler.Worker scheduler;
-    private LedApi ledApi;
-    private AsyncSubject<Boolean> finished = AsyncSubject.create();
-    private Future<Boolean> completionFuture = finished.toBlocking().toFuture();
+    private ScriptLedApi ledApi;
+    private AudioApi audio;
+    private CompletableFuture<Boolean> completionFuture = new CompletableFuture<>();
     private Boolean stopped = false;
     private ScriptInformation scriptInfo;
     private groovy.lang.Script groovyScript;
     
     public ScriptContext(Scheduler schedulerFactory, LedApi api, ScriptInformation scriptInfo, Map<String,String> params) {
+        this(schedulerFactory, api, AudioApi.SILENT, scriptInfo, params);
+    }
+    
+    public ScriptContext(Scheduler schedulerFactory, LedApi api, AudioApi audio, ScriptInformation scriptInfo, Map<String,String> params) {
         this.scheduler = schedulerFactory.createWorker();
-        this.ledApi = api;
+        this.ledApi = new ScriptLedApi(api);
+        this.audio = audio;
         // Clone the info to be able to add custom info
         this.scriptInfo = new ScriptInformation(scriptInfo);
         
@@ -68,6 +73,10 @@ public class ScriptContext implements LedScriptContext {
         return ledApi;
     }
 
+    public AudioApi getAudio() {
+        return audio;
+    }
+
     public Scheduler.Worker getScheduler() {
         return scheduler;
     }
@@ -76,7 +85,7 @@ public class ScriptContext implements LedScriptContext {
         return scriptInfo;
     }
     
-    public final Future<Boolean> getCompletionFuture() {
+    public final CompletableFuture<Boolean> getCompletionFuture() {
         return completionFuture;
     }
     
@@ -84,11 +93,30 @@ public class ScriptContext implements LedScriptContext {
         if (!stopped) {
             stopped = true;
             scheduler.unsubscribe();
-            finished.onNext(true);
-            finished.onCompleted();
+            completionFuture.complete(true);
         }
     }
     
+    /**
+     * Moves the script to another LedApi while it keeps running, see
+     * {@link ScriptLedApi#setTarget}. Can be called from any thread.
+     */
+    public void setOutput(LedApi api) {
+        ledApi.setTarget(api);
+    }
+    
+    /**
+     * Stops the script from any thread without waiting for it. The script
+     * can't change the LEDs anymore when this returns, even if its current
+     * frame takes longer. The returned future completes when the script
+     * stopped.
+     */
+    public CompletableFuture<Boolean> cancel() {
+        ledApi.detach();
+        scheduler.schedule(this::stop);
+        return completionFuture;
+    }
+    
     private void setupParameters(Map<String,String> params) {
         scriptInfo.parameters.forEach((pname, param) -> {
             String paramValue = params.get(pname);
@@ -20,11 +20,14 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import adalightserver.types.JsonString;
+
 public class ScriptInformation {
     
     public final String name;
     public final Class<? extends LedScript> script;
     public final Map<String, ScriptParameter> parameters;
+    private String json = null;
     
     public ScriptInformation(String name, Class<? extends LedScript> script,
             Map<String, ScriptParameter> parameters) {
@@ -42,12 +45,18 @@ public class ScriptInformation {
         });
     }
     
+    /**
+     * Returns the name and the parameters as JSON. The result is cached, so
+     * the parameters must not be changed after the first call. Reloading a
+     * script creates a new instance.
+     */
     public String toJson() {
+        if (json != null) return json;
         StringBuilder s = new StringBuilder();
         
-        s.append("{\"name\": \"");
-        s.append(name);
-        s.append("\", \"parameters\": [");
+        s.append("{\"name\": ");
+        JsonString.append(s, name);
+        s.append(", \"parameters\": [");
         if (parameters != null) {
             s.append(parameters.values().stream()
                     .filter(param -> param.isSupported())
@@ -56,7 +65,8 @@ public class ScriptInformation {
         }
         s.append("]}");
         
-        return s.toString();
+        json = s.toString();
+        return json;
     }
 
 }
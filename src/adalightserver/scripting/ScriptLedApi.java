@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.scripting;
+
+import java.nio.ByteBuffer;
+
+import adalightserver.types.ColorRgb;
+import adalightserver.types.FrameBuffer;
+import adalightserver.types.LedApi;
+import adalightserver.types.PixelLayout;
+import adalightserver.types.Sprite;
+
+/**
+ * The LedApi of one script, which forwards to a target until the script
+ * is detached. Afterwards all changes of the script are dropped, so the
+ * script can't touch the LEDs anymore while it still finishes its frame.
+ * Reading the LED count, the layout and the history is always possible.
+ *
+ * The target can be switched while the script runs, which moves a script
+ * from an offscreen device to the real one. The script only moves between
+ * two frames, so a frame is never split between both targets.
+ */
+public final class ScriptLedApi implements LedApi {
+    private volatile LedApi target;
+    private boolean attached = true;
+    // The target to which the script moves when it flushes its current frame
+    private LedApi pendingTarget = null;
+    // The script changed the LEDs since its last flush
+    private boolean drawing = false;
+
+    public ScriptLedApi(LedApi target) {
+        this.target = target;
+    }
+
+    /**
+     * Drops all further changes. When this returns no change of the script
+     * is in progress anymore.
+     */
+    public synchronized void detach() {
+        attached = false;
+    }
+
+    public synchronized boolean isAttached() {
+        return attached;
+    }
+
+    /**
+     * Lets the script draw on another target. The frame which the script
+     * flushed last on the old target is shown on the new one right away,
+     * so the switch doesn't wait for the next frame of the script. If the
+     * script is in the middle of a frame it finishes the frame on the old
+     * target and moves when it flushes, otherwise it moves right away. The
+     * LED buffer of the new target starts with the last flushed frame.
+     */
+    public synchronized void setTarget(LedApi newTarget) {
+        if (attached) moveFrame(target, newTarget);
+        if (drawing) {
+            pendingTarget = newTarget;
+        } else {
+            target = newTarget;
+            pendingTarget = null;
+        }
+    }
+
+    /**
+     * Shows the last flushed frame of from on to
+     */
+    private static void moveFrame(LedApi from, LedApi to) {
+        FrameBuffer frame = new FrameBuffer(from.getLedCount());
+        from.getPreviousFrame(0, frame);
+        to.setLedColors(frame);
+        to.flush();
+    }
+
+    /**
+     * Returns the target for a change of the LEDs, which is part of the
+     * frame until the next flush
+     */
+    private LedApi draw() {
+        drawing = true;
+        return target;
+    }
+
+    @Override
+    public synchronized void setLedCount(int ledCount) throws Exception {
+        if (attached) draw().setLedCount(ledCount);
+    }
+
+    @Override
+    public int getLedCount() {
+        return target.getLedCount();
+    }
+
+    @Override
+    public PixelLayout getLayout() {
+        return target.getLayout();
+    }
+
+    @Override
+    public synchronized void setLedColor(int position, ColorRgb color) throws Exception {
+        if (attached) draw().setLedColor(position, color);
+    }
+
+    @Override
+    public synchronized void setAllLedsToColor(ColorRgb color) throws Exception {
+        if (attached) draw().setAllLedsToColor(color);
+    }
+
+    @Override
+    public synchronized void setLedColor(int position, int color) throws Exception {
+        if (attached) draw().setLedColor(position, color);
+    }
+
+    @Override
+    public synchronized void setAllLedsToColor(int color) {
+        if (attached) draw().setAllLedsToColor(color);
+    }
+
+    @Override
+    public synchronized void setLedColor16(int position, int red, int green, int blue) throws Exception {
+        if (attached) draw().setLedColor16(position, red, green, blue);
+    }
+
+    @Override
+    public synchronized void setLedColors(int[] colors) {
+        if (attached) draw().setLedColors(colors);
+    }
+
+    @Override
+    public synchronized void setLedColors(FrameBuffer frame) {
+        if (attached) draw().setLedColors(frame);
+    }
+
+    @Override
+    public synchronized void showFrame(ByteBuffer rgb) {
+        if (!attached) return;
+        // A whole frame, which doesn't use the LED buffer
+        if (!drawing && pendingTarget != null) {
+            target = pendingTarget;
+            pendingTarget = null;
+        }
+        target.showFrame(rgb);
+    }
+
+    @Override
+    public synchronized void fadeToBlack(int scale) {
+        if (attached) draw().fadeToBlack(scale);
+    }
+
+    @Override
+    public synchronized void blur(int amount) {
+        if (attached) draw().blur(amount);
+    }
+
+    @Override
+    public synchronized void shift(int count) {
+        if (attached) draw().shift(count);
+    }
+
+    @Override
+    public synchronized void rotate(int count) {
+        if (attached) draw().rotate(count);
+    }
+
+    @Override
+    public synchronized void mirror() {
+        if (attached) draw().mirror();
+    }
+
+    @Override
+    public synchronized void blend(FrameBuffer other, int amount) {
+        if (attached) draw().blend(other, amount);
+    }
+
+    @Override
+    public synchronized void drawSprite(Sprite sprite, int position, int color, Sprite.Blend blend) {
+        if (attached) draw().drawSprite(sprite, position, color, blend);
+    }
+
+    @Override
+    public int getHistoryDepth() {
+        return target.getHistoryDepth();
+    }
+
+    @Override
+    public int getPreviousLedColor(int age, int position) throws Exception {
+        return target.getPreviousLedColor(age, position);
+    }
+
+    @Override
+    public void getPreviousFrame(int age, FrameBuffer dest) {
+        target.getPreviousFrame(age, dest);
+    }
+
+    @Override
+    public synchronized void decayPreviousFrame(int scale) {
+        if (attached) draw().decayPreviousFrame(scale);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (!attached) return;
+        target.flush();
+        drawing = false;
+        if (pendingTarget != null) {
+            moveFrame(target, pendingTarget);
+            target = pendingTarget;
+            pendingTarget = null;
+        }
+    }
+}
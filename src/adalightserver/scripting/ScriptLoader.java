@@ -28,9 +28,20 @@ import org.codehaus.groovy.control.customizers.ImportCustomizer;
 import org.codehaus.groovy.control.customizers.SecureASTCustomizer;
 import org.codehaus.groovy.syntax.Types;
 
+import adalightserver.types.AudioApi;
+import adalightserver.types.AudioFrame;
 import adalightserver.types.ColorHsv;
+import adalightserver.types.ColorOps;
 import adalightserver.types.ColorRgb;
+import adalightserver.types.FastHsv;
+import adalightserver.types.FrameBuffer;
+import adalightserver.types.FrameHistory;
 import adalightserver.types.LedApi;
+import adalightserver.types.Noise;
+import adalightserver.types.Palette;
+import adalightserver.types.ParticleSystem;
+import adalightserver.types.PixelLayout;
+import adalightserver.types.Sprite;
 
 
 public class ScriptLoader {
@@ -51,7 +62,7 @@ public class ScriptLoader {
         secure.setImportsWhitelist(Arrays.asList("java.lang.Math","java.lang.Object"));
         secure.setStarImportsWhitelist(Arrays.asList("adalightserver.types"));
         secure.setStaticImportsWhitelist(Arrays.asList("java.lang.Object.parameters","java.lang.Object.println"));
-        secure.setStaticStarImportsWhitelist(Arrays.asList("adalightserver.types", "java.lang.Math","java.lang.Object","adalightserver.types.LedApi","adalightserver.types.ColorHsv", "adalightserver.types.ColorRgb")); // only java.lang.Math is allowed
+        secure.setStaticStarImportsWhitelist(Arrays.asList("adalightserver.types", "java.lang.Math","java.lang.Object","adalightserver.types.LedApi","adalightserver.types.AudioApi", "adalightserver.types.AudioFrame", "adalightserver.types.ColorHsv", "adalightserver.types.ColorRgb", "adalightserver.types.ColorOps", "adalightserver.types.FastHsv", "adalightserver.types.FrameHistory", "adalightserver.types.Noise", "adalightserver.types.Palette", "adalightserver.types.ParticleSystem", "adalightserver.types.PixelLayout", "adalightserver.types.Sprite")); // only java.lang.Math is allowed
         
         secure.setTokensWhitelist(Arrays.asList(
             Types.PLUS,
@@ -93,8 +104,21 @@ public class ScriptLoader {
             Long.class,
             BigDecimal.class,
             String.class,
+            AudioApi.class,
+            AudioFrame.class,
             ColorHsv.class,
             ColorRgb.class,
+            ColorOps.class,
+            FastHsv.class,
+            FrameBuffer.class,
+            FrameHistory.class,
+            Noise.class,
+            Palette.class,
+            ParticleSystem.class,
+            ParticleSystem.Emitter.class,
+            PixelLayout.class,
+            Sprite.class,
+            Sprite.Blend.class,
             LedApi.class));
         
         secure.setIndirectImportCheckEnabled(true);
@@ -26,6 +26,7 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
@@ -39,6 +40,7 @@ import rx.Scheduler;
 import rx.schedulers.Schedulers;
 import rx.subjects.BehaviorSubject;
 import rx.subjects.PublishSubject;
+import adalightserver.effects.NativeEffects;
 
 public class ScriptManager {
     
@@ -53,6 +55,10 @@ public class ScriptManager {
     Scheduler scheduler = Schedulers.from(executor);
     
     Map<String, ScriptInformation> scripts = new HashMap<>();
+    // Effects which are implemented in Java. Scripts with the same name override them.
+    Map<String, ScriptInformation> nativeScripts = new HashMap<>();
+    // An immutable copy of scripts for lookups from other threads, replaced on each change
+    volatile Map<String, ScriptInformation> snapshot = Collections.emptyMap();
     
     BehaviorSubject<Map<String, ScriptInformation>> availableScriptsSubject = 
         BehaviorSubject.create(new HashMap<>());
@@ -73,6 +79,8 @@ public class ScriptManager {
                 StandardWatchEventKinds.ENTRY_MODIFY,
                 StandardWatchEventKinds.ENTRY_DELETE);
         
+            scheduler.createWorker().schedule(() -> registerNativeEffects());
+            
             watchThread = new WatchThread();
             watchThread.thread = new Thread(watchThread);
             // Listen for file updates in our directory
@@ -89,6 +97,32 @@ public class ScriptManager {
         }
     }
     
+    private void registerNativeEffects() {
+        NativeEffects.getEffects().forEach((scriptName, effectClass) -> {
+            Map<String, ScriptParameter> parameters = ScriptParameterFetcher.getParametersForScript(effectClass);
+            if (parameters != null) {
+                ScriptInformation effect = new ScriptInformation(scriptName, effectClass, parameters);
+                nativeScripts.put(scriptName, effect);
+                scripts.put(scriptName, effect);
+                System.out.println("Registered native effect " + scriptName);
+            }
+        });
+        
+        publishScripts();
+    }
+    
+    private void publishScripts() {
+        snapshot = Collections.unmodifiableMap(new HashMap<String, ScriptInformation>(scripts));
+        availableScriptsSubject.onNext(snapshot);
+    }
+    
+    private void removeScript(String scriptName) {
+        // Fall back to a native effect of the same name if there is one
+        ScriptInformation nativeScript = nativeScripts.get(scriptName);
+        if (nativeScript != null) scripts.put(scriptName, nativeScript);
+        else scripts.remove(scriptName);
+    }
+    
     private void handleFileChange(File file, Boolean fileExists) {
         String filename = file.getName();
         if (!filename.endsWith(".groovy")) return;
@@ -106,14 +140,14 @@ public class ScriptManager {
                 }
             }
             else {
-                scripts.remove(scriptName);
+                removeScript(scriptName);
             }
         }
         else {
-            scripts.remove(scriptName);
+            removeScript(scriptName);
         }
         
-        availableScriptsSubject.onNext(new HashMap<String, ScriptInformation>(scripts));
+        publishScripts();
     }
     
     public void stopWatch() {
@@ -126,6 +160,8 @@ public class ScriptManager {
             executor.awaitTermination(10, TimeUnit.SECONDS);
             // Clear the available scripts
             scripts.clear();
+            nativeScripts.clear();
+            snapshot = Collections.emptyMap();
             scriptLoader.dispose();
             availableScriptsSubject.onCompleted();
         } catch (IOException | InterruptedException e) {
@@ -133,20 +169,27 @@ public class ScriptManager {
         }
     }
     
+    /**
+     * Returns the script with the given name or null. Can be called from any
+     * thread without waiting for script loading.
+     */
+    public ScriptInformation getScript(String scriptName) {
+        return snapshot.get(scriptName);
+    }
+    
+    /**
+     * Returns an immutable map of all scripts. Can be called from any thread.
+     */
+    public Map<String, ScriptInformation> getScripts() {
+        return snapshot;
+    }
+    
     public CompletableFuture<ScriptInformation> getScriptByName(String scriptName) {
-        CompletableFuture<ScriptInformation> f = new CompletableFuture<>();
-        scheduler.createWorker().schedule(() -> {
-            f.complete(scripts.get(scriptName));
-        });
-        return f;
+        return CompletableFuture.completedFuture(getScript(scriptName));
     }
     
     public CompletableFuture<Map<String, ScriptInformation>> getAvailableScripts() {
-        CompletableFuture<Map<String, ScriptInformation>> f = new CompletableFuture<>();
-        scheduler.createWorker().schedule(() -> {
-            f.complete(new HashMap<String, ScriptInformation>(scripts));
-        });
-        return f;
+        return CompletableFuture.completedFuture(new HashMap<String, ScriptInformation>(snapshot));
     }
     
     private class FileChangeEvent {
@@ -177,12 +220,11 @@ public class ScriptManager {
             while (true) {
                 final WatchKey key;
                 try {
-                    key = watchService.poll();
+                    key = watchService.take();
                 }
-                catch (ClosedWatchServiceException e) {
+                catch (ClosedWatchServiceException | InterruptedException e) {
                     break;
                 }
-                if (key == null) continue;
                 
                 for (WatchEvent<?> watchEvent : key.pollEvents()) {
                     @SuppressWarnings("unchecked")
@@ -36,6 +36,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 import adalightserver.types.ColorRgb;
+import adalightserver.types.Palette;
 
 public class ScriptParameter {
     
@@ -48,7 +49,7 @@ public class ScriptParameter {
         = new HashSet<>();
     static {
         SupportedParameters.addAll(Arrays.asList(
-            int.class, double.class, ColorRgb.class
+            int.class, double.class, ColorRgb.class, Palette.class
         ));
     }
     
@@ -130,6 +131,19 @@ public class ScriptParameter {
                  .append("\"");
             }
         }
+        else if (type.equals(Palette.class)) {
+            s.append("Palette\"");
+            if (defaultValue instanceof Palette) {
+                s.append(", \"default\": \"")
+                 .append(((Palette)defaultValue).toSpecString())
+                 .append("\"");
+            }
+            if (currentValue instanceof Palette) {
+                s.append(", \"current\": \"")
+                 .append(((Palette)currentValue).toSpecString())
+                 .append("\"");
+            }
+        }
         
         s.append("}");
         return s.toString();
@@ -159,6 +173,17 @@ public class ScriptParameter {
                 return;
             } catch (Exception e) {}
         }
+        else if (type == Palette.class) {
+            // Only compile a new table if the palette really changed
+            if (currentValue instanceof Palette
+                && ((Palette)currentValue).toSpecString().equals(valueString)) {
+                return;
+            }
+            try {
+                currentValue = Palette.parse(valueString);
+                return;
+            } catch (Exception e) {}
+        }
         else if (type == String.class) {
             currentValue = valueString;
             return;
@@ -20,6 +20,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import rx.Scheduler.Worker;
+import adalightserver.types.AudioApi;
 import adalightserver.types.LedApi;
 
 public class ScriptParameterFetcher {
@@ -31,6 +32,11 @@ public class ScriptParameterFetcher {
             throw new RuntimeException();
         }
     
+        @Override
+        public AudioApi getAudio() {
+            throw new RuntimeException();
+        }
+    
         @Override
         public Worker getScheduler() {
             throw new RuntimeException();
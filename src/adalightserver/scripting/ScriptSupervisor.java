@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.scripting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import adalightserver.device.SharedFrameBuffer;
+import adalightserver.types.LedApi;
+
+/**
+ * Runs scripts in separate worker processes (see {@link ScriptWorker}), so a
+ * failing script can neither stop the server nor exhaust its heap.
+ *
+ * The worker renders into a ring of frames in shared memory. A supervision
+ * thread picks up new frames each millisecond and shows them on the LEDs.
+ * It also restarts the worker if it exits, fails or stops sending its
+ * heartbeat, which the worker sends from the thread of the script, so a
+ * hanging script is restarted as well. Restarts are delayed with an exponential backoff, which is
+ * reset after the worker ran for a minute.
+ *
+ * At most one worker runs at a time. Audio input is not available to
+ * workers.
+ */
+public class ScriptSupervisor {
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long STARTUP_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    private static final long HEARTBEAT_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    private static final long MIN_RESTART_DELAY = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MAX_RESTART_DELAY = TimeUnit.SECONDS.toNanos(30);
+    private static final long STABLE_RUNTIME = TimeUnit.SECONDS.toNanos(60);
+    private static final long STOP_TIMEOUT = 2000;
+
+    private final LedApi api;
+    private final Path scriptDirectory;
+    private final List<String> workerOptions;
+    private final int heapMegabytes;
+
+    // The current worker, only changed while holding this
+    private List<String> command = null;
+    private volatile SharedFrameBuffer frames = null;
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    // Only used by the supervision thread
+    private Process process = null;
+    private long startNanos = 0;
+    private long restartDelay = MIN_RESTART_DELAY;
+    private long lastFrameCount = 0;
+    private long lastCpuNanos = 0;
+    private long lastCpuSample = 0;
+    private ByteBuffer frame = ByteBuffer.allocate(0);
+
+    // Measurements
+    private volatile long restarts = 0;
+    private volatile long frameCount = 0;
+    private volatile double cpuPercent = 0.0;
+
+    /**
+     * @param workerOptions Options which are passed to each worker, e.g. --layout=file
+     * @param heapMegabytes The maximum heap of each worker
+     */
+    public ScriptSupervisor(LedApi api, Path scriptDirectory, List<String> workerOptions, int heapMegabytes) {
+        this.api = api;
+        this.scriptDirectory = scriptDirectory;
+        this.workerOptions = new ArrayList<>(workerOptions);
+        this.heapMegabytes = heapMegabytes;
+    }
+
+    /**
+     * Starts a worker for the script. A running worker is stopped before.
+     */
+    public synchronized void start(ScriptInformation scriptInfo, Map<String,String> params) throws IOException {
+        stop();
+
+        Path dir = Paths.get("/dev/shm");
+        if (!Files.isDirectory(dir)) dir = Paths.get(System.getProperty("java.io.tmpdir"));
+        Path file = Files.createTempFile(dir, "adalight-worker-", ".frames");
+        frames = SharedFrameBuffer.create(file, api.getLedCount());
+
+        command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Xmx" + heapMegabytes + "m");
+        command.add("-XX:+ExitOnOutOfMemoryError");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ScriptWorker.class.getName());
+        command.add(file.toString());
+        command.add(scriptDirectory.toAbsolutePath().toString());
+        command.add(scriptInfo.name);
+        command.addAll(workerOptions);
+        params.forEach((name, value) -> command.add(name + "=" + value));
+
+        restartDelay = MIN_RESTART_DELAY;
+        lastFrameCount = 0;
+        running = true;
+        thread = new Thread(this::supervise, "ScriptSupervisor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the worker. The worker shows no frames anymore when this returns,
+     * but it exits in the background, so a slow worker doesn't hold up the
+     * caller.
+     */
+    public synchronized void stop() {
+        if (thread == null) return;
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+        }
+        thread = null;
+        try {
+            frames.close();
+        } catch (IOException e) {
+        }
+        frames = null;
+        cpuPercent = 0.0;
+    }
+
+    private void supervise() {
+        long nextStart = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            if (process == null) {
+                if (now - nextStart >= 0) launch(now);
+            } else if (!process.isAlive()) {
+                System.out.println("Script worker exited with code " + process.exitValue());
+                nextStart = scheduleRestart(now);
+            } else if (!isResponding(now)) {
+                System.out.println("Script worker is not responding");
+                process.destroyForcibly();
+                nextStart = scheduleRestart(now);
+            } else {
+                showNewFrame();
+                sampleCpu(now);
+            }
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+        if (process != null) {
+            Process exiting = process;
+            Thread t = new Thread(() -> shutdown(exiting), "ScriptWorkerShutdown");
+            t.setDaemon(true);
+            t.start();
+        }
+        process = null;
+    }
+
+    private void launch(long now) {
+        try {
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = builder.start();
+            startNanos = now;
+            lastCpuSample = 0;
+        } catch (IOException e) {
+            System.out.println("Can not start script worker: " + e.getMessage());
+            process = null;
+        }
+    }
+
+    private long scheduleRestart(long now) {
+        if (now - startNanos > STABLE_RUNTIME) restartDelay = MIN_RESTART_DELAY;
+        long next = now + restartDelay;
+        System.out.println("Restarting script worker in " + TimeUnit.NANOSECONDS.toMillis(restartDelay) + " ms");
+        restartDelay = Math.min(MAX_RESTART_DELAY, restartDelay * 2);
+        process = null;
+        restarts++;
+        return next;
+    }
+
+    /**
+     * Checks the heartbeat, which the worker sends with its statistics
+     */
+    private boolean isResponding(long now) {
+        long heartbeat = frames.getStatisticsNanos();
+        if (heartbeat - startNanos < 0) {
+            // No heartbeat of this worker yet, it still starts up
+            return now - startNanos < STARTUP_TIMEOUT;
+        }
+        return now - heartbeat < HEARTBEAT_TIMEOUT;
+    }
+
+    private void showNewFrame() {
+        if (frame.capacity() < 3 * frames.getLedCount())
+            frame = ByteBuffer.allocate(3 * frames.getLedCount());
+        // Only a copy which is known to be complete is shown
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long sequence = frames.getSequence();
+            long count = SharedFrameBuffer.frameCount(sequence);
+            if (count == 0 || count == lastFrameCount) return;
+            if (frames.readFrame(sequence, frame)) {
+                api.showFrame(frame);
+                lastFrameCount = count;
+                frameCount++;
+                return;
+            }
+        }
+    }
+
+    private void sampleCpu(long now) {
+        long cpu = frames.getProducerCpuNanos();
+        if (lastCpuSample != 0 && now - lastCpuSample < TimeUnit.SECONDS.toNanos(1)) return;
+        if (lastCpuSample != 0 && cpu >= lastCpuNanos) {
+            cpuPercent = 100.0 * (cpu - lastCpuNanos) / (now - lastCpuSample);
+        }
+        lastCpuNanos = cpu;
+        lastCpuSample = now;
+    }
+
+    /**
+     * Closes stdin of the worker, which lets it exit, and kills it if
+     * that doesn't happen in time
+     */
+    private static void shutdown(Process process) {
+        try {
+            process.getOutputStream().close();
+        } catch (IOException e) {
+        }
+        try {
+            if (!process.waitFor(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * The number of times a worker was restarted
+     */
+    public long getRestarts() {
+        return restarts;
+    }
+
+    /**
+     * The number of frames which were shown from workers
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * The CPU usage of the current worker in percent of one core
+     */
+    public double getCpuPercent() {
+        return cpuPercent;
+    }
+
+    public double getHeapUsedMegabytes() {
+        SharedFrameBuffer f = frames;
+        return f == null ? 0.0 : f.getProducerHeapUsed() / (1024.0 * 1024.0);
+    }
+
+    public double getHeapMaxMegabytes() {
+        SharedFrameBuffer f = frames;
+        return f == null ? 0.0 : f.getProducerHeapMax() / (1024.0 * 1024.0);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.scripting;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.schedulers.Schedulers;
+import adalightserver.device.SharedFrameBuffer;
+import adalightserver.device.SharedFrameDevice;
+import adalightserver.effects.NativeEffects;
+import adalightserver.types.PixelLayout;
+
+/**
+ * Runs a single script in a worker process, which is started by the
+ * {@link ScriptSupervisor}. The frames are published to a shared frame
+ * buffer, from which the server sends them to the LEDs.
+ *
+ * Arguments: frameFile scriptDirectory scriptName [--history=frames]
+ * [--layout=file] [parameter=value]...
+ *
+ * The worker exits when its stdin is closed, which also happens if the
+ * server dies, and with exit code 1 if the script fails. The statistics in
+ * the frame buffer are updated twice a second from the thread of the script
+ * and serve as heartbeat, so it stops when the script hangs.
+ */
+public class ScriptWorker {
+    public static final int EXIT_SCRIPT_FAILED = 1;
+    public static final int EXIT_INVALID_ARGUMENTS = 2;
+    static final long STATISTICS_INTERVAL = 500;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: ScriptWorker frameFile scriptDirectory scriptName [options] [parameter=value]...");
+            System.exit(EXIT_INVALID_ARGUMENTS);
+        }
+        String scriptName = args[2];
+        Map<String,String> params = new HashMap<>();
+        SharedFrameBuffer frames = SharedFrameBuffer.open(Paths.get(args[0]));
+        SharedFrameDevice device = new SharedFrameDevice(frames);
+        for (int i = 3; i < args.length; i++) {
+            String arg = args[i];
+            int sep = arg.indexOf('=');
+            if (sep < 0) continue;
+            String name = arg.substring(0, sep);
+            String value = arg.substring(sep + 1);
+            if (name.equals("--history")) {
+                device.setHistoryDepth(Math.max(1, Integer.parseInt(value)));
+            } else if (name.equals("--layout")) {
+                device.setLayout(PixelLayout.load(Paths.get(value)));
+            } else {
+                params.put(name, value);
+            }
+        }
+
+        ScriptInformation scriptInfo = loadScript(new File(args[1]), scriptName);
+        if (scriptInfo == null) {
+            System.out.println("Worker can not load script " + scriptName);
+            System.exit(EXIT_INVALID_ARGUMENTS);
+        }
+
+        // Exit when the server closes stdin
+        Thread input = new Thread(() -> {
+            try {
+                while (System.in.read() >= 0) {
+                }
+            } catch (Exception e) {
+            }
+            System.exit(0);
+        }, "WorkerInput");
+        input.setDaemon(true);
+        input.start();
+
+        ScriptContext context = new ScriptContext(Schedulers.newThread(), device, scriptInfo, params);
+        // The heartbeat runs between the actions of the script, which
+        // can't run while one of them is stuck
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        context.getScheduler().schedulePeriodically(() -> publishStatistics(frames, os),
+            0, STATISTICS_INTERVAL, TimeUnit.MILLISECONDS);
+        context.run();
+        // The context only completes if the script failed
+        context.getCompletionFuture().get();
+        System.exit(EXIT_SCRIPT_FAILED);
+    }
+
+    /**
+     * Loads the script in the same way as the ScriptManager, where scripts
+     * override native effects of the same name
+     */
+    static ScriptInformation loadScript(File directory, String scriptName) {
+        File file = new File(directory, scriptName + ".groovy");
+        Class<? extends LedScript> scriptClass = null;
+        if (file.isFile()) {
+            scriptClass = new ScriptLoader().loadScript(file);
+        }
+        if (scriptClass == null) {
+            scriptClass = NativeEffects.getEffects().get(scriptName);
+        }
+        if (scriptClass == null) return null;
+        Map<String, ScriptParameter> parameters = ScriptParameterFetcher.getParametersForScript(scriptClass);
+        if (parameters == null) return null;
+        return new ScriptInformation(scriptName, scriptClass, parameters);
+    }
+
+    private static void publishStatistics(SharedFrameBuffer frames, OperatingSystemMXBean os) {
+        long cpu = 0;
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            cpu = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        frames.publishStatistics(cpu, heap.getUsed(), heap.getMax());
+    }
+}
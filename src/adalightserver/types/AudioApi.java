@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+/**
+ * Access to the analysis of the audio input for music reactive scripts.
+ *
+ * Scripts create an {@link AudioFrame} once and fill it with the latest
+ * results in each frame. Reading never blocks the audio thread.
+ */
+public interface AudioApi {
+
+    /**
+     * Is used if no audio input is configured. All levels stay 0.
+     */
+    AudioApi SILENT = new AudioApi() {
+        @Override
+        public boolean isActive() {
+            return false;
+        }
+
+        @Override
+        public int getBandCount() {
+            return 0;
+        }
+
+        @Override
+        public boolean read(AudioFrame frame) {
+            return false;
+        }
+    };
+
+    /**
+     * Returns whether audio is currently analyzed
+     */
+    boolean isActive();
+
+    /**
+     * Returns the number of frequency bands, which frames need to be created with
+     */
+    int getBandCount();
+
+    /**
+     * Copies the latest results into frame
+     *
+     * @return true if the results are newer than the ones frame contained
+     */
+    boolean read(AudioFrame frame);
+}
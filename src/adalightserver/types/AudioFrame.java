@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+/**
+ * The results of the audio analysis at one point in time.
+ *
+ * Frames are filled by {@link AudioApi#read(AudioFrame)} and can be reused,
+ * so reading the results each LED frame doesn't allocate.
+ */
+public final class AudioFrame {
+    private final double[] bands;
+    private long sequence = 0;
+    private long captureNanos = 0;
+    private double rms = 0.0;
+    private double peak = 0.0;
+    private long beatCount = 0;
+    private double beatStrength = 0.0;
+
+    public AudioFrame(int bandCount) {
+        bands = new double[bandCount];
+    }
+
+    public AudioFrame(AudioApi audio) {
+        this(audio.getBandCount());
+    }
+
+    /**
+     * Stores new results. Is called by the audio input.
+     */
+    public void update(long sequence, long captureNanos, double rms, double peak,
+                       long beatCount, double beatStrength) {
+        this.sequence = sequence;
+        this.captureNanos = captureNanos;
+        this.rms = rms;
+        this.peak = peak;
+        this.beatCount = beatCount;
+        this.beatStrength = beatStrength;
+    }
+
+    /**
+     * Returns the band array for the audio input to fill
+     */
+    public double[] bands() {
+        return bands;
+    }
+
+    /**
+     * Increases for each analyzed block of samples
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The System.nanoTime() at which the newest analyzed sample was read
+     */
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+
+    /**
+     * The loudness as root mean square between 0.0 and 1.0
+     */
+    public double getRms() {
+        return rms;
+    }
+
+    /**
+     * The highest absolute sample value between 0.0 and 1.0
+     */
+    public double getPeak() {
+        return peak;
+    }
+
+    /**
+     * The number of detected beats. A script has seen a new beat if the value
+     * differs from the one of its last frame.
+     */
+    public long getBeatCount() {
+        return beatCount;
+    }
+
+    /**
+     * How much the bass energy of the last beat exceeded the average
+     */
+    public double getBeatStrength() {
+        return beatStrength;
+    }
+
+    public int getBandCount() {
+        return bands.length;
+    }
+
+    /**
+     * The energy of a frequency band relative to its recent maximum,
+     * between 0.0 and 1.0. Band 0 has the lowest frequencies.
+     */
+    public double getBand(int index) {
+        return bands[index];
+    }
+
+    /**
+     * The average of the bands from (inclusive) to (exclusive)
+     */
+    public double getLevel(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(bands.length, to);
+        if (to <= from) return 0.0;
+        double sum = 0.0;
+        for (int i = from; i < to; i++) sum += bands[i];
+        return sum / (to - from);
+    }
+}
@@ -58,58 +58,14 @@ public class ColorHsv {
     }
 
     public ColorRgb toRgb() {
-        double x = h / 60.0;
-        int hi =  (int)(x);
-        double f = x - hi;
-        
-        double p = v * (1.0 - s);
-        double q = v * (1.0 - s * f);
-        double t = v * (1.0 - s * (1.0 - f));
-        
-        int r = 0;
-        int g = 0;
-        int b = 0;
-        
-        switch (hi) {
-        case 1: {
-            r = (int)(q * 255.0);
-            g = (int)(v * 255.0);
-            b = (int)(p * 255.0);
-            break;
-        }
-        case 2: {
-            r = (int)(p * 255.0);
-            g = (int)(v * 255.0);
-            b = (int)(t * 255.0);
-            break;
-        }
-        case 3: {
-            r = (int)(p * 255.0);
-            g = (int)(q * 255.0);
-            b = (int)(v * 255.0);
-            break;
-        }
-        case 4: {
-            r = (int)(t * 255.0);
-            g = (int)(p * 255.0);
-            b = (int)(v * 255.0);
-            break;
-        }
-        case 5: {
-            r = (int)(v * 255.0);
-            g = (int)(p * 255.0);
-            b = (int)(q * 255.0);
-            break;
-        }
-        default: { // 1 & 6
-            r = (int)(v * 255.0);
-            g = (int)(t * 255.0);
-            b = (int)(p * 255.0);
-            break;
-        }
-        }
-        
-        return new ColorRgb(r, g, b);
+        return ColorRgb.fromPacked(toPacked());
+    }
+    
+    /**
+     * Returns the RGB representation of the color packed in 0x00RRGGBB format
+     */
+    public int toPacked() {
+        return ColorOps.fromHsv(h, s, v);
     }
     
     @Override
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+/**
+ * Color operations on colors which are packed into an int in 0x00RRGGBB format.
+ *
+ * In contrast to {@link ColorRgb} and {@link ColorHsv} none of these
+ * operations allocates, which makes them suitable for per pixel work.
+ * All results are clamped to the valid channel range.
+ */
+public final class ColorOps {
+
+    public static final int BLACK = 0x000000;
+    public static final int WHITE = 0xffffff;
+
+    private ColorOps() {
+    }
+
+    public static int pack(int r, int g, int b) {
+        return (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+    }
+
+    public static int red(int color) {
+        return (color >> 16) & 0xff;
+    }
+
+    public static int green(int color) {
+        return (color >> 8) & 0xff;
+    }
+
+    public static int blue(int color) {
+        return color & 0xff;
+    }
+
+    /**
+     * Scales all channels by a factor between 0.0 and 1.0
+     */
+    public static int scale(int color, double factor) {
+        if (factor <= 0.0) return BLACK;
+        if (factor >= 1.0) return color & WHITE;
+        return nscale8(color, (int)(factor * 256.0) - 1);
+    }
+
+    /**
+     * Scales all channels by (scale + 1) / 256 in fixed point.
+     * A scale of 255 keeps the color, a scale of 0 yields black.
+     */
+    public static int nscale8(int color, int scale) {
+        if (scale <= 0) return BLACK;
+        if (scale >= 255) return color & WHITE;
+        int s = scale + 1;
+        // Red and blue can be scaled together since they can't overflow into each other
+        int rb = (((color & 0xff00ff) * s) >> 8) & 0xff00ff;
+        int g = (((color & 0x00ff00) * s) >> 8) & 0x00ff00;
+        return rb | g;
+    }
+
+    /**
+     * Adds two colors channel by channel, saturating at 255
+     */
+    public static int add(int a, int b) {
+        int r = ((a >> 16) & 0xff) + ((b >> 16) & 0xff);
+        int g = ((a >> 8) & 0xff) + ((b >> 8) & 0xff);
+        int bl = (a & 0xff) + (b & 0xff);
+        if (r > 255) r = 255;
+        if (g > 255) g = 255;
+        if (bl > 255) bl = 255;
+        return (r << 16) | (g << 8) | bl;
+    }
+
+    /**
+     * Subtracts b from a channel by channel, saturating at 0
+     */
+    public static int subtract(int a, int b) {
+        int r = ((a >> 16) & 0xff) - ((b >> 16) & 0xff);
+        int g = ((a >> 8) & 0xff) - ((b >> 8) & 0xff);
+        int bl = (a & 0xff) - (b & 0xff);
+        if (r < 0) r = 0;
+        if (g < 0) g = 0;
+        if (bl < 0) bl = 0;
+        return (r << 16) | (g << 8) | bl;
+    }
+
+    /**
+     * Returns the channel wise maximum of both colors
+     */
+    public static int max(int a, int b) {
+        int r = Math.max(a & 0xff0000, b & 0xff0000);
+        int g = Math.max(a & 0x00ff00, b & 0x00ff00);
+        int bl = Math.max(a & 0x0000ff, b & 0x0000ff);
+        return r | g | bl;
+    }
+
+    /**
+     * Interpolates between a (t = 0.0) and b (t = 1.0)
+     */
+    public static int lerp(int a, int b, double t) {
+        if (t <= 0.0) return a & WHITE;
+        if (t >= 1.0) return b & WHITE;
+        return blend(a, b, (int)(t * 256.0));
+    }
+
+    /**
+     * Blends b over a with an amount between 0 (only a) and 256 (only b)
+     */
+    public static int blend(int a, int b, int amount) {
+        if (amount <= 0) return a & WHITE;
+        if (amount >= 256) return b & WHITE;
+        int inv = 256 - amount;
+        int rb = ((((a & 0xff00ff) * inv) + ((b & 0xff00ff) * amount)) >> 8) & 0xff00ff;
+        int g = ((((a & 0x00ff00) * inv) + ((b & 0x00ff00) * amount)) >> 8) & 0x00ff00;
+        return rb | g;
+    }
+
+    /**
+     * Converts a HSV color into a packed RGB color.
+     * Uses the same conversion as {@link ColorHsv#toRgb()}.
+     *
+     * @param h The hue in degrees from 0.0 to 360.0
+     * @param s The saturation from 0.0 to 1.0
+     * @param v The value from 0.0 to 1.0
+     */
+    public static int fromHsv(double h, double s, double v) {
+        if (h > 360.0) h = 360.0;
+        else if (h < 0.0) h = 0.0;
+        if (s > 1.0) s = 1.0;
+        else if (s < 0.0) s = 0.0;
+        if (v > 1.0) v = 1.0;
+        else if (v < 0.0) v = 0.0;
+
+        double x = h / 60.0;
+        int hi =  (int)(x);
+        double f = x - hi;
+
+        int vi = (int)(v * 255.0);
+        int p = (int)(v * (1.0 - s) * 255.0);
+        int q = (int)(v * (1.0 - s * f) * 255.0);
+        int t = (int)(v * (1.0 - s * (1.0 - f)) * 255.0);
+
+        switch (hi) {
+        case 1: return (q << 16) | (vi << 8) | p;
+        case 2: return (p << 16) | (vi << 8) | t;
+        case 3: return (p << 16) | (q << 8) | vi;
+        case 4: return (t << 16) | (p << 8) | vi;
+        case 5: return (vi << 16) | (p << 8) | q;
+        default: return (vi << 16) | (t << 8) | p; // 0 & 6
+        }
+    }
+
+    /**
+     * Packs a color with 16 bits per channel (0 - 65535) into a long
+     * in 0xRRRRGGGGBBBB format
+     */
+    public static long pack16(int r, int g, int b) {
+        return ((long)clamp16(r) << 32) | ((long)clamp16(g) << 16) | clamp16(b);
+    }
+
+    /**
+     * Converts a packed 8 bit color into a packed 16 bit color
+     */
+    public static long to16(int color) {
+        return ((long)(red(color) * 257) << 32) | ((long)(green(color) * 257) << 16) | (blue(color) * 257);
+    }
+
+    /**
+     * Truncates a packed 16 bit color into a packed 8 bit color
+     */
+    public static int to8(long color16) {
+        return (int)(((color16 >> 24) & 0xff0000) | ((color16 >> 16) & 0x00ff00) | ((color16 >> 8) & 0x0000ff));
+    }
+
+    private static int clamp16(int channel) {
+        if (channel < 0) return 0;
+        if (channel > 65535) return 65535;
+        return channel;
+    }
+
+    private static int clamp(int channel) {
+        if (channel < 0) return 0;
+        if (channel > 255) return 255;
+        return channel;
+    }
+}
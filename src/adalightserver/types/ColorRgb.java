@@ -47,6 +47,17 @@ public class ColorRgb {
         return b;
     }
     
+    /**
+     * Returns the color packed into an int in 0x00RRGGBB format
+     */
+    public int toPacked() {
+        return ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff);
+    }
+    
+    public static ColorRgb fromPacked(int color) {
+        return new ColorRgb((color >> 16) & 0xff, (color >> 8) & 0xff, color & 0xff);
+    }
+    
     public ColorRgb dim(double factor) {
         return new ColorRgb((int)(r * factor), (int)(g * factor), (int)(b * factor));
     }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+/**
+ * Fixed point HSV to RGB conversion which is backed by a precomputed hue wheel.
+ *
+ * Hues are given as 16 bit fractions of a full turn (0 - 65535 for 0 - 360
+ * degrees), saturation and value as 0 - 255. The results are packed
+ * 0x00RRGGBB colors which deviate from {@link ColorOps#fromHsv} and
+ * {@link ColorHsv#toRgb()} by at most one per channel.
+ */
+public final class FastHsv {
+
+    /** A hue step of a full turn in fixed point hue units */
+    public static final int FULL_TURN = 1 << 16;
+
+    /** The number of hues in the hue wheel */
+    private static final int WHEEL_BITS = 12;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int HUE_SHIFT = 16 - WHEEL_BITS;
+
+    /** The value which represents a weight of 1.0 in the wheel */
+    private static final int ONE = 1 << 15;
+
+    /**
+     * For each hue the weight of the red, green and blue channel, stored
+     * interleaved. A weight of ONE means the channel is at full value,
+     * a weight of 0 that it is fully desaturated.
+     */
+    private static final char[] WHEEL = new char[WHEEL_SIZE * 3];
+
+    /** Saturation from 0 - 255 mapped to 0 - ONE */
+    private static final int[] SATURATION = new int[256];
+
+    static {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            double x = i * 6.0 / WHEEL_SIZE;
+            int sector = (int)x;
+            double f = x - sector;
+            double r, g, b;
+            switch (sector) {
+            case 0: r = 1.0; g = f; b = 0.0; break;
+            case 1: r = 1.0 - f; g = 1.0; b = 0.0; break;
+            case 2: r = 0.0; g = 1.0; b = f; break;
+            case 3: r = 0.0; g = 1.0 - f; b = 1.0; break;
+            case 4: r = f; g = 0.0; b = 1.0; break;
+            default: r = 1.0; g = 0.0; b = 1.0 - f; break;
+            }
+            WHEEL[3 * i] = (char)Math.round(r * ONE);
+            WHEEL[3 * i + 1] = (char)Math.round(g * ONE);
+            WHEEL[3 * i + 2] = (char)Math.round(b * ONE);
+        }
+        for (int i = 0; i < SATURATION.length; i++) {
+            SATURATION[i] = (i * ONE + 127) / 255;
+        }
+    }
+
+    private FastHsv() {
+    }
+
+    /**
+     * Converts a hue in degrees into fixed point hue units
+     */
+    public static int hueFromDegrees(double degrees) {
+        return (int)(degrees * (FULL_TURN / 360.0));
+    }
+
+    /**
+     * Converts a fixed point HSV color into a packed RGB color
+     *
+     * @param hue The hue, where 65536 is a full turn. Values outside of
+     *            0 - 65535 wrap around.
+     * @param sat The saturation from 0 - 255
+     * @param val The value from 0 - 255
+     */
+    public static int toRgb(int hue, int sat, int val) {
+        int s = SATURATION[sat & 0xff];
+        int v = val & 0xff;
+        int idx = ((hue & 0xffff) >> HUE_SHIFT) * 3;
+        return (channel(WHEEL[idx], s, v) << 16)
+             | (channel(WHEEL[idx + 1], s, v) << 8)
+             | channel(WHEEL[idx + 2], s, v);
+    }
+
+    /**
+     * Converts a HSV color with the same arguments as {@link ColorHsv}
+     * into a packed RGB color
+     *
+     * @param h The hue in degrees from 0.0 to 360.0
+     * @param s The saturation from 0.0 to 1.0
+     * @param v The value from 0.0 to 1.0
+     */
+    public static int toRgb(double h, double s, double v) {
+        if (h >= 360.0 || h < 0.0) h = 0.0;
+        if (s > 1.0) s = 1.0;
+        else if (s < 0.0) s = 0.0;
+        if (v > 1.0) v = 1.0;
+        else if (v < 0.0) v = 0.0;
+
+        int sf = (int)(s * ONE);
+        // Value in 8.8 fixed point, which keeps the fraction that gets lost
+        // when val is converted to a byte
+        int vf = (int)(v * (255 << 8));
+        int idx = (int)(h * (WHEEL_SIZE / 360.0)) * 3;
+        return (channelPrecise(WHEEL[idx], sf, vf) << 16)
+             | (channelPrecise(WHEEL[idx + 1], sf, vf) << 8)
+             | channelPrecise(WHEEL[idx + 2], sf, vf);
+    }
+
+    /**
+     * Converts count hues from hues[srcPos...] into packed colors with
+     * the same saturation and value, which are stored in dest[destPos...]
+     */
+    public static void toRgb(int[] hues, int srcPos, int[] dest, int destPos, int count, int sat, int val) {
+        int s = SATURATION[sat & 0xff];
+        int v = val & 0xff;
+        for (int i = 0; i < count; i++) {
+            int idx = ((hues[srcPos + i] & 0xffff) >> HUE_SHIFT) * 3;
+            dest[destPos + i] = (channel(WHEEL[idx], s, v) << 16)
+                              | (channel(WHEEL[idx + 1], s, v) << 8)
+                              | channel(WHEEL[idx + 2], s, v);
+        }
+    }
+
+    /**
+     * Fills dest[destPos...] with count colors whose hue starts at startHue
+     * and increases by hueStep per pixel. Negative steps run backwards.
+     */
+    public static void fillRainbow(int[] dest, int destPos, int count, int startHue, int hueStep, int sat, int val) {
+        int s = SATURATION[sat & 0xff];
+        int v = val & 0xff;
+        int hue = startHue;
+        for (int i = 0; i < count; i++) {
+            int idx = ((hue & 0xffff) >> HUE_SHIFT) * 3;
+            dest[destPos + i] = (channel(WHEEL[idx], s, v) << 16)
+                              | (channel(WHEEL[idx + 1], s, v) << 8)
+                              | channel(WHEEL[idx + 2], s, v);
+            hue += hueStep;
+        }
+    }
+
+    private static int channel(int weight, int s, int v) {
+        // v * (1 - s * (1 - weight))
+        int m = ONE - ((s * (ONE - weight)) >> 15);
+        return (v * m) >> 15;
+    }
+
+    private static int channelPrecise(int weight, int s, int v) {
+        int m = ONE - ((s * (ONE - weight)) >> 15);
+        return (v * m) >>> 23;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+import java.util.Arrays;
+
+/**
+ * A frame of packed 0x00RRGGBB colors together with operations that work on
+ * the whole frame at once.
+ *
+ * The operations are plain loops over the primitive array without calls or
+ * branches in the loop body, so that the JIT can unroll and vectorize them.
+ * Red and blue are processed together in one int, since a multiplication
+ * with a factor of at most 256 can't overflow from one into the other.
+ */
+public class FrameBuffer {
+    private final int[] pixels;
+    private int[] scratch;
+
+    public FrameBuffer(int size) {
+        pixels = new int[size];
+    }
+
+    public int size() {
+        return pixels.length;
+    }
+
+    /**
+     * Returns the backing array, which can be used for direct pixel access
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int get(int position) {
+        return pixels[position];
+    }
+
+    public void set(int position, int color) {
+        pixels[position] = color & 0xffffff;
+    }
+
+    public void fill(int color) {
+        Arrays.fill(pixels, color & 0xffffff);
+    }
+
+    /**
+     * Copies colors from the beginning of source into this frame.
+     * Surplus entries on either side are ignored.
+     */
+    public void copyFrom(int[] source) {
+        System.arraycopy(source, 0, pixels, 0, Math.min(source.length, pixels.length));
+    }
+
+    public void copyFrom(FrameBuffer source) {
+        copyFrom(source.pixels);
+    }
+
+    /**
+     * Dims all pixels by (scale + 1) / 256, like {@link ColorOps#nscale8}
+     */
+    public void fadeToBlack(int scale) {
+        if (scale >= 255) return;
+        if (scale <= 0) {
+            Arrays.fill(pixels, 0);
+            return;
+        }
+        final int s = scale + 1;
+        final int[] p = pixels;
+        for (int i = 0; i < p.length; i++) {
+            int c = p[i];
+            p[i] = ((((c & 0xff00ff) * s) >> 8) & 0xff00ff)
+                 | ((((c & 0x00ff00) * s) >> 8) & 0x00ff00);
+        }
+    }
+
+    /**
+     * Blends each pixel with its neighbors. An amount of 0 leaves the frame
+     * unchanged, 170 gives all three pixels the same weight.
+     * The pixels at both ends treat themselves as their missing neighbor.
+     */
+    public void blur(int amount) {
+        final int n = pixels.length;
+        if (amount <= 0 || n < 2) return;
+        if (amount > 170) amount = 170;
+        final int side = amount >> 1;
+        final int center = 256 - 2 * side;
+
+        final int[] src = scratchCopy();
+        final int[] p = pixels;
+        p[0] = blur3(src[0], src[0], src[1], side, center);
+        for (int i = 1; i < n - 1; i++) {
+            int l = src[i - 1];
+            int c = src[i];
+            int r = src[i + 1];
+            int rb = ((l & 0xff00ff) + (r & 0xff00ff)) * side + (c & 0xff00ff) * center;
+            int g = ((l & 0x00ff00) + (r & 0x00ff00)) * side + (c & 0x00ff00) * center;
+            p[i] = ((rb >> 8) & 0xff00ff) | ((g >> 8) & 0x00ff00);
+        }
+        p[n - 1] = blur3(src[n - 2], src[n - 1], src[n - 1], side, center);
+    }
+
+    private static int blur3(int l, int c, int r, int side, int center) {
+        int rb = ((l & 0xff00ff) + (r & 0xff00ff)) * side + (c & 0xff00ff) * center;
+        int g = ((l & 0x00ff00) + (r & 0x00ff00)) * side + (c & 0x00ff00) * center;
+        return ((rb >> 8) & 0xff00ff) | ((g >> 8) & 0x00ff00);
+    }
+
+    /**
+     * Moves all pixels count positions towards the end of the frame
+     * (or towards the start for negative counts). Pixels which are moved in
+     * are set to fillColor.
+     */
+    public void shift(int count, int fillColor) {
+        final int n = pixels.length;
+        fillColor &= 0xffffff;
+        if (count >= n || -count >= n) {
+            Arrays.fill(pixels, fillColor);
+        } else if (count > 0) {
+            System.arraycopy(pixels, 0, pixels, count, n - count);
+            Arrays.fill(pixels, 0, count, fillColor);
+        } else if (count < 0) {
+            System.arraycopy(pixels, -count, pixels, 0, n + count);
+            Arrays.fill(pixels, n + count, n, fillColor);
+        }
+    }
+
+    /**
+     * Moves all pixels count positions towards the end of the frame
+     * (or towards the start for negative counts) and wraps them around.
+     */
+    public void rotate(int count) {
+        final int n = pixels.length;
+        if (n == 0) return;
+        count %= n;
+        if (count < 0) count += n;
+        if (count == 0) return;
+        final int[] src = scratchCopy();
+        System.arraycopy(src, 0, pixels, count, n - count);
+        System.arraycopy(src, n - count, pixels, 0, count);
+    }
+
+    /**
+     * Reverses the order of all pixels
+     */
+    public void reverse() {
+        final int[] p = pixels;
+        for (int i = 0, j = p.length - 1; i < j; i++, j--) {
+            int t = p[i];
+            p[i] = p[j];
+            p[j] = t;
+        }
+    }
+
+    /**
+     * Copies the first half of the frame mirrored into the second half
+     */
+    public void mirror() {
+        final int[] p = pixels;
+        final int n = p.length;
+        for (int i = 0; i < n / 2; i++) {
+            p[n - 1 - i] = p[i];
+        }
+    }
+
+    /**
+     * Blends other over this frame with an amount between 0 (keep this frame)
+     * and 256 (replace with other)
+     */
+    public void blend(int[] other, int amount) {
+        final int n = Math.min(other.length, pixels.length);
+        if (amount <= 0) return;
+        if (amount >= 256) {
+            System.arraycopy(other, 0, pixels, 0, n);
+            return;
+        }
+        final int inv = 256 - amount;
+        final int[] p = pixels;
+        for (int i = 0; i < n; i++) {
+            int a = p[i];
+            int b = other[i];
+            int rb = (a & 0xff00ff) * inv + (b & 0xff00ff) * amount;
+            int g = (a & 0x00ff00) * inv + (b & 0x00ff00) * amount;
+            p[i] = ((rb >> 8) & 0xff00ff) | ((g >> 8) & 0x00ff00);
+        }
+    }
+
+    public void blend(FrameBuffer other, int amount) {
+        blend(other.pixels, amount);
+    }
+
+    /**
+     * Adds other to this frame with saturation at full brightness
+     */
+    public void add(int[] other) {
+        final int n = Math.min(other.length, pixels.length);
+        final int[] p = pixels;
+        for (int i = 0; i < n; i++) {
+            int a = p[i];
+            int b = other[i];
+            int r = Math.min(255, ((a >> 16) & 0xff) + ((b >> 16) & 0xff));
+            int g = Math.min(255, ((a >> 8) & 0xff) + ((b >> 8) & 0xff));
+            int bl = Math.min(255, (a & 0xff) + (b & 0xff));
+            p[i] = (r << 16) | (g << 8) | bl;
+        }
+    }
+
+    public void add(FrameBuffer other) {
+        add(other.pixels);
+    }
+
+    private int[] scratchCopy() {
+        if (scratch == null) scratch = new int[pixels.length];
+        System.arraycopy(pixels, 0, scratch, 0, pixels.length);
+        return scratch;
+    }
+}
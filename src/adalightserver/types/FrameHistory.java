@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+import java.security.InvalidParameterException;
+
+/**
+ * A ring of the last frames in packed 0x00RRGGBB format.
+ *
+ * Advancing the history doesn't copy any frame, the slot of the oldest frame
+ * is handed out to be overwritten with the new frame. The age of a frame is
+ * counted from the newest one, which has age 0. Frames which were never
+ * written are black.
+ */
+public final class FrameHistory {
+    private final int[][] frames;
+    private final int size;
+    private int head = 0;
+
+    /**
+     * @param depth The number of frames which are kept
+     * @param size The number of pixels per frame
+     */
+    public FrameHistory(int depth, int size) {
+        if (depth < 1)
+            throw new InvalidParameterException("The history must keep at least one frame");
+        frames = new int[depth][size];
+        this.size = size;
+    }
+
+    public int depth() {
+        return frames.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Drops the oldest frame and returns its array, which becomes the
+     * newest frame and must be overwritten by the caller
+     */
+    public int[] advance() {
+        head = head == 0 ? frames.length - 1 : head - 1;
+        return frames[head];
+    }
+
+    /**
+     * Returns the array of the frame with the given age.
+     * The array must not be modified.
+     */
+    public int[] frame(int age) {
+        if (age < 0 || age >= frames.length)
+            throw new InvalidParameterException("The history only keeps " + frames.length + " frames");
+        int idx = head + age;
+        if (idx >= frames.length) idx -= frames.length;
+        return frames[idx];
+    }
+
+    public int get(int age, int position) {
+        return frame(age)[position];
+    }
+
+    /**
+     * Copies the frame with the given age into dest.
+     * Surplus entries on either side are ignored.
+     */
+    public void copyTo(int age, int[] dest) {
+        System.arraycopy(frame(age), 0, dest, 0, Math.min(size, dest.length));
+    }
+
+    /**
+     * Dims the frame with the given age by (scale + 1) / 256 and keeps the
+     * brighter value of it and dest for each channel. Applied every frame this
+     * lets moving pixels leave fading trails.
+     */
+    public void decayInto(int age, int[] dest, int scale) {
+        final int[] src = frame(age);
+        final int n = Math.min(size, dest.length);
+        for (int i = 0; i < n; i++) {
+            dest[i] = ColorOps.max(dest[i], ColorOps.nscale8(src[i], scale));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+/**
+ * Quotes strings for JSON which is built by hand, e.g. the state of the
+ * controller. Uses the same escapes as the websocket codec: quotes,
+ * backslashes and control characters are escaped, everything else is kept.
+ */
+public final class JsonString {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JsonString() {
+    }
+
+    /**
+     * Returns s as a quoted JSON string
+     */
+    public static String quote(CharSequence s) {
+        return append(new StringBuilder(s.length() + 2), s).toString();
+    }
+
+    /**
+     * Appends s as a quoted JSON string to b
+     */
+    public static StringBuilder append(StringBuilder b, CharSequence s) {
+        b.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                switch (c) {
+                case '\n': b.append("\\n"); break;
+                case '\r': b.append("\\r"); break;
+                case '\t': b.append("\\t"); break;
+                default: b.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                }
+            } else {
+                b.append(c);
+            }
+        }
+        return b.append('"');
+    }
+}
@@ -16,10 +16,64 @@
 
 package adalightserver.types;
 
+import java.nio.ByteBuffer;
+
 public interface LedApi {
     void setLedCount(int ledCount) throws Exception;
     int getLedCount();
+    /**
+     * Returns the physical placement of the LEDs. Without a configured
+     * layout the LEDs are placed in one row.
+     */
+    PixelLayout getLayout();
     void setLedColor(int position, ColorRgb color) throws Exception;
     void setAllLedsToColor(ColorRgb color) throws Exception;
+    /**
+     * Sets a LED to a color which is packed in 0x00RRGGBB format.
+     * See {@link ColorOps} for operations on packed colors.
+     */
+    void setLedColor(int position, int color) throws Exception;
+    void setAllLedsToColor(int color);
+    /**
+     * Sets a LED to a color with 16 bits per channel (0 - 65535).
+     * The additional precision is only used if the device has high color
+     * depth enabled, otherwise the color is truncated to 8 bits.
+     */
+    void setLedColor16(int position, int red, int green, int blue) throws Exception;
+    /**
+     * Copies a whole frame of packed 0x00RRGGBB colors into the LED buffer.
+     * Surplus entries on either side are ignored.
+     */
+    void setLedColors(int[] colors);
+    void setLedColors(FrameBuffer frame);
+    /**
+     * Shows a frame of RGB bytes, 3 per LED, from the position to the limit
+     * of rgb. The colors are decoded straight into the output buffer without
+     * the LED buffer in between, which stays unchanged. Missing LEDs are set
+     * to black. The position of rgb is not changed.
+     */
+    void showFrame(ByteBuffer rgb);
+    
+    // Operations on the whole LED buffer. See FrameBuffer for the details.
+    void fadeToBlack(int scale);
+    void blur(int amount);
+    void shift(int count);
+    void rotate(int count);
+    void mirror();
+    void blend(FrameBuffer other, int amount);
+    void drawSprite(Sprite sprite, int position, int color, Sprite.Blend blend);
+    
+    // Read only access to the last flushed frames. Age 0 is the last flushed
+    // frame, older frames have higher ages up to getHistoryDepth() - 1.
+    int getHistoryDepth();
+    int getPreviousLedColor(int age, int position) throws Exception;
+    void getPreviousFrame(int age, FrameBuffer dest);
+    /**
+     * Dims the last flushed frame by (scale + 1) / 256 and keeps the brighter
+     * value of it and the current frame for each channel, which lets moving
+     * pixels leave trails. See {@link FrameHistory#decayInto}.
+     */
+    void decayPreviousFrame(int scale);
+    
     void flush();
 }
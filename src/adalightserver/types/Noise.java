@@ -0,0 +1,268 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+import java.util.Random;
+
+/**
+ * Smooth coherent noise for organic effects like fire, clouds or water.
+ *
+ * All functions use the same fixed permutation table, so the same coordinates
+ * always give the same value. The noise repeats every 256 units on each axis.
+ *
+ * The perlin functions take coordinates as double and return values between
+ * about -1.0 and 1.0. The noise8 and value8 functions take coordinates in 8.8
+ * fixed point (256 is one unit) and return values between 0 and 255; they
+ * only use integer arithmetic and table lookups. The fill8 functions compute
+ * noise8 for a whole row of pixels at once.
+ */
+public final class Noise {
+
+    private static final int[] PERM = new int[512];
+    /** Quintic fade curve 6t^5 - 15t^4 + 10t^3 for fractions 0 - 255, scaled to 0 - 256 */
+    private static final int[] FADE = new int[256];
+
+    static {
+        Random r = new Random(0x5eed);
+        for (int i = 0; i < 256; i++) PERM[i] = i;
+        for (int i = 255; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            int t = PERM[i];
+            PERM[i] = PERM[j];
+            PERM[j] = t;
+        }
+        for (int i = 0; i < 256; i++) PERM[256 + i] = PERM[i];
+
+        for (int i = 0; i < 256; i++) {
+            FADE[i] = (int)Math.round(fade(i / 256.0) * 256.0);
+        }
+    }
+
+    private Noise() {
+    }
+
+    /**
+     * 1D gradient noise between -1.0 and 1.0
+     */
+    public static double perlin(double x) {
+        int xf = floor(x);
+        int xi = xf & 0xff;
+        x -= xf;
+        double u = fade(x);
+        return 2.0 * lerp(u, grad(PERM[xi], x), grad(PERM[xi + 1], x - 1.0));
+    }
+
+    /**
+     * 2D gradient noise between about -1.0 and 1.0
+     */
+    public static double perlin(double x, double y) {
+        return perlin(x, y, 0.0);
+    }
+
+    /**
+     * 3D gradient noise between about -1.0 and 1.0
+     */
+    public static double perlin(double x, double y, double z) {
+        int xf = floor(x), yf = floor(y), zf = floor(z);
+        int xi = xf & 0xff, yi = yf & 0xff, zi = zf & 0xff;
+        x -= xf;
+        y -= yf;
+        z -= zf;
+        double u = fade(x), v = fade(y), w = fade(z);
+
+        int a = PERM[xi] + yi, aa = PERM[a] + zi, ab = PERM[a + 1] + zi;
+        int b = PERM[xi + 1] + yi, ba = PERM[b] + zi, bb = PERM[b + 1] + zi;
+
+        return lerp(w,
+            lerp(v, lerp(u, grad(PERM[aa], x, y, z), grad(PERM[ba], x - 1, y, z)),
+                    lerp(u, grad(PERM[ab], x, y - 1, z), grad(PERM[bb], x - 1, y - 1, z))),
+            lerp(v, lerp(u, grad(PERM[aa + 1], x, y, z - 1), grad(PERM[ba + 1], x - 1, y, z - 1)),
+                    lerp(u, grad(PERM[ab + 1], x, y - 1, z - 1), grad(PERM[bb + 1], x - 1, y - 1, z - 1))));
+    }
+
+    /**
+     * 1D gradient noise on 8.8 fixed point coordinates. Returns 0 - 255.
+     */
+    public static int noise8(int x) {
+        int xi = (x >> 8) & 0xff;
+        int xf = x & 0xff;
+        int a = grad8(PERM[xi], xf);
+        int b = grad8(PERM[xi + 1], xf - 256);
+        // The 1D noise only reaches half the range, so double it
+        return toByte(2 * (a + (((b - a) * FADE[xf]) >> 8)));
+    }
+
+    /**
+     * 2D gradient noise on 8.8 fixed point coordinates. Returns 0 - 255.
+     */
+    public static int noise8(int x, int y) {
+        int yi = (y >> 8) & 0xff;
+        int yf = y & 0xff;
+        return toByte(perlin8(x, yi, yf, FADE[yf]));
+    }
+
+    /**
+     * 3D gradient noise on 8.8 fixed point coordinates. Returns 0 - 255.
+     */
+    public static int noise8(int x, int y, int z) {
+        int yi = (y >> 8) & 0xff, zi = (z >> 8) & 0xff;
+        int yf = y & 0xff, zf = z & 0xff;
+        return toByte(perlin8(x, yi, zi, yf, zf, FADE[yf], FADE[zf]));
+    }
+
+    /**
+     * 2D value noise on 8.8 fixed point coordinates. Returns 0 - 255.
+     * It is cheaper than noise8 but shows more of the underlying grid.
+     */
+    public static int value8(int x, int y) {
+        int xi = (x >> 8) & 0xff;
+        int yi = (y >> 8) & 0xff;
+        int xf = FADE[x & 0xff];
+        int yf = FADE[y & 0xff];
+
+        int a = PERM[PERM[xi] + yi];
+        int b = PERM[PERM[xi + 1] + yi];
+        int c = PERM[PERM[xi] + yi + 1];
+        int d = PERM[PERM[xi + 1] + yi + 1];
+
+        int top = a + (((b - a) * xf) >> 8);
+        int bottom = c + (((d - c) * xf) >> 8);
+        return top + (((bottom - top) * yf) >> 8);
+    }
+
+    /**
+     * Fills count entries of dest starting at destPos with 1D noise8.
+     * The coordinate starts at x and advances by xStep per pixel, both in
+     * 8.8 fixed point.
+     */
+    public static void fill8(int[] dest, int destPos, int count, int x, int xStep) {
+        for (int i = 0; i < count; i++) {
+            dest[destPos + i] = noise8(x);
+            x += xStep;
+        }
+    }
+
+    /**
+     * Fills a row with 2D noise8 at the fixed coordinate y
+     */
+    public static void fill8(int[] dest, int destPos, int count, int x, int xStep, int y) {
+        final int yi = (y >> 8) & 0xff;
+        final int yf = y & 0xff;
+        final int v = FADE[yf];
+        for (int i = 0; i < count; i++) {
+            dest[destPos + i] = toByte(perlin8(x, yi, yf, v));
+            x += xStep;
+        }
+    }
+
+    /**
+     * Fills a row with 3D noise8 at the fixed coordinates y and z.
+     * The parts of the computation which only depend on y and z are done once.
+     */
+    public static void fill8(int[] dest, int destPos, int count, int x, int xStep, int y, int z) {
+        final int yi = (y >> 8) & 0xff, zi = (z >> 8) & 0xff;
+        final int yf = y & 0xff, zf = z & 0xff;
+        final int v = FADE[yf], w = FADE[zf];
+        for (int i = 0; i < count; i++) {
+            dest[destPos + i] = toByte(perlin8(x, yi, zi, yf, zf, v, w));
+            x += xStep;
+        }
+    }
+
+    /**
+     * Fixed point version of the 3D gradient noise. The fractions are in
+     * 0 - 255, the result is about -256 to 256.
+     */
+    private static int perlin8(int x, int yi, int zi, int yf, int zf, int v, int w) {
+        int xi = (x >> 8) & 0xff;
+        int xf = x & 0xff;
+        int u = FADE[xf];
+
+        int a = PERM[xi] + yi, aa = PERM[a] + zi, ab = PERM[a + 1] + zi;
+        int b = PERM[xi + 1] + yi, ba = PERM[b] + zi, bb = PERM[b + 1] + zi;
+        int x1 = xf - 256, y1 = yf - 256, z1 = zf - 256;
+
+        int g0 = lerp8(u, grad8(PERM[aa], xf, yf, zf), grad8(PERM[ba], x1, yf, zf));
+        int g1 = lerp8(u, grad8(PERM[ab], xf, y1, zf), grad8(PERM[bb], x1, y1, zf));
+        int g2 = lerp8(u, grad8(PERM[aa + 1], xf, yf, z1), grad8(PERM[ba + 1], x1, yf, z1));
+        int g3 = lerp8(u, grad8(PERM[ab + 1], xf, y1, z1), grad8(PERM[bb + 1], x1, y1, z1));
+        return lerp8(w, lerp8(v, g0, g1), lerp8(v, g2, g3));
+    }
+
+    /**
+     * The 3D noise at z = 0, where only the 4 corners of the lower face matter
+     */
+    private static int perlin8(int x, int yi, int yf, int v) {
+        int xi = (x >> 8) & 0xff;
+        int xf = x & 0xff;
+        int u = FADE[xf];
+
+        int a = PERM[xi] + yi, aa = PERM[a], ab = PERM[a + 1];
+        int b = PERM[xi + 1] + yi, ba = PERM[b], bb = PERM[b + 1];
+        int x1 = xf - 256, y1 = yf - 256;
+
+        int g0 = lerp8(u, grad8(PERM[aa], xf, yf, 0), grad8(PERM[ba], x1, yf, 0));
+        int g1 = lerp8(u, grad8(PERM[ab], xf, y1, 0), grad8(PERM[bb], x1, y1, 0));
+        return lerp8(v, g0, g1);
+    }
+
+    private static int toByte(int n) {
+        n = (n + 256) >> 1;
+        if (n < 0) return 0;
+        if (n > 255) return 255;
+        return n;
+    }
+
+    private static int lerp8(int t, int a, int b) {
+        return a + (((b - a) * t) >> 8);
+    }
+
+    private static int grad8(int hash, int x) {
+        return (hash & 1) == 0 ? x : -x;
+    }
+
+    private static int grad8(int hash, int x, int y, int z) {
+        int h = hash & 15;
+        int u = h < 8 ? x : y;
+        int v = h < 4 ? y : (h == 12 || h == 14 ? x : z);
+        return ((h & 1) == 0 ? u : -u) + ((h & 2) == 0 ? v : -v);
+    }
+
+    private static double grad(int hash, double x) {
+        return (hash & 1) == 0 ? x : -x;
+    }
+
+    private static double grad(int hash, double x, double y, double z) {
+        int h = hash & 15;
+        double u = h < 8 ? x : y;
+        double v = h < 4 ? y : (h == 12 || h == 14 ? x : z);
+        return ((h & 1) == 0 ? u : -u) + ((h & 2) == 0 ? v : -v);
+    }
+
+    private static double fade(double t) {
+        return t * t * t * (t * (t * 6.0 - 15.0) + 10.0);
+    }
+
+    private static double lerp(double t, double a, double b) {
+        return a + t * (b - a);
+    }
+
+    private static int floor(double x) {
+        int i = (int)x;
+        return x < i ? i - 1 : i;
+    }
+}
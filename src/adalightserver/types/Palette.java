@@ -0,0 +1,233 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A color gradient which is defined by color stops and compiled once into a
+ * table of 256 packed colors, so that looking up a color is a single array read.
+ *
+ * Palettes are immutable. They are described by a string of comma separated
+ * stops in the form "position:rrggbb" with positions from 0 to 255, e.g.
+ * "0:000000,128:ff0000,255:ffff00". If the positions are omitted the stops
+ * are spread evenly. The names of the predefined palettes are accepted as well.
+ */
+public final class Palette {
+
+    public static final int SIZE = 256;
+
+    public static final Palette RAINBOW = new Palette("rainbow",
+        "0:ff0000,43:ffff00,85:00ff00,128:00ffff,170:0000ff,213:ff00ff,255:ff0000");
+    public static final Palette HEAT = new Palette("heat",
+        "0:000000,85:ff0000,170:ffff00,255:ffffff");
+    public static final Palette OCEAN = new Palette("ocean",
+        "0:000020,96:0000ff,160:00a0ff,224:40ffff,255:ffffff");
+    public static final Palette FOREST = new Palette("forest",
+        "0:002000,96:006400,160:55aa22,255:aaff55");
+
+    private static final Map<String, Palette> named = new HashMap<>();
+    static {
+        for (Palette p : new Palette[] { RAINBOW, HEAT, OCEAN, FOREST }) {
+            named.put(p.spec, p);
+        }
+    }
+
+    /**
+     * Recently parsed palettes, so that setting the same description again
+     * doesn't compile the table again
+     */
+    private static final Map<String, Palette> cache = new LinkedHashMap<String, Palette>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Palette> eldest) {
+            return size() > 32;
+        }
+    };
+
+    private final String spec;
+    private final int[] table = new int[SIZE];
+
+    private Palette(String spec, String stops) {
+        this.spec = spec;
+        compile(parseStops(stops));
+    }
+
+    private Palette(String spec, List<int[]> stops) {
+        this.spec = spec;
+        compile(stops);
+    }
+
+    /**
+     * Creates a palette with evenly spread stops from packed colors
+     */
+    public static Palette fromColors(int... colors) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < colors.length; i++) {
+            if (i != 0) s.append(',');
+            s.append(toHex(colors[i]));
+        }
+        return parse(s.toString());
+    }
+
+    public static Palette parse(String description) throws InvalidParameterException {
+        if (description == null)
+            throw new InvalidParameterException();
+        String spec = description.replace(" ", "").toLowerCase();
+
+        Palette p = named.get(spec);
+        if (p != null) return p;
+
+        synchronized (cache) {
+            p = cache.get(spec);
+            if (p != null) return p;
+        }
+        p = new Palette(spec, parseStops(spec));
+        synchronized (cache) {
+            cache.put(spec, p);
+        }
+        return p;
+    }
+
+    private static List<int[]> parseStops(String spec) throws InvalidParameterException {
+        String[] parts = spec.split(",");
+        if (parts.length == 0 || spec.isEmpty())
+            throw new InvalidParameterException();
+
+        List<int[]> stops = new ArrayList<>(parts.length);
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            int position;
+            String color;
+            int sep = part.indexOf(':');
+            if (sep >= 0) {
+                try {
+                    position = Integer.parseInt(part.substring(0, sep));
+                } catch (NumberFormatException e) {
+                    throw new InvalidParameterException();
+                }
+                color = part.substring(sep + 1);
+            } else {
+                position = parts.length == 1 ? 0 : (i * (SIZE - 1)) / (parts.length - 1);
+                color = part;
+            }
+            if (position < 0 || position >= SIZE)
+                throw new InvalidParameterException();
+            if (!stops.isEmpty() && position < stops.get(stops.size() - 1)[0])
+                throw new InvalidParameterException();
+            stops.add(new int[] { position, ColorRgb.parseColor(color).toPacked() });
+        }
+        return stops;
+    }
+
+    private void compile(List<int[]> stops) {
+        int[] first = stops.get(0);
+        for (int i = 0; i <= first[0]; i++) {
+            table[i] = first[1];
+        }
+        for (int s = 1; s < stops.size(); s++) {
+            int[] from = stops.get(s - 1);
+            int[] to = stops.get(s);
+            int span = to[0] - from[0];
+            for (int i = from[0] + 1; i <= to[0]; i++) {
+                table[i] = ColorOps.blend(from[1], to[1], ((i - from[0]) * 256) / span);
+            }
+        }
+        int[] last = stops.get(stops.size() - 1);
+        for (int i = last[0] + 1; i < SIZE; i++) {
+            table[i] = last[1];
+        }
+    }
+
+    /**
+     * Returns the color at index, where only the lowest 8 bits are used
+     * so that the palette wraps around
+     */
+    public int get(int index) {
+        return table[index & 0xff];
+    }
+
+    /**
+     * Returns the color at a position between 0.0 and 1.0
+     */
+    public int colorAt(double position) {
+        if (position <= 0.0) return table[0];
+        if (position >= 1.0) return table[SIZE - 1];
+        return table[(int)(position * SIZE)];
+    }
+
+    /**
+     * Fills count pixels of dest starting at destPos with palette colors.
+     * The palette index starts at startIndex and advances by indexStep per
+     * pixel, both in 8.8 fixed point.
+     */
+    public void fill(int[] dest, int destPos, int count, int startIndex, int indexStep) {
+        final int[] t = table;
+        int index = startIndex;
+        for (int i = 0; i < count; i++) {
+            dest[destPos + i] = t[(index >> 8) & 0xff];
+            index += indexStep;
+        }
+    }
+
+    public void fill(FrameBuffer dest, int startIndex, int indexStep) {
+        fill(dest.getPixels(), 0, dest.size(), startIndex, indexStep);
+    }
+
+    /**
+     * Maps count palette indices from indices[srcPos...] to colors in dest[destPos...]
+     */
+    public void map(int[] indices, int srcPos, int[] dest, int destPos, int count) {
+        final int[] t = table;
+        for (int i = 0; i < count; i++) {
+            dest[destPos + i] = t[indices[srcPos + i] & 0xff];
+        }
+    }
+
+    /**
+     * Returns the description from which the palette was created
+     */
+    public String toSpecString() {
+        return spec;
+    }
+
+    private static String toHex(int color) {
+        String s = Integer.toHexString(color & 0xffffff);
+        while (s.length() < 6) s = "0" + s;
+        return s;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Palette && ((Palette)o).spec.equals(spec);
+    }
+
+    @Override
+    public int hashCode() {
+        return spec.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Palette(" + spec + ")";
+    }
+}
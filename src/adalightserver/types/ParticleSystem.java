@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves particles along the stripe and draws them into a frame.
+ *
+ * The particles are no objects. Position, velocity, color and lifetime are
+ * stored in one primitive array each, with the live particles packed at the
+ * beginning. A dying particle is replaced by the last one, so the pool never
+ * allocates after it was created. If the pool is full new particles are
+ * dropped.
+ *
+ * Scripts configure one or more {@link Emitter}s and call {@link #step} once
+ * per frame.
+ */
+public final class ParticleSystem {
+
+    /**
+     * Spawns particles for a {@link ParticleSystem}.
+     * All times are in steps, all distances in pixels.
+     */
+    public static final class Emitter {
+        private double position = 0.0;
+        private double spread = 0.0;
+        private double minVelocity = -0.5;
+        private double maxVelocity = 0.5;
+        private double rate = 0.0;
+        private int minLife = 20;
+        private int maxLife = 40;
+        private int color = ColorOps.WHITE;
+        private Palette palette = null;
+        private boolean enabled = true;
+
+        // Fractional particles which are carried over to the next step
+        private double pending = 0.0;
+
+        public double getPosition() { return position; }
+        /** The center of the spawned particles */
+        public void setPosition(double position) { this.position = position; }
+
+        public double getSpread() { return spread; }
+        /** The maximum distance of spawned particles from the position */
+        public void setSpread(double spread) { this.spread = Math.abs(spread); }
+
+        public double getMinVelocity() { return minVelocity; }
+        public void setMinVelocity(double minVelocity) { this.minVelocity = minVelocity; }
+
+        public double getMaxVelocity() { return maxVelocity; }
+        public void setMaxVelocity(double maxVelocity) { this.maxVelocity = maxVelocity; }
+
+        public double getRate() { return rate; }
+        /** The number of particles per step, e.g. 0.25 spawns one every 4 steps */
+        public void setRate(double rate) { this.rate = Math.max(0.0, rate); }
+
+        public int getMinLife() { return minLife; }
+        public void setMinLife(int minLife) { this.minLife = Math.max(1, minLife); }
+
+        public int getMaxLife() { return maxLife; }
+        public void setMaxLife(int maxLife) { this.maxLife = Math.max(1, maxLife); }
+
+        public int getColor() { return color; }
+        /** The packed color of the particles, which fades out over their life */
+        public void setColor(int color) { this.color = color & ColorOps.WHITE; }
+
+        public Palette getPalette() { return palette; }
+        /**
+         * If set particles take their color from the palette instead, going
+         * from index 0 at their birth to 255 at their end
+         */
+        public void setPalette(Palette palette) { this.palette = palette; }
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+    }
+
+    private final double[] position;
+    private final double[] velocity;
+    private final int[] life;
+    private final int[] maxLife;
+    private final int[] color;
+    /** The palette of the emitter which spawned the particle or null */
+    private final Palette[] palette;
+    private int count = 0;
+
+    private final List<Emitter> emitters = new ArrayList<>();
+    private double gravity = 0.0;
+    private double drag = 1.0;
+    private boolean fade = true;
+    private int randomState = 0x2545f491;
+
+    public ParticleSystem(int capacity) {
+        if (capacity < 1)
+            throw new InvalidParameterException("capacity must be positive");
+        position = new double[capacity];
+        velocity = new double[capacity];
+        life = new int[capacity];
+        maxLife = new int[capacity];
+        color = new int[capacity];
+        palette = new Palette[capacity];
+    }
+
+    public int capacity() {
+        return position.length;
+    }
+
+    /**
+     * Returns the number of live particles
+     */
+    public int count() {
+        return count;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    public Emitter addEmitter() {
+        Emitter e = new Emitter();
+        emitters.add(e);
+        return e;
+    }
+
+    public void addEmitter(Emitter e) {
+        emitters.add(e);
+    }
+
+    public void removeEmitter(Emitter e) {
+        emitters.remove(e);
+    }
+
+    public double getGravity() {
+        return gravity;
+    }
+
+    /**
+     * Sets the velocity change per step, e.g. -0.05 pulls particles towards LED 0
+     */
+    public void setGravity(double gravity) {
+        this.gravity = gravity;
+    }
+
+    public double getDrag() {
+        return drag;
+    }
+
+    /**
+     * Sets the factor by which the velocity is multiplied each step.
+     * 1.0 keeps the velocity, smaller values slow particles down.
+     */
+    public void setDrag(double drag) {
+        this.drag = drag;
+    }
+
+    public boolean isFade() {
+        return fade;
+    }
+
+    /**
+     * Sets whether the brightness of particles decreases with their remaining life
+     */
+    public void setFade(boolean fade) {
+        this.fade = fade;
+    }
+
+    /**
+     * Spawns count particles from an emitter right now
+     */
+    public void burst(Emitter e, int count) {
+        for (int i = 0; i < count; i++) {
+            spawn(e);
+        }
+    }
+
+    private void spawn(Emitter e) {
+        if (count == position.length) return;
+        int i = count++;
+        position[i] = e.position + (nextDouble() * 2.0 - 1.0) * e.spread;
+        velocity[i] = e.minVelocity + nextDouble() * (e.maxVelocity - e.minVelocity);
+        int l = e.minLife;
+        if (e.maxLife > e.minLife) l += nextInt(e.maxLife - e.minLife + 1);
+        life[i] = l;
+        maxLife[i] = l;
+        color[i] = e.color;
+        palette[i] = e.palette;
+    }
+
+    /**
+     * Spawns new particles, moves all particles by one step and adds them
+     * to the frame. The frame is not cleared, so scripts can decide whether
+     * to start with black or to fade the last frame.
+     */
+    public void step(FrameBuffer frame) {
+        step(frame.getPixels());
+    }
+
+    public void step(int[] frame) {
+        for (int e = 0; e < emitters.size(); e++) {
+            Emitter emitter = emitters.get(e);
+            if (!emitter.enabled) continue;
+            emitter.pending += emitter.rate;
+            while (emitter.pending >= 1.0) {
+                emitter.pending -= 1.0;
+                spawn(emitter);
+            }
+        }
+
+        final double[] pos = position;
+        final double[] vel = velocity;
+        final int[] lf = life;
+        final int size = frame.length;
+        int i = 0;
+        while (i < count) {
+            double v = vel[i] * drag + gravity;
+            double p = pos[i] + v;
+            int l = lf[i] - 1;
+            if (l <= 0 || p <= -1.0 || p >= size) {
+                remove(i);
+                continue;
+            }
+            vel[i] = v;
+            pos[i] = p;
+            lf[i] = l;
+            render(frame, i, p, l);
+            i++;
+        }
+    }
+
+    private void render(int[] frame, int i, double p, int l) {
+        Palette pal = palette[i];
+        int c = pal != null ? pal.get(255 - (l * 255) / maxLife[i]) : color[i];
+        if (fade) c = ColorOps.nscale8(c, (l * 255) / maxLife[i]);
+
+        // Split the particle between the two pixels it covers
+        // Positions are always above -1.0, so this is floor(p)
+        int left = p < 0.0 ? -1 : (int)p;
+        int weight = (int)((p - left) * 256.0);
+        if (left >= 0 && weight < 256) {
+            frame[left] = ColorOps.add(frame[left], ColorOps.nscale8(c, 255 - weight));
+        }
+        if (left + 1 < frame.length && weight > 0) {
+            frame[left + 1] = ColorOps.add(frame[left + 1], ColorOps.nscale8(c, weight - 1));
+        }
+    }
+
+    private void remove(int i) {
+        int last = --count;
+        position[i] = position[last];
+        velocity[i] = velocity[last];
+        life[i] = life[last];
+        maxLife[i] = maxLife[last];
+        color[i] = color[last];
+        palette[i] = palette[last];
+        palette[last] = null;
+    }
+
+    private int nextRandom() {
+        int x = randomState;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        randomState = x;
+        return x;
+    }
+
+    private double nextDouble() {
+        return (nextRandom() >>> 8) / (double)(1 << 24);
+    }
+
+    private int nextInt(int bound) {
+        return (int)(((nextRandom() >>> 1) * (long)bound) >>> 31);
+    }
+}
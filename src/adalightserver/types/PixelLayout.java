@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Describes where the LEDs of the stripe are physically placed.
+ *
+ * Each LED has integer coordinates on a grid of width x height x depth cells.
+ * All lookups between coordinates and LED indices are precomputed tables, so
+ * scripts can map between both in constant time. Scripts can also draw on a
+ * canvas with one pixel per grid cell and let the layout map it onto the
+ * stripe with {@link #render(int[], int[])}.
+ *
+ * Layouts are immutable. A layout file contains either one line
+ * "matrix width height [serpentine] [vertical]" or one line per LED in stripe
+ * order with its coordinates "x y [z]". Empty lines and lines starting with
+ * # are ignored.
+ */
+public final class PixelLayout {
+
+    private final int width;
+    private final int height;
+    private final int depth;
+
+    /** Grid cell (x + y * width + z * width * height) for each LED */
+    private final int[] cellOfIndex;
+    /** LED index for each grid cell, -1 if no LED is placed there */
+    private final int[] indexOfCell;
+    /** Positions normalized to 0.0 - 1.0 for each LED */
+    private final double[] posX;
+    private final double[] posY;
+    private final double[] posZ;
+
+    private PixelLayout(int width, int height, int depth, int[] cellOfIndex) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.cellOfIndex = cellOfIndex;
+
+        indexOfCell = new int[width * height * depth];
+        Arrays.fill(indexOfCell, -1);
+        posX = new double[cellOfIndex.length];
+        posY = new double[cellOfIndex.length];
+        posZ = new double[cellOfIndex.length];
+        for (int i = 0; i < cellOfIndex.length; i++) {
+            int cell = cellOfIndex[i];
+            if (indexOfCell[cell] != -1)
+                throw new InvalidParameterException("LEDs " + indexOfCell[cell] + " and " + i + " have the same position");
+            indexOfCell[cell] = i;
+            posX[i] = normalize(cell % width, width);
+            posY[i] = normalize((cell / width) % height, height);
+            posZ[i] = normalize(cell / (width * height), depth);
+        }
+    }
+
+    private static double normalize(int coordinate, int size) {
+        return size <= 1 ? 0.0 : coordinate / (double)(size - 1);
+    }
+
+    /**
+     * Creates a layout where the LEDs are placed in one row
+     */
+    public static PixelLayout linear(int ledCount) {
+        int[] cells = new int[ledCount];
+        for (int i = 0; i < ledCount; i++) cells[i] = i;
+        return new PixelLayout(Math.max(1, ledCount), 1, 1, cells);
+    }
+
+    /**
+     * Creates a layout for a matrix which is wired row by row starting at the
+     * top left corner
+     *
+     * @param serpentine If every second row is wired from right to left
+     * @param vertical If the matrix is wired column by column instead
+     */
+    public static PixelLayout matrix(int width, int height, boolean serpentine, boolean vertical) {
+        if (width <= 0 || height <= 0)
+            throw new InvalidParameterException("The matrix size must be positive");
+        int[] cells = new int[width * height];
+        int lines = vertical ? width : height;
+        int lineLength = vertical ? height : width;
+        for (int line = 0; line < lines; line++) {
+            boolean reverse = serpentine && (line & 1) == 1;
+            for (int j = 0; j < lineLength; j++) {
+                int along = reverse ? lineLength - 1 - j : j;
+                int x = vertical ? line : along;
+                int y = vertical ? along : line;
+                cells[line * lineLength + j] = x + y * width;
+            }
+        }
+        return new PixelLayout(width, height, 1, cells);
+    }
+
+    /**
+     * Creates a layout from the coordinates of each LED in stripe order.
+     * Each entry contains x, y and optionally z. Coordinates must not be negative.
+     */
+    public static PixelLayout fromCoordinates(int[][] coordinates) {
+        int width = 1, height = 1, depth = 1;
+        for (int[] c : coordinates) {
+            if (c.length < 2 || c.length > 3)
+                throw new InvalidParameterException("Coordinates need 2 or 3 values");
+            for (int v : c) {
+                if (v < 0) throw new InvalidParameterException("Coordinates must not be negative");
+            }
+            width = Math.max(width, c[0] + 1);
+            height = Math.max(height, c[1] + 1);
+            if (c.length == 3) depth = Math.max(depth, c[2] + 1);
+        }
+        if ((long)width * height * depth > 1 << 24)
+            throw new InvalidParameterException("The layout is too large");
+        int[] cells = new int[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            int[] c = coordinates[i];
+            int z = c.length == 3 ? c[2] : 0;
+            cells[i] = c[0] + c[1] * width + z * width * height;
+        }
+        return new PixelLayout(width, height, depth, cells);
+    }
+
+    public static PixelLayout load(Path path) throws IOException, InvalidParameterException {
+        return parse(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+    }
+
+    public static PixelLayout parse(String description) throws InvalidParameterException {
+        List<int[]> coordinates = new ArrayList<>();
+        for (String line : description.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] parts = line.split("[\\s,]+");
+
+            if (parts[0].equals("matrix")) {
+                if (!coordinates.isEmpty() || parts.length < 3)
+                    throw new InvalidParameterException("Invalid matrix definition");
+                boolean serpentine = false, vertical = false;
+                for (int i = 3; i < parts.length; i++) {
+                    if (parts[i].equals("serpentine")) serpentine = true;
+                    else if (parts[i].equals("vertical")) vertical = true;
+                    else throw new InvalidParameterException("Unknown matrix option " + parts[i]);
+                }
+                return matrix(parseInt(parts[1]), parseInt(parts[2]), serpentine, vertical);
+            }
+
+            int[] c = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) c[i] = parseInt(parts[i]);
+            coordinates.add(c);
+        }
+        return fromCoordinates(coordinates.toArray(new int[coordinates.size()][]));
+    }
+
+    private static int parseInt(String s) throws InvalidParameterException {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new InvalidParameterException("Invalid number " + s);
+        }
+    }
+
+    /**
+     * Returns the number of LEDs
+     */
+    public int size() {
+        return cellOfIndex.length;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the index of the LED at the given coordinates or -1 if there is none
+     */
+    public int indexAt(int x, int y) {
+        return indexAt(x, y, 0);
+    }
+
+    public int indexAt(int x, int y, int z) {
+        if (x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= depth) return -1;
+        return indexOfCell[x + y * width + z * width * height];
+    }
+
+    public int gridX(int index) {
+        return cellOfIndex[index] % width;
+    }
+
+    public int gridY(int index) {
+        return (cellOfIndex[index] / width) % height;
+    }
+
+    public int gridZ(int index) {
+        return cellOfIndex[index] / (width * height);
+    }
+
+    /**
+     * Returns the position of the LED on the x axis between 0.0 and 1.0
+     */
+    public double getX(int index) {
+        return posX[index];
+    }
+
+    public double getY(int index) {
+        return posY[index];
+    }
+
+    public double getZ(int index) {
+        return posZ[index];
+    }
+
+    /**
+     * Creates a canvas with one pixel per grid cell.
+     * The pixel at x, y, z has the index x + y * width + z * width * height.
+     */
+    public FrameBuffer createCanvas() {
+        return new FrameBuffer(indexOfCell.length);
+    }
+
+    /**
+     * Sets the pixel at x, y of a canvas. Coordinates outside are ignored.
+     */
+    public void setPixel(FrameBuffer canvas, int x, int y, int color) {
+        if (x < 0 || x >= width || y < 0 || y >= height) return;
+        canvas.set(x + y * width, color);
+    }
+
+    /**
+     * Maps a canvas onto the LEDs. Each LED takes the color of its grid cell.
+     */
+    public void render(int[] canvas, int[] dest) {
+        final int[] cells = cellOfIndex;
+        int count = Math.min(cells.length, dest.length);
+        for (int i = 0; i < count; i++) {
+            dest[i] = canvas[cells[i]];
+        }
+    }
+
+    public void render(FrameBuffer canvas, FrameBuffer dest) {
+        render(canvas.getPixels(), dest.getPixels());
+    }
+}
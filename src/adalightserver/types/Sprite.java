@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+import java.security.InvalidParameterException;
+
+/**
+ * A precomputed brightness profile which can be drawn at any position and in
+ * any color into a frame.
+ *
+ * The profile is computed once, e.g. when a script starts or a parameter
+ * changes, so drawing it only scales the color by the stored brightness for
+ * each covered pixel.
+ */
+public final class Sprite {
+
+    public enum Blend {
+        /** Overwrite the pixels */
+        REPLACE,
+        /** Add to the pixels with saturation */
+        ADD,
+        /** Keep the brighter value of each channel */
+        MAX
+    }
+
+    /** Brightness scales for nscale8 */
+    private final int[] profile;
+    /** The index in profile which is drawn at the target position */
+    private final int center;
+
+    private Sprite(int[] profile, int center) {
+        this.profile = profile;
+        this.center = center;
+    }
+
+    /**
+     * Creates a symmetric sprite which has full brightness in the center and
+     * whose brightness drops by factor per pixel of distance
+     *
+     * @param radius The number of pixels on each side of the center
+     */
+    public static Sprite falloff(int radius, double factor) {
+        if (radius < 0)
+            throw new InvalidParameterException("radius must be positive");
+        int[] profile = new int[2 * radius + 1];
+        for (int i = 0; i < profile.length; i++) {
+            profile[i] = toScale(Math.pow(factor, Math.abs(i - radius)));
+        }
+        return new Sprite(profile, radius);
+    }
+
+    /**
+     * Creates a sprite from brightness values between 0.0 and 1.0.
+     * The pixel at index center is drawn at the target position.
+     */
+    public static Sprite fromBrightness(double[] brightness, int center) {
+        if (center < 0 || center >= brightness.length)
+            throw new InvalidParameterException("center must be inside the sprite");
+        int[] profile = new int[brightness.length];
+        for (int i = 0; i < profile.length; i++) {
+            profile[i] = toScale(brightness[i]);
+        }
+        return new Sprite(profile, center);
+    }
+
+    private static int toScale(double factor) {
+        // Same mapping as ColorOps.scale
+        if (factor <= 0.0) return 0;
+        if (factor >= 1.0) return 255;
+        return Math.max(0, (int)(factor * 256.0) - 1);
+    }
+
+    public int length() {
+        return profile.length;
+    }
+
+    /**
+     * Draws the sprite with its center at position in the given color.
+     * Parts outside of the frame are clipped.
+     */
+    public void draw(int[] frame, int position, int color, Blend blend) {
+        int start = position - center;
+        int from = Math.max(0, -start);
+        int to = Math.min(profile.length, frame.length - start);
+        if (from >= to) return;
+
+        final int[] p = profile;
+        switch (blend) {
+        case REPLACE:
+            for (int i = from; i < to; i++) {
+                frame[start + i] = ColorOps.nscale8(color, p[i]);
+            }
+            break;
+        case ADD:
+            for (int i = from; i < to; i++) {
+                frame[start + i] = ColorOps.add(frame[start + i], ColorOps.nscale8(color, p[i]));
+            }
+            break;
+        case MAX:
+            for (int i = from; i < to; i++) {
+                frame[start + i] = ColorOps.max(frame[start + i], ColorOps.nscale8(color, p[i]));
+            }
+            break;
+        }
+    }
+
+    public void draw(FrameBuffer frame, int position, int color, Blend blend) {
+        draw(frame.getPixels(), position, color, blend);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a producer which writes frames as fast as it can against readers of
+ * the same buffer. Each frame has one byte value in all of its colors, so a
+ * frame which mixes two frames is seen as more than one value.
+ */
+public class SharedFrameBufferTest {
+    private static final int LED_COUNT = 300;
+    private static final long DURATION_NANOS = 1000000000L;
+
+    private Path file;
+    private SharedFrameBuffer server;
+    private SharedFrameBuffer producer;
+    private Thread producerThread;
+    private final AtomicBoolean stop = new AtomicBoolean();
+    private final AtomicLong published = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("frames", ".shm");
+        // A single slot is overwritten by every frame, which provokes the most
+        // conflicts between the producer and the reader
+        server = SharedFrameBuffer.create(file, LED_COUNT, 1);
+        producer = SharedFrameBuffer.open(file);
+        producerThread = new Thread(() -> {
+            int value = 0;
+            while (!stop.get()) {
+                ByteBuffer slot = producer.beginFrame();
+                value = (value + 1) & 0xff;
+                for (int i = 0; i < 3 * LED_COUNT; i++)
+                    slot.put(i, (byte) value);
+                producer.publishFrame();
+                published.incrementAndGet();
+                // A short pause lets reads complete now and then, without it
+                // the reader could be starved for the whole test
+                LockSupport.parkNanos(1000);
+            }
+        });
+        producerThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // setUp may have failed at any point, which must not be hidden
+        stop.set(true);
+        if (producerThread != null) producerThread.join();
+        if (producer != null) producer.close();
+        if (server != null) server.close();
+        if (file != null) Files.deleteIfExists(file);
+    }
+
+    private static boolean isTorn(ByteBuffer rgb) {
+        if (rgb.remaining() != 3 * LED_COUNT) return true;
+        byte value = rgb.get(rgb.position());
+        for (int i = rgb.position(); i < rgb.limit(); i++) {
+            if (rgb.get(i) != value) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void readFrameNeverReturnsTornFrames() {
+        ByteBuffer frame = ByteBuffer.allocate(3 * LED_COUNT);
+        int read = 0;
+        long end = System.nanoTime() + DURATION_NANOS;
+        while (System.nanoTime() < end) {
+            long sequence = server.getSequence();
+            if (!server.readFrame(sequence, frame)) continue;
+            assertTrue("Torn frame at sequence " + sequence, !isTorn(frame));
+            read++;
+        }
+        assertTrue("No frame was published", published.get() > 0);
+        assertTrue("No frame was read", read > 0);
+    }
+
+    @Test
+    public void deviceOnlyPassesCompleteFrames() throws Exception {
+        AtomicInteger received = new AtomicInteger();
+        AtomicInteger torn = new AtomicInteger();
+        TestDevice device = new TestDevice();
+        device.setSharedFrameBuffer(server, (priority, rgb) -> {
+            if (isTorn(rgb)) torn.incrementAndGet();
+            received.incrementAndGet();
+            return true;
+        });
+        device.open();
+        try {
+            Thread.sleep(DURATION_NANOS / 1000000);
+        } finally {
+            device.close();
+        }
+        assertTrue("No frame was received", received.get() > 0);
+        assertEquals("Torn frames", 0, torn.get());
+    }
+
+    /**
+     * A device which polls the buffer on its write thread and discards the
+     * encoded frames
+     */
+    private static class TestDevice extends AdalightDevice {
+        @Override
+        public void open() {
+            outputStream = new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+            stopThread = false;
+            writeThread = new Thread(() -> writeThreadProc());
+            writeThread.start();
+        }
+
+        @Override
+        public void close() {
+            synchronized (mutex) {
+                stopThread = true;
+                mutex.notifyAll();
+            }
+            try {
+                writeThread.join();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.http;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import groovy.json.JsonBuilder;
+import groovy.json.JsonSlurper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Compares the messages per second of {@link RpcCodec} with the former
+ * JsonSlurper and JsonBuilder based handling. Each message is a request
+ * which is parsed and a reply which is encoded into a frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RpcCodecBenchmark {
+
+    private static final String REQUEST =
+        "{\"type\":\"rq\", \"id\":42, \"method\":\"setScript\", \"data\":"
+        + "{\"name\":\"Walk\", \"parameters\":{\"color\":\"ff0000\", \"interval\":\"50\"}}}";
+
+    private static final List<String> SCRIPTS = Arrays.asList(
+        "Breathe", "Color", "Comet", "Fire", "Gradient", "Noise", "Plasma",
+        "Rainbow", "Sparks", "Spectrum", "Sweep", "Twinkle", "Walk", "WalkAndSweep");
+
+    private final ByteBuf request = Unpooled.copiedBuffer(REQUEST, CharsetUtil.UTF_8);
+    private final RpcCodec codec = new RpcCodec();
+    private final RpcCodec.Request rq = new RpcCodec.Request();
+
+    @Benchmark
+    public void groovy(Blackhole sink) {
+        TextWebSocketFrame in = new TextWebSocketFrame(request.duplicate().retain());
+        Object o = new JsonSlurper().parseText(in.text());
+        in.release();
+        Map<?, ?> msg = (Map<?, ?>) o;
+        long id = ((Number) msg.get("id")).longValue();
+        Map<?, ?> data = (Map<?, ?>) msg.get("data");
+        sink.consume(data.size() + ((String) msg.get("method")).length());
+
+        JsonBuilder builder = new JsonBuilder();
+        Map<String, Object> reply = new HashMap<String, Object>();
+        reply.put("type", "rp");
+        reply.put("id", id);
+        reply.put("result", SCRIPTS);
+        builder.call(reply);
+        TextWebSocketFrame out = new TextWebSocketFrame(builder.toString());
+        sink.consume(out.content().readableBytes());
+        out.release();
+    }
+
+    @Benchmark
+    public void codec(Blackhole sink) {
+        TextWebSocketFrame in = new TextWebSocketFrame(request.duplicate().retain());
+        codec.parse(in.content(), rq);
+        in.release();
+        sink.consume(rq.data.size() + rq.method.length());
+
+        ByteBuf b = RpcCodec.result(PooledByteBufAllocator.DEFAULT, rq.id, SCRIPTS, null);
+        TextWebSocketFrame out = new TextWebSocketFrame(b);
+        sink.consume(out.content().readableBytes());
+        out.release();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the time per frame of 300 LEDs of {@link FastHsv} with the
+ * double based conversions. colorHsv is the conversion which ColorHsv used
+ * before it delegated to {@link ColorOps#fromHsv}, including the allocation
+ * of a ColorRgb per LED. Each frame is a rainbow whose start hue moves with
+ * every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FastHsvBenchmark {
+    private static final int LED_COUNT = 300;
+
+    private final int[] frame = new int[LED_COUNT];
+    private final int[] hues = new int[LED_COUNT];
+    private int frameNumber = 0;
+
+    private double startDegrees() {
+        frameNumber = (frameNumber + 1) % 360;
+        return frameNumber;
+    }
+
+    /**
+     * The former ColorHsv.toRgb()
+     */
+    private static ColorRgb originalToRgb(double h, double s, double v) {
+        double x = h / 60.0;
+        int hi = (int)x;
+        double f = x - hi;
+
+        double p = v * (1.0 - s);
+        double q = v * (1.0 - s * f);
+        double t = v * (1.0 - s * (1.0 - f));
+
+        switch (hi) {
+        case 1: return new ColorRgb((int)(q * 255.0), (int)(v * 255.0), (int)(p * 255.0));
+        case 2: return new ColorRgb((int)(p * 255.0), (int)(v * 255.0), (int)(t * 255.0));
+        case 3: return new ColorRgb((int)(p * 255.0), (int)(q * 255.0), (int)(v * 255.0));
+        case 4: return new ColorRgb((int)(t * 255.0), (int)(p * 255.0), (int)(v * 255.0));
+        case 5: return new ColorRgb((int)(v * 255.0), (int)(p * 255.0), (int)(q * 255.0));
+        default: return new ColorRgb((int)(v * 255.0), (int)(t * 255.0), (int)(p * 255.0));
+        }
+    }
+
+    @Benchmark
+    public int[] colorHsv() {
+        double start = startDegrees();
+        for (int i = 0; i < LED_COUNT; i++) {
+            frame[i] = originalToRgb((start + i * 360.0 / LED_COUNT) % 360.0, 1.0, 0.8).toPacked();
+        }
+        return frame;
+    }
+
+    @Benchmark
+    public int[] colorOps() {
+        double start = startDegrees();
+        for (int i = 0; i < LED_COUNT; i++) {
+            frame[i] = ColorOps.fromHsv((start + i * 360.0 / LED_COUNT) % 360.0, 1.0, 0.8);
+        }
+        return frame;
+    }
+
+    @Benchmark
+    public int[] fastDouble() {
+        double start = startDegrees();
+        for (int i = 0; i < LED_COUNT; i++) {
+            frame[i] = FastHsv.toRgb((start + i * 360.0 / LED_COUNT) % 360.0, 1.0, 0.8);
+        }
+        return frame;
+    }
+
+    @Benchmark
+    public int[] fastBatch() {
+        int start = FastHsv.hueFromDegrees(startDegrees());
+        for (int i = 0; i < LED_COUNT; i++) {
+            hues[i] = start + i * FastHsv.FULL_TURN / LED_COUNT;
+        }
+        FastHsv.toRgb(hues, 0, frame, 0, LED_COUNT, 255, 204);
+        return frame;
+    }
+
+    @Benchmark
+    public int[] fastRainbow() {
+        int start = FastHsv.hueFromDegrees(startDegrees());
+        FastHsv.fillRainbow(frame, 0, LED_COUNT, start, FastHsv.FULL_TURN / LED_COUNT, 255, 204);
+        return frame;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Matthias Einwag
+ *
+ * The author licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package adalightserver.types;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the time per row of 300 LEDs of the fixed point {@link Noise}
+ * functions with the double based perlin noise. The row moves through the
+ * noise with every frame, like in the Noise effect.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoiseBenchmark {
+    private static final int LED_COUNT = 300;
+    /** Distance between two LEDs in 8.8 fixed point */
+    private static final int STEP = 20;
+
+    private final int[] row = new int[LED_COUNT];
+    private int time = 0;
+
+    @Benchmark
+    public int[] perlin2() {
+        time += 8;
+        double y = time / 256.0;
+        for (int i = 0; i < LED_COUNT; i++) {
+            row[i] = (int)((Noise.perlin(i * STEP / 256.0, y) + 1.0) * 127.5);
+        }
+        return row;
+    }
+
+    @Benchmark
+    public int[] perlin3() {
+        time += 8;
+        double z = time / 256.0;
+        for (int i = 0; i < LED_COUNT; i++) {
+            row[i] = (int)((Noise.perlin(i * STEP / 256.0, 0.5, z) + 1.0) * 127.5);
+        }
+        return row;
+    }
+
+    @Benchmark
+    public int[] noise8x2() {
+        time += 8;
+        for (int i = 0; i < LED_COUNT; i++) {
+            row[i] = Noise.noise8(i * STEP, time);
+        }
+        return row;
+    }
+
+    @Benchmark
+    public int[] fill8x2() {
+        time += 8;
+        Noise.fill8(row, 0, LED_COUNT, 0, STEP, time);
+        return row;
+    }
+
+    @Benchmark
+    public int[] fill8x3() {
+        time += 8;
+        Noise.fill8(row, 0, LED_COUNT, 0, STEP, 128, time);
+        return row;
+    }
+
+    @Benchmark
+    public int[] value8() {
+        time += 8;
+        for (int i = 0; i < LED_COUNT; i++) {
+            row[i] = Noise.value8(i * STEP, time);
+        }
+        return row;
+    }
+}